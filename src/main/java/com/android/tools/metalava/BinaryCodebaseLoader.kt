@@ -0,0 +1,640 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import com.android.SdkConstants.DOT_CLASS
+import com.android.tools.metalava.doclava1.ApiFlagsCache
+import com.android.tools.metalava.doclava1.SourcePositionInfo
+import com.android.tools.metalava.doclava1.TextCodebase
+import com.android.tools.metalava.model.DefaultModifierList
+import com.android.tools.metalava.model.TypeParameterList
+import com.android.tools.metalava.model.VisibilityLevel
+import com.android.tools.metalava.model.javaEscapeString
+import com.android.tools.metalava.model.text.NO_DEFAULT_VALUE
+import com.android.tools.metalava.model.text.TextClassItem
+import com.android.tools.metalava.model.text.TextConstructorItem
+import com.android.tools.metalava.model.text.TextFieldItem
+import com.android.tools.metalava.model.text.TextMethodItem
+import com.android.tools.metalava.model.text.TextModifiers
+import com.android.tools.metalava.model.text.TextPackageItem
+import com.android.tools.metalava.model.text.TextParameterItem
+import com.android.tools.metalava.model.text.TextTypeParameterList
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.Opcodes.ACC_ABSTRACT
+import org.objectweb.asm.Opcodes.ACC_ANNOTATION
+import org.objectweb.asm.Opcodes.ACC_BRIDGE
+import org.objectweb.asm.Opcodes.ACC_DEPRECATED
+import org.objectweb.asm.Opcodes.ACC_ENUM
+import org.objectweb.asm.Opcodes.ACC_FINAL
+import org.objectweb.asm.Opcodes.ACC_INTERFACE
+import org.objectweb.asm.Opcodes.ACC_NATIVE
+import org.objectweb.asm.Opcodes.ACC_PRIVATE
+import org.objectweb.asm.Opcodes.ACC_PROTECTED
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.ACC_STATIC
+import org.objectweb.asm.Opcodes.ACC_STRICT
+import org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED
+import org.objectweb.asm.Opcodes.ACC_SYNTHETIC
+import org.objectweb.asm.Opcodes.ACC_TRANSIENT
+import org.objectweb.asm.Opcodes.ACC_VARARGS
+import org.objectweb.asm.Opcodes.ACC_VOLATILE
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AnnotationNode
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldNode
+import org.objectweb.asm.tree.InnerClassNode
+import org.objectweb.asm.tree.MethodNode
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipFile
+
+/**
+ * Loads the API of a jar file directly from its class files (see [ARG_BINARY_JARS]).
+ *
+ * The class files are read with ASM, skipping all method bodies, and turned into the
+ * same model as a signature file ([TextCodebase]), so everything that works on
+ * signature files, such as writing signature files and checking compatibility, works
+ * on the result. This avoids creating an IntelliJ project environment and resolving
+ * every class through PSI, which is by far the most expensive part of loading a jar.
+ *
+ * Like [loadFromJarFile], only the public and protected classes and members are
+ * included. Public methods and constants of package private super classes are
+ * inherited into their public subclasses, and package private interfaces are
+ * replaced by the interfaces they extend.
+ */
+class BinaryCodebaseLoader(private val jar: File) {
+    private val codebase = TextCodebase(jar)
+    private val position = SourcePositionInfo(jar.path, 0)
+
+    /** All classes in the jar, by internal name */
+    private val classes = HashMap<String, ClassNode>()
+    /** Member class entries from the InnerClasses attributes of all classes, by internal name */
+    private val innerClasses = HashMap<String, InnerClassNode>()
+    private val qualifiedNames = HashMap<String, String>()
+    private val apiClasses = HashMap<String, Boolean>()
+
+    fun load(): TextCodebase {
+        progress("Reading class files from $jar: ")
+        readClasses()
+
+        val packages = HashMap<String, TextPackageItem>()
+        for (node in classes.values.sortedBy { it.name }) {
+            if (!isApi(node)) {
+                continue
+            }
+            val packageName = node.name.substringBeforeLast('/', "").replace('/', '.')
+            val pkg = packages.getOrPut(packageName) {
+                TextPackageItem(codebase, packageName, TextModifiers(codebase, DefaultModifierList.PUBLIC), position)
+            }
+            pkg.addClass(createClass(node, pkg))
+        }
+        for (name in packages.keys.sorted()) {
+            codebase.addPackage(packages.getValue(name))
+        }
+
+        codebase.description = "Codebase loaded from $jar"
+        codebase.postProcess()
+        // Like signature files, the class files record the final API flags
+        codebase.apiFlagsCache = ApiFlagsCache()
+        return codebase
+    }
+
+    private fun readClasses() {
+        try {
+            ZipFile(jar).use { zip ->
+                for (entry in zip.entries()) {
+                    val name = entry.name
+                    if (!name.endsWith(DOT_CLASS) || name.startsWith("META-INF/") ||
+                        name.endsWith("module-info.class") || name.endsWith("package-info.class")
+                    ) {
+                        continue
+                    }
+                    val bytes = zip.getInputStream(entry).use { it.readBytes() }
+                    val node = ClassNode()
+                    ClassReader(bytes).accept(node, ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
+                    classes[node.name] = node
+                    for (inner in node.innerClasses) {
+                        if (inner.outerName != null && inner.innerName != null) {
+                            innerClasses[inner.name] = inner
+                        }
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            throw DriverException("Could not read $jar: ${e.message}")
+        }
+    }
+
+    /** The access flags of a class, including the ones only recorded for member classes */
+    private fun classAccess(node: ClassNode): Int {
+        return node.innerClasses.firstOrNull { it.name == node.name }?.access ?: node.access
+    }
+
+    private fun isApi(node: ClassNode): Boolean {
+        return apiClasses.getOrPut(node.name) {
+            val access = classAccess(node)
+            val inner = innerClasses[node.name]
+            when {
+                access.has(ACC_SYNTHETIC) -> false
+                !access.has(ACC_PUBLIC) && !access.has(ACC_PROTECTED) -> false
+                // Local and anonymous classes have an enclosing method
+                node.outerClass != null -> false
+                isHidden(annotations(node.visibleAnnotations, node.invisibleAnnotations)) -> false
+                inner != null -> classes[inner.outerName]?.let { isApi(it) } ?: false
+                else -> true
+            }
+        }
+    }
+
+    private fun isHidden(annotations: List<String>?): Boolean {
+        return annotations != null && annotations.any { options.hideAnnotations.matches(it) }
+    }
+
+    private fun qualifiedName(internalName: String): String {
+        return qualifiedNames.getOrPut(internalName) {
+            val inner = innerClasses[internalName]
+            if (inner != null) {
+                qualifiedName(inner.outerName) + "." + inner.innerName
+            } else {
+                internalName.replace('/', '.')
+            }
+        }
+    }
+
+    private fun createClass(node: ClassNode, pkg: TextPackageItem): TextClassItem {
+        val access = classAccess(node)
+        val isInterface = access.has(ACC_INTERFACE)
+        val isAnnotation = access.has(ACC_ANNOTATION)
+        val isEnum = access.has(ACC_ENUM)
+        val annotations = annotations(node.visibleAnnotations, node.invisibleAnnotations)
+        val modifiers = createModifiers(access, annotations)
+        modifiers.setStatic(access.has(ACC_STATIC))
+        modifiers.setFinal(access.has(ACC_FINAL))
+        modifiers.setAbstract(access.has(ACC_ABSTRACT))
+
+        val signature = parseSignature(node.signature, null) { parser ->
+            val typeParameters = parser.parseTypeParameters()
+            val superClass = parser.parseType()
+            val interfaces = mutableListOf<String>()
+            while (!parser.atEnd()) {
+                interfaces.add(parser.parseType())
+            }
+            ClassSignature(typeParameters, superClass, interfaces)
+        } ?: ClassSignature(null, node.superName?.let { qualifiedName(it) }, node.interfaces.map { qualifiedName(it) })
+
+        val qualifiedName = qualifiedName(node.name)
+        val typeInfo = codebase.obtainTypeFromString(qualifiedName + (signature.typeParameters ?: ""))
+        val packageName = pkg.name()
+        val fullName = if (packageName.isEmpty()) qualifiedName else qualifiedName.substring(packageName.length + 1)
+        val cls = TextClassItem(codebase, position, modifiers, isInterface, isEnum, isAnnotation,
+            typeInfo.toErasedTypeString(null), typeInfo.qualifiedTypeName(), fullName, annotations)
+        cls.setContainingPackage(pkg)
+        cls.setTypeInfo(typeInfo)
+        cls.deprecated = modifiers.isDeprecated()
+
+        // Skip package private super classes, but keep what they contribute to the API
+        val hiddenSuperClasses = mutableListOf<ClassNode>()
+        var superClass = signature.superClass
+        var superName = node.superName
+        while (superName != null) {
+            val superNode = classes[superName]
+            if (superNode == null || isApi(superNode)) {
+                break
+            }
+            hiddenSuperClasses.add(superNode)
+            superName = superNode.superName
+            superClass = superName?.let { qualifiedName(it) }
+        }
+        if (isEnum) {
+            codebase.mapClassToSuper(cls, JAVA_LANG_ENUM)
+        } else if (!isInterface) {
+            codebase.mapClassToSuper(cls, superClass)
+        }
+
+        val interfaces = LinkedHashMap<String, String>()
+        for ((interfaceName, interfaceType) in node.interfaces.zip(signature.interfaces)) {
+            addInterface(interfaces, interfaceName, interfaceType)
+        }
+        for (hidden in hiddenSuperClasses) {
+            for (interfaceName in hidden.interfaces) {
+                addInterface(interfaces, interfaceName, qualifiedName(interfaceName))
+            }
+        }
+        interfaces.values.forEach { codebase.mapClassToInterface(cls, it) }
+
+        val members = HashSet<String>()
+        for (method in node.methods) {
+            if (isApi(method) && members.add(method.name + method.desc)) {
+                addMethod(cls, node, method, inherited = false)
+            }
+        }
+        for (field in node.fields) {
+            if (isApi(field) && members.add(field.name)) {
+                addField(cls, field, inherited = false)
+            }
+        }
+        for (hidden in hiddenSuperClasses) {
+            for (method in hidden.methods) {
+                if (method.name != "<init>" && method.access.has(ACC_PUBLIC) && !method.access.has(ACC_ABSTRACT) &&
+                    isApi(method) && members.add(method.name + method.desc)
+                ) {
+                    addMethod(cls, hidden, method, inherited = true)
+                }
+            }
+            for (field in hidden.fields) {
+                if (field.access.has(ACC_PUBLIC) && field.access.has(ACC_STATIC) && field.access.has(ACC_FINAL) &&
+                    isApi(field) && members.add(field.name)
+                ) {
+                    addField(cls, field, inherited = true)
+                }
+            }
+        }
+
+        return cls
+    }
+
+    /** Adds the given interface, or the interfaces it extends if it is not part of the API */
+    private fun addInterface(interfaces: MutableMap<String, String>, internalName: String, type: String) {
+        val node = classes[internalName]
+        if (node == null || isApi(node)) {
+            interfaces.putIfAbsent(internalName, type)
+        } else {
+            for (superInterface in node.interfaces) {
+                addInterface(interfaces, superInterface, qualifiedName(superInterface))
+            }
+        }
+    }
+
+    private fun isApi(method: MethodNode): Boolean {
+        val access = method.access
+        return (access.has(ACC_PUBLIC) || access.has(ACC_PROTECTED)) &&
+            !access.has(ACC_SYNTHETIC) && !access.has(ACC_BRIDGE) && method.name != "<clinit>" &&
+            !isHidden(annotations(method.visibleAnnotations, method.invisibleAnnotations))
+    }
+
+    private fun isApi(field: FieldNode): Boolean {
+        val access = field.access
+        return (access.has(ACC_PUBLIC) || access.has(ACC_PROTECTED)) && !access.has(ACC_SYNTHETIC) &&
+            !isHidden(annotations(field.visibleAnnotations, field.invisibleAnnotations))
+    }
+
+    private fun addMethod(cls: TextClassItem, owner: ClassNode, node: MethodNode, inherited: Boolean) {
+        val access = node.access
+        val isConstructor = node.name == "<init>"
+        val modifiers = createModifiers(access, annotations(node.visibleAnnotations, node.invisibleAnnotations))
+        modifiers.setStatic(access.has(ACC_STATIC))
+        modifiers.setFinal(access.has(ACC_FINAL))
+        modifiers.setAbstract(access.has(ACC_ABSTRACT))
+        modifiers.setSynchronized(access.has(ACC_SYNCHRONIZED))
+        modifiers.setNative(access.has(ACC_NATIVE))
+        modifiers.setStrictFp(access.has(ACC_STRICT))
+        if (cls.isInterface() && !isConstructor && !access.has(ACC_ABSTRACT) && !access.has(ACC_STATIC)) {
+            modifiers.setDefault(true)
+        }
+
+        val signature = parseSignature(node.signature, null, this::parseMethodSignature)
+            ?: parseMethodSignature(SignatureParser(node.desc)).let {
+                // The descriptor of an inner class constructor starts with the outer instance
+                val ownerAccess = classAccess(owner)
+                if (isConstructor && innerClasses.containsKey(owner.name) && !ownerAccess.has(ACC_STATIC) &&
+                    !ownerAccess.has(ACC_INTERFACE) && it.parameters.isNotEmpty()
+                ) {
+                    MethodSignature(it.typeParameters, it.parameters.drop(1), it.returnType, it.exceptions)
+                } else {
+                    it
+                }
+            }
+
+        val method = if (isConstructor) {
+            TextConstructorItem(codebase, cls.simpleName(), cls, modifiers, cls.asTypeInfo(), position)
+        } else {
+            val typeParameterList = if (signature.typeParameters != null) {
+                TextTypeParameterList.create(codebase, null, signature.typeParameters)
+            } else {
+                TypeParameterList.NONE
+            }
+            val returnType = codebase.obtainTypeFromString(signature.returnType, cls, typeParameterList)
+            val method = TextMethodItem(codebase, node.name, cls, modifiers, returnType, position)
+            method.setTypeParameterList(typeParameterList)
+            if (typeParameterList is TextTypeParameterList) {
+                typeParameterList.owner = method
+            }
+            method
+        }
+        method.deprecated = modifiers.isDeprecated()
+        method.inheritedMethod = inherited
+
+        val varargs = access.has(ACC_VARARGS)
+        val lastIndex = signature.parameters.size - 1
+        for ((index, parameterType) in signature.parameters.withIndex()) {
+            val parameterModifiers = TextModifiers(codebase, DefaultModifierList.PACKAGE_PRIVATE, null)
+            parameterModifiers.addAnnotations(annotations(
+                node.visibleParameterAnnotations?.getOrNull(index),
+                node.invisibleParameterAnnotations?.getOrNull(index)
+            ))
+            val typeString = if (varargs && index == lastIndex && parameterType.endsWith("[]")) {
+                parameterModifiers.setVarArg(true)
+                parameterType.substring(0, parameterType.length - 2) + "..."
+            } else {
+                parameterType
+            }
+            val type = codebase.obtainTypeFromString(typeString, cls, method.typeParameterList())
+            method.addParameter(TextParameterItem(codebase, method, "arg${index + 1}", null, NO_DEFAULT_VALUE,
+                index, type, parameterModifiers, position))
+        }
+        method.setVarargs(varargs)
+
+        val exceptions = if (signature.exceptions.isNotEmpty()) {
+            signature.exceptions
+        } else {
+            node.exceptions.map { qualifiedName(it) }
+        }
+        exceptions.forEach { method.addException(it) }
+        node.annotationDefault?.let { method.setAnnotationDefault(annotationValue(it)) }
+
+        if (method is TextConstructorItem) {
+            cls.addConstructor(method)
+        } else {
+            cls.addMethod(method)
+        }
+    }
+
+    private fun addField(cls: TextClassItem, node: FieldNode, inherited: Boolean) {
+        val access = node.access
+        val modifiers = createModifiers(access, annotations(node.visibleAnnotations, node.invisibleAnnotations))
+        modifiers.setStatic(access.has(ACC_STATIC))
+        modifiers.setFinal(access.has(ACC_FINAL))
+        modifiers.setTransient(access.has(ACC_TRANSIENT))
+        modifiers.setVolatile(access.has(ACC_VOLATILE))
+
+        val typeString = parseSignature(node.signature, null) { it.parseType() } ?: typeString(node.desc)
+        val type = codebase.obtainTypeFromString(typeString)
+        val value = node.value?.let {
+            // Constants of these types are all stored as ints in class files
+            when (node.desc) {
+                "Z" -> it != 0
+                "C" -> (it as Int).toChar()
+                else -> it
+            }
+        }
+        val field = TextFieldItem(codebase, node.name, cls, modifiers, type, value, position)
+        field.deprecated = modifiers.isDeprecated()
+        field.inheritedField = inherited
+        if (access.has(ACC_ENUM)) {
+            cls.addEnumConstant(field)
+        } else {
+            cls.addField(field)
+        }
+    }
+
+    private fun createModifiers(access: Int, annotations: List<String>?): TextModifiers {
+        val modifiers = TextModifiers(codebase, DefaultModifierList.PACKAGE_PRIVATE, null)
+        modifiers.setVisibilityLevel(
+            when {
+                access.has(ACC_PUBLIC) -> VisibilityLevel.PUBLIC
+                access.has(ACC_PROTECTED) -> VisibilityLevel.PROTECTED
+                access.has(ACC_PRIVATE) -> VisibilityLevel.PRIVATE
+                else -> VisibilityLevel.PACKAGE_PRIVATE
+            }
+        )
+        modifiers.setDeprecated(access.has(ACC_DEPRECATED))
+        modifiers.addAnnotations(annotations)
+        return modifiers
+    }
+
+    private fun annotations(vararg lists: List<AnnotationNode>?): List<String>? {
+        val result = mutableListOf<String>()
+        for (list in lists) {
+            list?.mapTo(result) { annotationSource(it) }
+        }
+        return if (result.isEmpty()) null else result
+    }
+
+    private fun annotationSource(node: AnnotationNode): String {
+        val name = typeString(node.desc)
+        val values = node.values
+        if (values == null || values.isEmpty()) {
+            return "@$name"
+        }
+        val attributes = (0 until values.size step 2).map { values[it] as String to annotationValue(values[it + 1]) }
+        val arguments = if (attributes.size == 1 && attributes[0].first == "value") {
+            attributes[0].second
+        } else {
+            attributes.joinToString(", ") { "${it.first}=${it.second}" }
+        }
+        return "@$name($arguments)"
+    }
+
+    private fun annotationValue(value: Any?): String {
+        return when (value) {
+            null -> "null"
+            is String -> "\"${javaEscapeString(value)}\""
+            is Char -> "'${javaEscapeString(value.toString())}'"
+            is Long -> "${value}L"
+            is Float -> "${value}f"
+            is Type -> typeString(value.descriptor) + ".class"
+            is AnnotationNode -> annotationSource(value)
+            is List<*> -> value.joinToString(", ", "{", "}") { annotationValue(it) }
+            // Enum constants are stored as their type descriptor and name
+            is Array<*> -> typeString(value[0] as String) + "." + value[1]
+            else -> if (value.javaClass.isArray) {
+                (0 until java.lang.reflect.Array.getLength(value)).joinToString(", ", "{", "}") {
+                    annotationValue(java.lang.reflect.Array.get(value, it))
+                }
+            } else {
+                value.toString()
+            }
+        }
+    }
+
+    private fun typeString(descriptor: String): String = SignatureParser(descriptor).parseType()
+
+    private fun parseMethodSignature(parser: SignatureParser): MethodSignature {
+        val typeParameters = parser.parseTypeParameters()
+        parser.expect('(')
+        val parameters = mutableListOf<String>()
+        while (!parser.skip(')')) {
+            parameters.add(parser.parseType())
+        }
+        val returnType = parser.parseType()
+        val exceptions = mutableListOf<String>()
+        while (parser.skip('^')) {
+            exceptions.add(parser.parseType())
+        }
+        return MethodSignature(typeParameters, parameters, returnType, exceptions)
+    }
+
+    /**
+     * Parses the given generic signature, or returns [default] if there is none or it
+     * cannot be parsed, in which case the caller falls back to the erased descriptor
+     */
+    private fun <T> parseSignature(signature: String?, default: T, parse: (SignatureParser) -> T): T {
+        signature ?: return default
+        return try {
+            parse(SignatureParser(signature))
+        } catch (e: IndexOutOfBoundsException) {
+            default
+        } catch (e: IllegalStateException) {
+            default
+        }
+    }
+
+    private class ClassSignature(
+        val typeParameters: String?,
+        val superClass: String?,
+        val interfaces: List<String>
+    )
+
+    private class MethodSignature(
+        val typeParameters: String?,
+        val parameters: List<String>,
+        val returnType: String,
+        val exceptions: List<String>
+    )
+
+    /**
+     * Turns generic signatures and descriptors (which are a subset of them) into the
+     * Java source type strings used in signature files, such as `java.util.List<? extends T>[]`
+     */
+    private inner class SignatureParser(private val signature: String) {
+        private var offset = 0
+
+        fun atEnd(): Boolean = offset >= signature.length
+
+        fun skip(c: Char): Boolean {
+            if (!atEnd() && signature[offset] == c) {
+                offset++
+                return true
+            }
+            return false
+        }
+
+        fun expect(c: Char) {
+            if (!skip(c)) {
+                error("Expected $c at $offset in $signature")
+            }
+        }
+
+        /** Parses a type parameter declaration such as `<K, V extends java.lang.Comparable<V>>`, if any */
+        fun parseTypeParameters(): String? {
+            if (!skip('<')) {
+                return null
+            }
+            val sb = StringBuilder("<")
+            while (!skip('>')) {
+                if (sb.length > 1) {
+                    sb.append(", ")
+                }
+                val colon = signature.indexOf(':', offset)
+                if (colon == -1) {
+                    error("Expected : at $offset in $signature")
+                }
+                sb.append(signature, offset, colon)
+                offset = colon + 1
+                val bounds = mutableListOf<String>()
+                // The class bound is empty when there are only interface bounds
+                if (signature[offset] != ':') {
+                    val bound = parseType()
+                    if (bound != JAVA_LANG_OBJECT) {
+                        bounds.add(bound)
+                    }
+                }
+                while (skip(':')) {
+                    bounds.add(parseType())
+                }
+                if (bounds.isNotEmpty()) {
+                    sb.append(" extends ").append(bounds.joinToString(" & "))
+                }
+            }
+            return sb.append('>').toString()
+        }
+
+        fun parseType(): String {
+            val c = signature[offset++]
+            return when (c) {
+                'B' -> "byte"
+                'C' -> "char"
+                'D' -> "double"
+                'F' -> "float"
+                'I' -> "int"
+                'J' -> "long"
+                'S' -> "short"
+                'Z' -> "boolean"
+                'V' -> "void"
+                '[' -> parseType() + "[]"
+                'T' -> {
+                    val end = signature.indexOf(';', offset)
+                    if (end == -1) {
+                        error("Unterminated type variable in $signature")
+                    }
+                    val name = signature.substring(offset, end)
+                    offset = end + 1
+                    name
+                }
+                'L' -> parseClassType()
+                else -> error("Unexpected $c at ${offset - 1} in $signature")
+            }
+        }
+
+        private fun parseClassType(): String {
+            val sb = StringBuilder()
+            sb.append(qualifiedName(readName()))
+            while (true) {
+                val c = signature[offset++]
+                when (c) {
+                    ';' -> return sb.toString()
+                    '<' -> {
+                        sb.append('<')
+                        while (!skip('>')) {
+                            if (sb.last() != '<') {
+                                sb.append(',')
+                            }
+                            sb.append(parseTypeArgument())
+                        }
+                        sb.append('>')
+                    }
+                    // Member class of a parameterized outer class
+                    '.' -> sb.append('.').append(readName())
+                    else -> error("Unexpected $c at ${offset - 1} in $signature")
+                }
+            }
+        }
+
+        private fun parseTypeArgument(): String {
+            return when {
+                skip('*') -> "?"
+                skip('+') -> "? extends " + parseType()
+                skip('-') -> "? super " + parseType()
+                else -> parseType()
+            }
+        }
+
+        private fun readName(): String {
+            val start = offset
+            while (true) {
+                val c = signature[offset]
+                if (c == '<' || c == ';' || c == '.') {
+                    break
+                }
+                offset++
+            }
+            return signature.substring(start, offset)
+        }
+    }
+
+    private fun Int.has(flag: Int): Boolean = this and flag != 0
+}
@@ -31,6 +31,9 @@ import com.android.tools.metalava.model.visitors.ApiVisitor
 import com.android.tools.metalava.model.visitors.VisibleItemVisitor
 import com.intellij.util.containers.Stack
 import java.util.Comparator
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
 import java.util.function.Predicate
 
 /**
@@ -101,6 +104,52 @@ class CodebaseComparator {
         compare(visitor, oldTree, newTree, null, null)
     }
 
+    /**
+     * Like [compare], but compares the packages of the two codebases concurrently on a
+     * fork/join pool with [threads] threads. Since the visitors are not thread safe, each
+     * package is compared with its own visitor from [createVisitor] (called on the calling
+     * thread). The visitors are returned in the order the packages are compared in by
+     * [compare], such that their results can be combined the same way a single visitor
+     * would have seen them.
+     */
+    fun <T : ComparisonVisitor> compareByPackage(
+        old: Codebase,
+        new: Codebase,
+        filter: Predicate<Item>? = null,
+        threads: Int,
+        createVisitor: () -> T
+    ): List<T> {
+        val oldTree = createTree(old, filter)
+        val newTree = createTree(new, filter)
+
+        // The top level of the trees are the packages; each step of matching them up
+        // compares one package along with all its classes
+        val steps = mutableListOf<Triple<ItemTree?, ItemTree?, Boolean>>()
+        forEachStep(oldTree, newTree) { oldPackage, newPackage, leftOver ->
+            steps.add(Triple(oldPackage, newPackage, leftOver))
+        }
+        val visitors = steps.map { createVisitor() }
+
+        val pool = ForkJoinPool(threads)
+        try {
+            val tasks = steps.mapIndexed { index, (oldPackage, newPackage, leftOver) ->
+                pool.submit(Callable {
+                    compareStep(visitors[index], oldPackage, newPackage, leftOver, null, null)
+                })
+            }
+            for (task in tasks) {
+                try {
+                    task.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            pool.shutdownNow()
+        }
+        return visitors
+    }
+
     private fun compare(
         visitor: ComparisonVisitor,
         oldList: List<ItemTree>,
@@ -109,6 +158,21 @@ class CodebaseComparator {
         oldParent: Item?
     ) {
         // Debugging tip: You can print out a tree like this: ItemTree.prettyPrint(list)
+        forEachStep(oldList, newList) { oldTree, newTree, leftOver ->
+            compareStep(visitor, oldTree, newTree, leftOver, newParent, oldParent)
+        }
+    }
+
+    /**
+     * Matches up the items of two sorted lists, calling [step] with each pair of matching
+     * items, or with null in place of the item missing from the other list. The last
+     * argument of [step] is true for the items left over once the other list has run out.
+     */
+    private inline fun forEachStep(
+        oldList: List<ItemTree>,
+        newList: List<ItemTree>,
+        step: (ItemTree?, ItemTree?, Boolean) -> Unit
+    ) {
         var index1 = 0
         var index2 = 0
         val length1 = oldList.size
@@ -120,60 +184,75 @@ class CodebaseComparator {
                     // Compare the items
                     val oldTree = oldList[index1]
                     val newTree = newList[index2]
-                    val old = oldTree.item()
-                    val new = newTree.item()
 
-                    val compare = compare(old, new)
+                    val compare = compare(oldTree, newTree)
                     when {
                         compare > 0 -> {
                             index2++
-                            if (new.emit) {
-                                visitAdded(new, oldParent, visitor, newTree)
-                            }
+                            step(null, newTree, false)
                         }
                         compare < 0 -> {
                             index1++
-                            if (old.emit) {
-                                visitRemoved(visitor, old, newParent)
-                            }
+                            step(oldTree, null, false)
                         }
                         else -> {
-                            if (new.emit) {
-                                if (old.emit) {
-                                    visitCompare(visitor, old, new)
-                                } else {
-                                    visitAdded(new, oldParent, visitor, newTree)
-                                }
-                            } else {
-                                if (old.emit) {
-                                    visitRemoved(visitor, old, newParent)
-                                }
-                            }
-
-                            // Compare the children (recurse)
-                            compare(visitor, oldTree.children, newTree.children, newTree.item(), oldTree.item())
-
                             index1++
                             index2++
+                            step(oldTree, newTree, false)
                         }
                     }
                 } else {
                     // All the remaining items in oldList have been deleted
                     while (index1 < length1) {
-                        visitRemoved(visitor, oldList[index1++].item(), newParent)
+                        step(oldList[index1++], null, true)
                     }
                 }
             } else if (index2 < length2) {
                 // All the remaining items in newList have been added
                 while (index2 < length2) {
-                    val newTree = newList[index2++]
-                    val new = newTree.item()
+                    step(null, newList[index2++], true)
+                }
+            } else {
+                break
+            }
+        }
+    }
 
+    private fun compareStep(
+        visitor: ComparisonVisitor,
+        oldTree: ItemTree?,
+        newTree: ItemTree?,
+        leftOver: Boolean,
+        newParent: Item?,
+        oldParent: Item?
+    ) {
+        if (oldTree == null) {
+            val new = newTree!!.item()
+            if (leftOver || new.emit) {
+                visitAdded(new, oldParent, visitor, newTree)
+            }
+        } else if (newTree == null) {
+            val old = oldTree.item()
+            if (leftOver || old.emit) {
+                visitRemoved(visitor, old, newParent)
+            }
+        } else {
+            val old = oldTree.item()
+            val new = newTree.item()
+            if (new.emit) {
+                if (old.emit) {
+                    visitCompare(visitor, old, new)
+                } else {
                     visitAdded(new, oldParent, visitor, newTree)
                 }
             } else {
-                break
+                if (old.emit) {
+                    visitRemoved(visitor, old, newParent)
+                }
             }
+
+            // Compare the children (recurse)
+            compare(visitor, oldTree.children, newTree.children, newTree.item(), oldTree.item())
         }
     }
 
@@ -294,99 +373,118 @@ class CodebaseComparator {
         }
     }
 
-    private fun compare(item1: Item, item2: Item): Int = comparator.compare(item1, item2)
+    private fun compare(tree1: ItemTree, tree2: ItemTree): Int = treeComparator.compare(tree1, tree2)
 
-    companion object {
+    /**
+     * The sort key of an [Item], computed once per [ItemTree] node such that sorting and
+     * matching up the trees doesn't compute the type strings of the parameters of a
+     * method over and over again.
+     */
+    class SortKey(item: Item) : Comparable<SortKey> {
         /** Sorting rank for types */
-        private fun typeRank(item: Item): Int {
-            return when (item) {
-                is PackageItem -> 0
-                is MethodItem -> if (item.isConstructor()) 1 else 2
-                is FieldItem -> 3
-                is ClassItem -> 4
-                is ParameterItem -> 5
-                is AnnotationItem -> 6
-                is PropertyItem -> 7
-                else -> 8
+        val rank: Int = when (item) {
+            is PackageItem -> 0
+            is MethodItem -> if (item.isConstructor()) 1 else 2
+            is FieldItem -> 3
+            is ClassItem -> 4
+            is ParameterItem -> 5
+            is AnnotationItem -> 6
+            is PropertyItem -> 7
+            else -> 8
+        }
+
+        /** The qualified name of packages, classes and annotations, or the name of members */
+        val name: String = when (item) {
+            is PackageItem -> item.qualifiedName()
+            is ClassItem -> item.qualifiedName()
+            is MethodItem -> item.name()
+            is FieldItem -> item.name()
+            is AnnotationItem -> item.qualifiedName() ?: ""
+            is PropertyItem -> item.name()
+            else -> ""
+        }
+
+        /** The index of parameters */
+        val index: Int = if (item is ParameterItem) item.parameterIndex else 0
+
+        /**
+         * The parameter types of methods. Types which only differ in varargs versus arrays, or
+         * in java.lang. prefixes (older signature files may have removed those from wildcard
+         * signatures) are considered the same, so these are the canonical types.
+         */
+        val parameterTypes: Array<String> = if (item is MethodItem) {
+            item.parameters().map { it.type().toCanonicalType(it) }.toTypedArray()
+        } else {
+            emptyArray()
+        }
+
+        /**
+         * Special case: Kotlin coroutines. For parameters in kotlin.coroutines, the type
+         * without the kotlin.coroutines(.experimental) package, such that code using the
+         * experimental coroutines still matches; null for other parameters.
+         */
+        val coroutineTypes: Array<String?> = Array(parameterTypes.size) {
+            val type = parameterTypes[it]
+            if (type.startsWith("kotlin.coroutines.")) {
+                type.removePrefix("kotlin.coroutines.").removePrefix("experimental.")
+            } else {
+                null
             }
         }
 
-        val comparator: Comparator<Item> = Comparator { item1, item2 ->
-            val typeSort = typeRank(item1) - typeRank(item2)
-            when {
-                typeSort != 0 -> typeSort
-                item1 == item2 -> 0
-                else -> when (item1) {
-                    is PackageItem -> {
-                        item1.qualifiedName().compareTo((item2 as PackageItem).qualifiedName())
-                    }
-                    is ClassItem -> {
-                        item1.qualifiedName().compareTo((item2 as ClassItem).qualifiedName())
-                    }
-                    is MethodItem -> {
-                        var delta = item1.name().compareTo((item2 as MethodItem).name())
+        override fun compareTo(other: SortKey): Int {
+            val typeSort = rank - other.rank
+            if (typeSort != 0) {
+                return typeSort
+            }
+            return when (rank) {
+                0, 3, 4, 6, 7 -> name.compareTo(other.name)
+                1, 2 -> {
+                    var delta = name.compareTo(other.name)
+                    if (delta == 0) {
+                        delta = parameterTypes.size - other.parameterTypes.size
                         if (delta == 0) {
-                            val parameters1 = item1.parameters()
-                            val parameters2 = item2.parameters()
-                            val parameterCount1 = parameters1.size
-                            val parameterCount2 = parameters2.size
-                            delta = parameterCount1 - parameterCount2
-                            if (delta == 0) {
-                                for (i in 0 until parameterCount1) {
-                                    val parameter1 = parameters1[i]
-                                    val parameter2 = parameters2[i]
-                                    val type1 = parameter1.type().toTypeString(context = parameter1)
-                                    val type2 = parameter2.type().toTypeString(context = parameter2)
-                                    delta = type1.compareTo(type2)
-                                    if (delta != 0) {
-                                        // Try a little harder:
-                                        //  (1) treat varargs and arrays the same, and
-                                        //  (2) drop java.lang. prefixes from comparisons in wildcard
-                                        //      signatures since older signature files may have removed
-                                        //      those
-                                        val simpleType1 = parameter1.type().toCanonicalType(parameter1)
-                                        val simpleType2 = parameter2.type().toCanonicalType(parameter2)
-                                        delta = simpleType1.compareTo(simpleType2)
-                                        if (delta != 0) {
-                                            // Special case: Kotlin coroutines
-                                            if (simpleType1.startsWith("kotlin.coroutines.") && simpleType2.startsWith("kotlin.coroutines.")) {
-                                                val t1 = simpleType1.removePrefix("kotlin.coroutines.").removePrefix("experimental.")
-                                                val t2 = simpleType2.removePrefix("kotlin.coroutines.").removePrefix("experimental.")
-                                                delta = t1.compareTo(t2)
-                                                if (delta != 0) {
-                                                    break
-                                                }
-                                            } else {
-                                                break
-                                            }
-                                        }
-                                    }
+                            for (i in 0 until parameterTypes.size) {
+                                val coroutineType1 = coroutineTypes[i]
+                                val coroutineType2 = other.coroutineTypes[i]
+                                delta = if (coroutineType1 != null && coroutineType2 != null) {
+                                    coroutineType1.compareTo(coroutineType2)
+                                } else {
+                                    parameterTypes[i].compareTo(other.parameterTypes[i])
+                                }
+                                if (delta != 0) {
+                                    break
                                 }
                             }
                         }
-                        delta
-                    }
-                    is FieldItem -> {
-                        item1.name().compareTo((item2 as FieldItem).name())
-                    }
-                    is ParameterItem -> {
-                        item1.parameterIndex.compareTo((item2 as ParameterItem).parameterIndex)
-                    }
-                    is AnnotationItem -> {
-                        (item1.qualifiedName() ?: "").compareTo((item2 as AnnotationItem).qualifiedName() ?: "")
-                    }
-                    is PropertyItem -> {
-                        item1.name().compareTo((item2 as PropertyItem).name())
-                    }
-                    else -> {
-                        error("Unexpected item type ${item1.javaClass}")
                     }
+                    delta
                 }
+                5 -> index.compareTo(other.index)
+                else -> error("Unexpected item type with name $name")
             }
         }
+    }
+
+    companion object {
+        /**
+         * Compares items the way [ItemTree]s are sorted and matched up. This computes the
+         * [SortKey]s on every call; when comparing the same items repeatedly, compare the
+         * keys instead.
+         */
+        val comparator: Comparator<Item> = Comparator { item1, item2 ->
+            if (item1 == item2) 0 else SortKey(item1).compareTo(SortKey(item2))
+        }
 
         val treeComparator: Comparator<ItemTree> = Comparator { item1, item2 ->
-            comparator.compare(item1.item, item2.item())
+            val key1 = item1.key()
+            val key2 = item2.key()
+            val typeSort = key1.rank - key2.rank
+            when {
+                typeSort != 0 -> typeSort
+                item1.item == item2.item -> 0
+                else -> key1.compareTo(key2)
+            }
         }
     }
 
@@ -441,10 +539,13 @@ class CodebaseComparator {
 
     data class ItemTree(val item: Item?) : Comparable<ItemTree> {
         val children: MutableList<ItemTree> = mutableListOf()
+        /** Computed up front, and never changes: the items are not modified while comparing */
+        private val key: SortKey? = item?.let { SortKey(it) }
         fun item(): Item = item!! // Only the root note can be null, and this method should never be called on it
+        fun key(): SortKey = key!!
 
         override fun compareTo(other: ItemTree): Int {
-            return comparator.compare(item(), other.item())
+            return treeComparator.compare(this, other)
         }
 
         override fun toString(): String {
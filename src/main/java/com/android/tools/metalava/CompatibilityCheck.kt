@@ -82,6 +82,12 @@ class CompatibilityCheck(
 
     var foundProblems = false
 
+    /**
+     * The issues found but not yet reported. Issues are only reported once the comparison
+     * is done (see [Comparison.report]), such that comparisons can run on other threads.
+     */
+    private val pendingIssues = mutableListOf<Triple<Issue, Item, String>>()
+
     override fun compare(old: Item, new: Item) {
         val oldModifiers = old.modifiers
         val newModifiers = new.modifiers
@@ -855,26 +861,43 @@ class CompatibilityCheck(
         item: Item,
         message: String
     ) {
-        if (reporter.report(issue, item, message) && configuration.getSeverity(issue) == Severity.ERROR) {
-            foundProblems = true
+        pendingIssues.add(Triple(issue, item, message))
+    }
+
+    /** Reports the issues collected so far, in the order they were found */
+    private fun reportPendingIssues() {
+        for ((issue, item, message) in pendingIssues) {
+            if (reporter.report(issue, item, message) && configuration.getSeverity(issue) == Severity.ERROR) {
+                foundProblems = true
+            }
         }
+        pendingIssues.clear()
     }
 
-    companion object {
-        fun checkCompatibility(
-            codebase: Codebase,
-            previous: Codebase,
-            releaseType: ReleaseType,
-            apiType: ApiType,
-            base: Codebase? = null
-        ) {
-            val filter = apiType.getEmitFilter()
-            val checker = CompatibilityCheck(filter, previous, apiType, base, getReporterForReleaseType(releaseType))
+    /**
+     * The result of comparing two codebases (see [compare]), whose issues have not been
+     * reported yet
+     */
+    class Comparison internal constructor(
+        private val checkers: List<CompatibilityCheck>,
+        private val previous: Codebase,
+        private val releaseType: ReleaseType,
+        private val apiType: ApiType
+    ) {
+        /**
+         * Reports the issues found on the calling thread, in the order a single checker
+         * would have found them (and thus with the same baseline matches), and aborts if
+         * there were compatibility problems
+         */
+        fun report() {
             val issueConfiguration = releaseType.getIssueConfiguration()
             val previousConfiguration = configuration
-            try {
+            val foundProblems = try {
                 configuration = issueConfiguration
-                CodebaseComparator().compare(checker, previous, codebase, filter)
+                for (checker in checkers) {
+                    checker.reportPendingIssues()
+                }
+                checkers.any { it.foundProblems }
             } finally {
                 configuration = previousConfiguration
             }
@@ -882,10 +905,49 @@ class CompatibilityCheck(
             val message = "Aborting: Found compatibility problems checking " +
                 "the ${apiType.displayName} API against the API in ${previous.location}"
 
-            if (checker.foundProblems) {
+            if (foundProblems) {
                 throw DriverException(exitCode = -1, stderr = message)
             }
         }
+    }
+
+    companion object {
+        fun checkCompatibility(
+            codebase: Codebase,
+            previous: Codebase,
+            releaseType: ReleaseType,
+            apiType: ApiType,
+            base: Codebase? = null
+        ) {
+            compare(codebase, previous, releaseType, apiType, base, options.threads).report()
+        }
+
+        /**
+         * Compares [codebase] with [previous] without reporting the issues found, which is
+         * left to [Comparison.report]; comparisons can therefore run on any thread. With
+         * more than one of [threads], the packages are compared concurrently.
+         */
+        fun compare(
+            codebase: Codebase,
+            previous: Codebase,
+            releaseType: ReleaseType,
+            apiType: ApiType,
+            base: Codebase? = null,
+            threads: Int = 1
+        ): Comparison {
+            val filter = apiType.getEmitFilter()
+            val reporter = getReporterForReleaseType(releaseType)
+            val checkers = if (threads > 1) {
+                CodebaseComparator().compareByPackage(previous, codebase, filter, threads) {
+                    CompatibilityCheck(filter, previous, apiType, base, reporter)
+                }
+            } else {
+                val checker = CompatibilityCheck(filter, previous, apiType, base, reporter)
+                CodebaseComparator().compare(checker, previous, codebase, filter)
+                listOf(checker)
+            }
+            return Comparison(checkers, previous, releaseType, apiType)
+        }
 
         private fun getReporterForReleaseType(releaseType: ReleaseType): Reporter = when (releaseType) {
             ReleaseType.DEV -> options.reporterCompatibilityCurrent
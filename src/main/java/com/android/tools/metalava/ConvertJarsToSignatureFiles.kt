@@ -17,6 +17,7 @@
 package com.android.tools.metalava
 
 import com.android.SdkConstants
+import com.android.tools.metalava.doclava1.Issues
 import com.android.tools.metalava.model.Codebase
 import com.android.tools.metalava.model.FieldItem
 import com.android.tools.metalava.model.Item
@@ -24,6 +25,7 @@ import com.android.tools.metalava.model.MethodItem
 import com.android.tools.metalava.model.PackageItem
 import com.android.tools.metalava.model.SUPPORT_TYPE_USE_ANNOTATIONS
 import com.android.tools.metalava.model.visitors.ApiVisitor
+import com.google.common.base.Stopwatch
 import com.google.common.io.ByteStreams
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.Opcodes
@@ -32,6 +34,14 @@ import org.objectweb.asm.tree.FieldNode
 import org.objectweb.asm.tree.MethodNode
 import java.io.File
 import java.io.IOException
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.TimeUnit.SECONDS
 import java.util.function.Predicate
 import java.util.zip.ZipFile
 
@@ -41,109 +51,213 @@ import java.util.zip.ZipFile
  */
 class ConvertJarsToSignatureFiles {
     fun convertJars(root: File) {
-        var api = 1
-        while (true) {
-            val apiJar = File(
-                root,
-                if (api <= 3)
-                    "prebuilts/tools/common/api-versions/android-$api/android.jar"
-                else
-                    "prebuilts/sdk/$api/public/android.jar"
-            )
-            if (!apiJar.isFile) {
-                break
+        val levels = mutableListOf<Int>()
+        while (getApiJar(root, levels.size + 1).isFile) {
+            levels.add(levels.size + 1)
+        }
+        if (levels.isEmpty()) {
+            return
+        }
+
+        // The IntelliJ environment used to load jar files through PSI is shared by the
+        // whole process, so more than one thread is only allowed when the jars are read
+        // from their class files (see Options.checkFlagConsistency)
+        val threads = Math.min(options.threads, levels.size)
+        if (threads <= 1) {
+            for (api in levels) {
+                report(convertLevel(root, api))
             }
-            val signatureFile = "prebuilts/sdk/$api/public/api/android.txt"
-            val oldApiFile = File(root, "prebuilts/sdk/$api/public/api/android.txt")
-            val newApiFile =
-                // Place new-style signature files in separate files?
-                // File(root, "prebuilts/sdk/$api/public/api/android.${if (options.compatOutput) "txt" else "v2.txt"}")
-                File(root, "prebuilts/sdk/$api/public/api/android.txt")
-
-            progress("Writing signature files $signatureFile for $apiJar")
-
-            // Treat android.jar file as not filtered since they contain misc stuff that shouldn't be
-            // there: package private super classes etc.
-            val jarCodebase = loadFromJarFile(apiJar, null, preFiltered = false)
-            val apiEmit = ApiType.PUBLIC_API.getEmitFilter()
-            val apiReference = ApiType.PUBLIC_API.getReferenceFilter()
-
-            if (api >= 28) {
-                // As of API 28 we'll put nullness annotations into the jar but some of them
-                // may be @RecentlyNullable/@RecentlyNonNull. Translate these back into
-                // normal @Nullable/@NonNull
-                jarCodebase.accept(object : ApiVisitor() {
-                    override fun visitItem(item: Item) {
-                        unmarkRecent(item)
-                        super.visitItem(item)
-                    }
+            return
+        }
+
+        progress("Converting ${levels.size} API levels using $threads threads: ")
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val completion = ExecutorCompletionService<ConvertedLevel>(executor)
+            for (api in levels) {
+                completion.submit(Callable { convertLevel(root, api) })
+            }
+
+            // Write the signature file and print the progress of each level in order, as
+            // soon as it and all the levels before it are done, and stop at the first level
+            // that fails. Levels after it may already have been converted, but they are
+            // neither written nor reported, so the tree is left as if the levels had been
+            // converted one by one
+            val converted = arrayOfNulls<ConvertedLevel>(levels.size)
+            var next = 0
+            repeat(levels.size) {
+                val level = try {
+                    completion.take().get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+                converted[level.api - 1] = level
+                while (next < levels.size) {
+                    report(converted[next] ?: break)
+                    next++
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
 
-                    private fun unmarkRecent(new: Item) {
-                        val annotation = NullnessMigration.findNullnessAnnotation(new) ?: return
-                        // Nullness information change: Add migration annotation
-                        val annotationClass = if (annotation.isNullable()) ANDROIDX_NULLABLE else ANDROIDX_NONNULL
+    /** The outcome of converting the jar file of one API level */
+    private class ConvertedLevel(
+        val api: Int,
+        /** The progress messages printed while converting */
+        val messages: List<String>,
+        /** The signature file to write the [signatures] to, unless converting failed */
+        val apiFile: File? = null,
+        /** The contents of the [apiFile] */
+        val signatures: String = "",
+        /** How long creating the [signatures] took, in nanoseconds */
+        val signaturesTime: Long = 0,
+        /** The error converting the level failed with, if any */
+        val failure: Throwable? = null
+    )
 
-                        val modifiers = new.mutableModifiers()
-                        modifiers.removeAnnotation(annotation)
+    /**
+     * Prints the progress of the given converted [level] and writes its signature file,
+     * or throws the error converting it failed with. Only called on the calling thread,
+     * in level order.
+     */
+    private fun report(level: ConvertedLevel) {
+        level.messages.forEach { progress(it) }
+        level.failure?.let { throw it }
+        val apiFile = level.apiFile ?: return
 
-                        // Don't map annotation names - this would turn newly non null back into non null
-                        modifiers.addAnnotation(new.codebase.createAnnotation("@$annotationClass", new, mapName = false))
-                    }
-                })
-                assert(!SUPPORT_TYPE_USE_ANNOTATIONS) { "We'll need to rewrite type annotations here too" }
+        val localTimer = Stopwatch.createStarted()
+        try {
+            apiFile.writeText(level.signatures)
+        } catch (e: IOException) {
+            reporter.report(Issues.IO_ERROR, apiFile, "Cannot open file for write.")
+            return
+        }
+        val seconds = SECONDS.convert(level.signaturesTime + localTimer.elapsed(NANOSECONDS), NANOSECONDS)
+        progress("$PROGRAM_NAME wrote API file $apiFile in $seconds seconds\n")
+
+        // Delete older redundant .xml files
+        val xmlFile = File(apiFile.parentFile, "android.xml")
+        if (xmlFile.isFile) {
+            xmlFile.delete()
+        }
+    }
+
+    private fun getApiJar(root: File, api: Int): File {
+        return File(
+            root,
+            if (api <= 3)
+                "prebuilts/tools/common/api-versions/android-$api/android.jar"
+            else
+                "prebuilts/sdk/$api/public/android.jar"
+        )
+    }
+
+    /**
+     * Converts the jar file of the given [api] level. This may run on any thread, so the
+     * progress messages and the contents of the signature file are collected and returned,
+     * and the caller writes the file (see [report]).
+     */
+    private fun convertLevel(root: File, api: Int): ConvertedLevel {
+        val messages = mutableListOf<String>()
+        return try {
+            collectProgress(messages) {
+                convertLevel(root, api, messages)
             }
+        } catch (e: Throwable) {
+            ConvertedLevel(api, messages, failure = e)
+        }
+    }
 
-            // Sadly the old signature files have some APIs recorded as deprecated which
-            // are not in fact deprecated in the jar files. Try to pull this back in.
+    private fun convertLevel(root: File, api: Int, messages: List<String>): ConvertedLevel {
+        val apiJar = getApiJar(root, api)
+        val signatureFile = "prebuilts/sdk/$api/public/api/android.txt"
+        val oldApiFile = File(root, "prebuilts/sdk/$api/public/api/android.txt")
+        val newApiFile =
+            // Place new-style signature files in separate files?
+            // File(root, "prebuilts/sdk/$api/public/api/android.${if (options.compatOutput) "txt" else "v2.txt"}")
+            File(root, "prebuilts/sdk/$api/public/api/android.txt")
 
-            val oldRemovedFile = File(root, "prebuilts/sdk/$api/public/api/removed.txt")
-            if (oldRemovedFile.isFile) {
-                val oldCodebase = SignatureFileLoader.load(oldRemovedFile)
-                val visitor = object : ComparisonVisitor() {
-                    override fun compare(old: MethodItem, new: MethodItem) {
-                        new.removed = true
-                        progress("Removed $old")
-                    }
+        progress("Writing signature files $signatureFile for $apiJar")
 
-                    override fun compare(old: FieldItem, new: FieldItem) {
-                        new.removed = true
-                        progress("Removed $old")
-                    }
+        // Treat android.jar file as not filtered since they contain misc stuff that shouldn't be
+        // there: package private super classes etc.
+        val jarCodebase = loadFromJarFile(apiJar, null, preFiltered = false)
+        val apiEmit = ApiType.PUBLIC_API.getEmitFilter()
+        val apiReference = ApiType.PUBLIC_API.getReferenceFilter()
+
+        if (api >= 28) {
+            // As of API 28 we'll put nullness annotations into the jar but some of them
+            // may be @RecentlyNullable/@RecentlyNonNull. Translate these back into
+            // normal @Nullable/@NonNull
+            jarCodebase.accept(object : ApiVisitor() {
+                override fun visitItem(item: Item) {
+                    unmarkRecent(item)
+                    super.visitItem(item)
                 }
-                CodebaseComparator().compare(visitor, oldCodebase, jarCodebase, null)
-            }
 
-            // Read deprecated attributes. Seem to be missing from code model;
-            // try to read via ASM instead since it must clearly be there.
-            markDeprecated(jarCodebase, apiJar, apiJar.path)
-
-            // ASM doesn't seem to pick up everything that's actually there according to
-            // javap. So as another fallback, read from the existing signature files:
-            if (oldApiFile.isFile) {
-                val oldCodebase = SignatureFileLoader.load(oldApiFile)
-                val visitor = object : ComparisonVisitor() {
-                    override fun compare(old: Item, new: Item) {
-                        if (old.deprecated && !new.deprecated && old !is PackageItem) {
-                            new.deprecated = true
-                            progress("Recorded deprecation from previous signature file for $old")
-                        }
-                    }
+                private fun unmarkRecent(new: Item) {
+                    val annotation = NullnessMigration.findNullnessAnnotation(new) ?: return
+                    // Nullness information change: Add migration annotation
+                    val annotationClass = if (annotation.isNullable()) ANDROIDX_NULLABLE else ANDROIDX_NONNULL
+
+                    val modifiers = new.mutableModifiers()
+                    modifiers.removeAnnotation(annotation)
+
+                    // Don't map annotation names - this would turn newly non null back into non null
+                    modifiers.addAnnotation(new.codebase.createAnnotation("@$annotationClass", new, mapName = false))
                 }
-                CodebaseComparator().compare(visitor, oldCodebase, jarCodebase, null)
-            }
+            })
+            assert(!SUPPORT_TYPE_USE_ANNOTATIONS) { "We'll need to rewrite type annotations here too" }
+        }
+
+        // Sadly the old signature files have some APIs recorded as deprecated which
+        // are not in fact deprecated in the jar files. Try to pull this back in.
 
-            createReportFile(jarCodebase, newApiFile, "API") { printWriter ->
-                SignatureWriter(printWriter, apiEmit, apiReference, jarCodebase.preFiltered)
+        val oldRemovedFile = File(root, "prebuilts/sdk/$api/public/api/removed.txt")
+        if (oldRemovedFile.isFile) {
+            val oldCodebase = SignatureFileLoader.load(oldRemovedFile)
+            val visitor = object : ComparisonVisitor() {
+                override fun compare(old: MethodItem, new: MethodItem) {
+                    new.removed = true
+                    progress("Removed $old")
+                }
+
+                override fun compare(old: FieldItem, new: FieldItem) {
+                    new.removed = true
+                    progress("Removed $old")
+                }
             }
+            CodebaseComparator().compare(visitor, oldCodebase, jarCodebase, null)
+        }
+
+        // Read deprecated attributes. Seem to be missing from code model;
+        // try to read via ASM instead since it must clearly be there.
+        markDeprecated(jarCodebase, apiJar, apiJar.path)
 
-            // Delete older redundant .xml files
-            val xmlFile = File(newApiFile.parentFile, "android.xml")
-            if (xmlFile.isFile) {
-                xmlFile.delete()
+        // ASM doesn't seem to pick up everything that's actually there according to
+        // javap. So as another fallback, read from the existing signature files:
+        if (oldApiFile.isFile) {
+            val oldCodebase = SignatureFileLoader.load(oldApiFile)
+            val visitor = object : ComparisonVisitor() {
+                override fun compare(old: Item, new: Item) {
+                    if (old.deprecated && !new.deprecated && old !is PackageItem) {
+                        new.deprecated = true
+                        progress("Recorded deprecation from previous signature file for $old")
+                    }
+                }
             }
+            CodebaseComparator().compare(visitor, oldCodebase, jarCodebase, null)
+        }
 
-            api++
+        progress("Writing API file: ")
+        val localTimer = Stopwatch.createStarted()
+        val signatures = StringWriter()
+        PrintWriter(signatures).use { printWriter ->
+            jarCodebase.accept(SignatureWriter(printWriter, apiEmit, apiReference, jarCodebase.preFiltered))
         }
+        return ConvertedLevel(api, messages, newApiFile, signatures.toString(), localTimer.elapsed(NANOSECONDS))
     }
 
     private fun markDeprecated(codebase: Codebase, file: File, path: String) {
@@ -69,22 +69,16 @@ fun getDiff(
     after: Array<String>,
     windowSize: Int
 ): String {
-    // Based on the LCS section in http://introcs.cs.princeton.edu/java/96optimization/
+    // Originally based on the LCS section in http://introcs.cs.princeton.edu/java/96optimization/,
+    // which needs an (n + 1) * (m + 1) table; for large signature files that no longer fits in
+    // memory, so the common lines are now computed with Myers' linear space algorithm instead
     val sb = StringBuilder()
     val n = before.size
     val m = after.size
 
-    // Compute longest common subsequence of x[i..m] and y[j..n] bottom up
-    val lcs = Array(n + 1) { IntArray(m + 1) }
-    for (i in n - 1 downTo 0) {
-        for (j in m - 1 downTo 0) {
-            if (before[i] == after[j]) {
-                lcs[i][j] = lcs[i + 1][j + 1] + 1
-            } else {
-                lcs[i][j] = Math.max(lcs[i + 1][j], lcs[i][j + 1])
-            }
-        }
-    }
+    val common = LongestCommonSubsequence(before, after)
+    val keepBefore = common.keepBefore
+    val keepAfter = common.keepAfter
 
     var i = 0
     var j = 0
@@ -108,7 +102,7 @@ fun getDiff(
             }
 
             while (i < n && j < m && before[i] != after[j]) {
-                if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                if (!keepBefore[i] || keepAfter[j]) {
                     sb.append('-')
                     if (!before[i].trim { it <= ' ' }.isEmpty()) {
                         sb.append(' ')
@@ -166,3 +160,136 @@ fun getDiff(
 
     return sb.toString()
 }
+
+/**
+ * Computes a longest common subsequence of two line arrays using the linear space
+ * variation of Myers' O(ND) difference algorithm ("An O(ND) Difference Algorithm and
+ * Its Variations", section 4b): the middle snake of the shortest edit script is found
+ * by searching from both ends at once, and the halves on either side of it are solved
+ * recursively. Memory use is O(n + m).
+ */
+private class LongestCommonSubsequence(
+    private val a: Array<String>,
+    private val b: Array<String>
+) {
+    /** Whether each line in the first array is part of the common subsequence */
+    val keepBefore = BooleanArray(a.size)
+
+    /** Whether each line in the second array is part of the common subsequence */
+    val keepAfter = BooleanArray(b.size)
+
+    // Furthest reaching x for each diagonal k, offset by the maximum edit distance;
+    // shared by all recursive calls since each call is done with them before recursing
+    private val forward = IntArray(a.size + b.size + 4)
+    private val backward = IntArray(a.size + b.size + 4)
+
+    // Middle snake found by the last call to findMiddleSnake
+    private var snakeStartX = 0
+    private var snakeStartY = 0
+    private var snakeEndX = 0
+    private var snakeEndY = 0
+
+    init {
+        compute(0, a.size, 0, b.size)
+    }
+
+    private fun compute(aStart: Int, aEnd: Int, bStart: Int, bEnd: Int) {
+        var a0 = aStart
+        var a1 = aEnd
+        var b0 = bStart
+        var b1 = bEnd
+
+        // Common prefix and suffix are always part of the subsequence
+        while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+            keepBefore[a0++] = true
+            keepAfter[b0++] = true
+        }
+        while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+            keepBefore[--a1] = true
+            keepAfter[--b1] = true
+        }
+        if (a0 == a1 || b0 == b1) {
+            return
+        }
+
+        findMiddleSnake(a0, a1, b0, b1)
+        val x0 = snakeStartX
+        val y0 = snakeStartY
+        val x1 = snakeEndX
+        val y1 = snakeEndY
+        for (k in 0 until x1 - x0) {
+            keepBefore[x0 + k] = true
+            keepAfter[y0 + k] = true
+        }
+        compute(a0, x0, b0, y0)
+        compute(x1, a1, y1, b1)
+    }
+
+    private fun findMiddleSnake(a0: Int, a1: Int, b0: Int, b1: Int) {
+        val n = a1 - a0
+        val m = b1 - b0
+        val delta = n - m
+        val odd = (delta and 1) != 0
+        val maxD = (n + m + 1) / 2
+        val offset = maxD + 1
+        forward[offset + 1] = 0
+        backward[offset + 1] = 0
+
+        for (d in 0..maxD) {
+            // Forward search from the top left corner
+            for (k in -d..d step 2) {
+                var x = if (k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]) {
+                    forward[offset + k + 1]
+                } else {
+                    forward[offset + k - 1] + 1
+                }
+                var y = x - k
+                val startX = x
+                val startY = y
+                while (x < n && y < m && a[a0 + x] == b[b0 + y]) {
+                    x++
+                    y++
+                }
+                forward[offset + k] = x
+                if (odd && k - delta >= -(d - 1) && k - delta <= d - 1 &&
+                    x + backward[offset + delta - k] >= n
+                ) {
+                    setSnake(a0 + startX, b0 + startY, a0 + x, b0 + y)
+                    return
+                }
+            }
+
+            // Backward search from the bottom right corner, in reversed coordinates
+            for (k in -d..d step 2) {
+                var x = if (k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1]) {
+                    backward[offset + k + 1]
+                } else {
+                    backward[offset + k - 1] + 1
+                }
+                var y = x - k
+                val startX = x
+                val startY = y
+                while (x < n && y < m && a[a1 - 1 - x] == b[b1 - 1 - y]) {
+                    x++
+                    y++
+                }
+                backward[offset + k] = x
+                if (!odd && delta - k >= -d && delta - k <= d &&
+                    x + forward[offset + delta - k] >= n
+                ) {
+                    setSnake(a1 - x, b1 - y, a1 - startX, b1 - startY)
+                    return
+                }
+            }
+        }
+
+        error("No middle snake found")
+    }
+
+    private fun setSnake(startX: Int, startY: Int, endX: Int, endY: Int) {
+        snakeStartX = startX
+        snakeStartY = startY
+        snakeEndX = endX
+        snakeEndY = endY
+    }
+}
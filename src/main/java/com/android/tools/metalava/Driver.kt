@@ -34,6 +34,7 @@ import com.android.tools.lint.checks.infrastructure.ClassName
 import com.android.tools.lint.detector.api.assertionsEnabled
 import com.android.tools.metalava.CompatibilityCheck.CheckRequest
 import com.android.tools.metalava.apilevels.ApiGenerator
+import com.android.tools.metalava.doclava1.ApiFlagsCache
 import com.android.tools.metalava.doclava1.ApiPredicate
 import com.android.tools.metalava.doclava1.Issues
 import com.android.tools.metalava.doclava1.FilterPredicate
@@ -42,16 +43,18 @@ import com.android.tools.metalava.model.ClassItem
 import com.android.tools.metalava.model.Codebase
 import com.android.tools.metalava.model.Item
 import com.android.tools.metalava.model.PackageDocs
+import com.android.tools.metalava.model.defaultConfiguration
 import com.android.tools.metalava.model.psi.PsiBasedCodebase
+import com.android.tools.metalava.model.psi.TypeStringCache
 import com.android.tools.metalava.model.psi.packageHtmlToJavadoc
 import com.android.tools.metalava.model.visitors.ApiVisitor
 import com.android.tools.metalava.stub.StubWriter
 import com.android.utils.StdLogger
 import com.android.utils.StdLogger.Level.ERROR
 import com.google.common.base.Stopwatch
-import com.google.common.collect.Lists
 import com.google.common.io.Files
 import com.intellij.core.CoreApplicationEnvironment
+import com.intellij.openapi.Disposable
 import com.intellij.openapi.diagnostic.DefaultLogger
 import com.intellij.openapi.extensions.Extensions
 import com.intellij.openapi.roots.LanguageLevelProjectExtension
@@ -64,7 +67,12 @@ import java.io.IOException
 import java.io.OutputStream
 import java.io.OutputStreamWriter
 import java.io.PrintWriter
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeUnit.MILLISECONDS
 import java.util.concurrent.TimeUnit.SECONDS
 import java.util.function.Predicate
 import kotlin.text.Charsets.UTF_8
@@ -83,11 +91,33 @@ val BANNER: String = """
 """.trimIndent()
 
 fun main(args: Array<String>) {
+    if (args.contains(ARG_PERSISTENT_WORKER)) {
+        // Responses go to stdout, so send anything else printed there to stderr instead
+        val responses = System.out
+        System.setOut(System.err)
+        runWorker(System.`in`, responses)
+        return
+    }
     run(args, setExitCode = true)
 }
 
 internal var hasFileReadViolations = false
 
+/**
+ * Parent of the project environments created during the current [run]. Disposed at
+ * the end of each run, even when the application environment is kept around for the
+ * next request of a persistent worker (see [runWorker]).
+ */
+private var projectDisposable: Disposable? = null
+
+/**
+ * The IntelliJ application environment, once a project environment has been created.
+ * Runs which only read signature files never need one, so they don't pay for starting
+ * it (or for disposing it at the end of the run).
+ */
+internal var applicationEnvironment: LintCoreApplicationEnvironment? = null
+    private set
+
 /**
  * The metadata driver is a command line interface to extracting various metadata
  * from a source tree (or existing signature files etc). Run with --help to see
@@ -97,9 +127,11 @@ fun run(
     originalArgs: Array<String>,
     stdout: PrintWriter = PrintWriter(OutputStreamWriter(System.out)),
     stderr: PrintWriter = PrintWriter(OutputStreamWriter(System.err)),
-    setExitCode: Boolean = false
+    setExitCode: Boolean = false,
+    disposeEnvironment: Boolean = true
 ): Boolean {
     var exitCode = 0
+    var mainOptions: Options? = null
 
     try {
         val modifiedArgs = preprocessArgv(originalArgs)
@@ -112,6 +144,7 @@ fun run(
         // Actual work begins here.
         compatibility = Compatibility(compat = Options.useCompatMode(modifiedArgs))
         options = Options(modifiedArgs, stdout, stderr)
+        mainOptions = options
 
         maybeActivateSandbox()
 
@@ -120,9 +153,25 @@ fun run(
         if (options.allReporters.any { it.hasErrors() } && !options.passBaselineUpdates) {
             exitCode = -1
         }
+
+        // Produce any additional API surfaces; these reuse the parsed sources when possible
+        for (surfaceArgs in mainOptions.surfaces) {
+            finishOptions(stdout, stderr)
+            defaultConfiguration.reset()
+            // Signature files loaded for the previous surface were filtered and checked
+            // with its show annotations
+            SignatureFileLoader.clear()
+            compatibility = Compatibility(compat = Options.useCompatMode(surfaceArgs))
+            options = Options(surfaceArgs, stdout, stderr)
+            processFlags()
+            if (options.allReporters.any { it.hasErrors() } && !options.passBaselineUpdates) {
+                exitCode = -1
+            }
+        }
+
         if (hasFileReadViolations) {
-            stderr.println("$PROGRAM_NAME detected access to files that are not explicitly specified. See ${options.strictInputViolationsFile} for details.")
-            if (options.strictInputFiles == Options.StrictInputFileMode.STRICT) {
+            stderr.println("$PROGRAM_NAME detected access to files that are not explicitly specified. See ${mainOptions.strictInputViolationsFile} for details.")
+            if (mainOptions.strictInputFiles == Options.StrictInputFileMode.STRICT) {
                 exitCode = -1
             }
         }
@@ -137,9 +186,30 @@ fun run(
         }
         exitCode = e.exitCode
     } finally {
-        Disposer.dispose(LintCoreApplicationEnvironment.get().parentDisposable)
+        sharedSources = null
+        projectDisposable?.let { Disposer.dispose(it) }
+        projectDisposable = null
+        if (disposeEnvironment) {
+            applicationEnvironment?.let { Disposer.dispose(it.parentDisposable) }
+            applicationEnvironment = null
+        }
+    }
+
+    finishOptions(stdout, stderr)
+    (mainOptions ?: options).strictInputViolationsPrintWriter?.close()
+
+    stdout.flush()
+    stderr.flush()
+
+    if (setExitCode) {
+        exit(exitCode)
     }
 
+    return exitCode == 0
+}
+
+/** Updates and closes the baseline files and reports the errors found with the current [options] */
+private fun finishOptions(stdout: PrintWriter, stderr: PrintWriter) {
     // Update and close all baseline files.
     options.allBaselines.forEach { baseline ->
         if (options.verbose) {
@@ -153,21 +223,11 @@ fun run(
     }
 
     options.reportEvenIfSuppressedWriter?.close()
-    options.strictInputViolationsPrintWriter?.close()
 
     // Show failure messages, if any.
     options.allReporters.forEach {
         it.writeErrorMessage(stderr)
     }
-
-    stdout.flush()
-    stderr.flush()
-
-    if (setExitCode) {
-        exit(exitCode)
-    }
-
-    return exitCode == 0
 }
 
 private fun exit(exitCode: Int = 0) {
@@ -215,10 +275,15 @@ private fun maybeActivateSandbox() {
 }
 
 private fun processFlags() {
-    val stopwatch = Stopwatch.createStarted()
-
     processNonCodebaseFlags()
 
+    if (options.mergeShards.isNotEmpty()) {
+        mergeShards(options.mergeShards)
+        return
+    }
+
+    val stopwatch = Stopwatch.createStarted()
+
     val sources = options.sources
     val codebase =
         if (sources.size >= 1 && sources[0].path.endsWith(DOT_TXT)) {
@@ -251,7 +316,10 @@ private fun processFlags() {
     val apiLevelJars = options.apiLevelJars
     if (androidApiLevelXml != null && apiLevelJars != null) {
         progress("Generating API levels XML descriptor file, ${androidApiLevelXml.name}: ")
-        ApiGenerator.generate(apiLevelJars, androidApiLevelXml, codebase)
+        ApiGenerator.generate(
+            apiLevelJars, androidApiLevelXml, codebase, options.threads,
+            options.cacheDir?.let { File(it, "api-levels") }
+        )
     }
 
     if (options.docStubsDir != null && codebase.supportsDocumentation()) {
@@ -275,13 +343,16 @@ private fun processFlags() {
     }
 
     // Based on the input flags, generates various output files such
-    // as signature files and/or stubs files
+    // as signature files and/or stubs files. The signature style files
+    // are only collected here and then written by createReportFiles, possibly
+    // in parallel (see --parallel-outputs); none of them modify the codebase.
+    val reportFiles = mutableListOf<ReportFile>()
     options.apiFile?.let { apiFile ->
         val apiType = ApiType.PUBLIC_API
         val apiEmit = apiType.getEmitFilter()
         val apiReference = apiType.getReferenceFilter()
 
-        createReportFile(codebase, apiFile, "API") { printWriter ->
+        reportFiles += ReportFile(codebase, apiFile, "API") { printWriter ->
             SignatureWriter(printWriter, apiEmit, apiReference, codebase.preFiltered)
         }
     }
@@ -292,7 +363,7 @@ private fun processFlags() {
         val apiReference = ApiPredicate(ignoreShown = true)
         val dexApiEmit = memberIsNotCloned.and(apiFilter)
 
-        createReportFile(
+        reportFiles += ReportFile(
             codebase, apiFile, "DEX API"
         ) { printWriter -> DexApiWriter(printWriter, dexApiEmit, apiReference) }
     }
@@ -302,7 +373,7 @@ private fun processFlags() {
         val apiEmit = apiType.getEmitFilter()
         val apiReference = apiType.getReferenceFilter()
 
-        createReportFile(codebase, apiFile, "XML API") { printWriter ->
+        reportFiles += ReportFile(codebase, apiFile, "XML API") { printWriter ->
             JDiffXmlWriter(printWriter, apiEmit, apiReference, codebase.preFiltered)
         }
     }
@@ -312,7 +383,7 @@ private fun processFlags() {
         val apiEmit = apiType.getEmitFilter()
         val apiReference = apiType.getReferenceFilter()
 
-        createReportFile(
+        reportFiles += ReportFile(
             codebase, apiFile, "DEX API Mapping"
         ) { printWriter ->
             DexApiWriter(
@@ -330,7 +401,7 @@ private fun processFlags() {
         val removedEmit = apiType.getEmitFilter()
         val removedReference = apiType.getReferenceFilter()
 
-        createReportFile(unfiltered, apiFile, "removed API") { printWriter ->
+        reportFiles += ReportFile(unfiltered, apiFile, "removed API") { printWriter ->
             SignatureWriter(printWriter, removedEmit, removedReference, codebase.original != null)
         }
     }
@@ -343,7 +414,7 @@ private fun processFlags() {
         val memberIsNotCloned: Predicate<Item> = Predicate { !it.isCloned() }
         val removedDexEmit = memberIsNotCloned.and(removedFilter)
 
-        createReportFile(
+        reportFiles += ReportFile(
             unfiltered, apiFile, "removed DEX API"
         ) { printWriter -> DexApiWriter(printWriter, removedDexEmit, removedReference) }
     }
@@ -353,7 +424,7 @@ private fun processFlags() {
         val privateEmit = apiType.getEmitFilter()
         val privateReference = apiType.getReferenceFilter()
 
-        createReportFile(codebase, apiFile, "private API") { printWriter ->
+        reportFiles += ReportFile(codebase, apiFile, "private API") { printWriter ->
             SignatureWriter(printWriter, privateEmit, privateReference, codebase.original != null)
         }
     }
@@ -363,7 +434,7 @@ private fun processFlags() {
         val privateEmit = apiFilter.negate()
         val privateReference = Predicate<Item> { true }
 
-        createReportFile(
+        reportFiles += ReportFile(
             codebase, apiFile, "private DEX API"
         ) { printWriter ->
             DexApiWriter(
@@ -375,18 +446,23 @@ private fun processFlags() {
     options.proguard?.let { proguard ->
         val apiEmit = FilterPredicate(ApiPredicate())
         val apiReference = ApiPredicate(ignoreShown = true)
-        createReportFile(
+        reportFiles += ReportFile(
             codebase, proguard, "Proguard file"
         ) { printWriter -> ProguardWriter(printWriter, apiEmit, apiReference) }
     }
 
-    options.sdkValueDir?.let { dir ->
-        dir.mkdirs()
-        SdkFileWriter(codebase, dir).generate()
-    }
+    // The codebase doesn't change until the nullness information is migrated below, so
+    // the report files and the signature files of the compatibility checks share the
+    // type strings they print
+    withTypeStringCache(codebase) {
+        createReportFiles(reportFiles)
+
+        options.sdkValueDir?.let { dir ->
+            dir.mkdirs()
+            SdkFileWriter(codebase, dir).generate()
+        }
 
-    for (check in options.compatibilityChecks) {
-        checkCompatibility(codebase, check)
+        checkCompatibility(codebase, options.compatibilityChecks)
     }
 
     val previousApiFile = options.migrateNullsFrom
@@ -469,6 +545,34 @@ private fun processFlags() {
     invokeDocumentationTool()
 }
 
+/**
+ * Runs [block] with the type strings printed for [codebase] cached (see [TypeStringCache]),
+ * and reports how well the cache did with [ARG_VERBOSE]. The annotations in the codebase
+ * and the compatibility settings must not change meanwhile.
+ */
+private fun withTypeStringCache(codebase: Codebase, block: () -> Unit) {
+    val psiCodebase = codebase as? PsiBasedCodebase ?: return block()
+    val cache = TypeStringCache()
+    psiCodebase.typeStringCache = cache
+    try {
+        block()
+    } finally {
+        psiCodebase.typeStringCache = null
+    }
+    progress("Type string cache: ${cache.statistics()}\n")
+}
+
+/** Combines the outputs written by separate runs for each [ARG_SHARD] (see [ShardMerger]) */
+private fun mergeShards(shardDirs: List<File>) {
+    progress("Merging the outputs of ${shardDirs.size} shards: ")
+    val merger = ShardMerger(shardDirs)
+    options.apiFile?.let { merger.mergeSignatureFiles(it) }
+    options.removedApiFile?.let { merger.mergeSignatureFiles(it) }
+    options.dexApiFile?.let { merger.mergeDexApiFiles(it) }
+    options.removedDexApiFile?.let { merger.mergeDexApiFiles(it) }
+    options.stubsDir?.let { merger.mergeStubs(it) }
+}
+
 fun subtractApi(codebase: Codebase, subtractApiFile: File) {
     val path = subtractApiFile.path
     val oldCodebase =
@@ -580,31 +684,110 @@ fun processNonCodebaseFlags() {
 }
 
 /**
- * Checks compatibility of the given codebase with the codebase described in the
- * signature file.
+ * Runs the given compatibility checks of [codebase]. With more than one thread (see
+ * [Options.threads]) the checks run concurrently, sharing the codebase along with the
+ * signature files loaded for them (such as the one generated for the checks of the same
+ * [ApiType]); signature codebases create the classes missing from them thread safely
+ * (see [TextCodebase.getOrCreateClass]). Their progress messages and issues are still
+ * reported from the calling thread in the order of [checks], and the first failing check
+ * aborts, just like when running the checks one after the other.
  */
-fun checkCompatibility(
-    codebase: Codebase,
-    check: CheckRequest
-) {
-    progress("Checking API compatibility ($check): ")
-    val signatureFile = check.file
+fun checkCompatibility(codebase: Codebase, checks: List<CheckRequest>) {
+    val signatureFiles = CompatibilitySignatureFiles(codebase)
+    val threads = Math.min(options.threads, checks.size)
+    // Jar files are loaded through the (global) IntelliJ project environment
+    if (threads <= 1 || !options.binaryJars && checks.any { it.file.path.endsWith(DOT_JAR) }) {
+        for (check in checks) {
+            progress("Checking API compatibility ($check): ")
+            compareCompatibility(codebase, check, signatureFiles, options.threads)?.report()
+        }
+        return
+    }
 
-    val current =
-        if (signatureFile.path.endsWith(DOT_JAR)) {
-            loadFromJarFile(signatureFile)
-        } else {
-            SignatureFileLoader.load(
-                file = signatureFile,
-                kotlinStyleNulls = options.inputKotlinStyleNulls
-            )
+    // Write the signature files the checks compare against up front, such that any
+    // problem writing them is reported on this thread
+    for (check in checks) {
+        if (check.codebase == null) {
+            signatureFiles.get(check.apiType)
         }
+    }
 
-    if (current is TextCodebase && current.format > FileFormat.V1 && options.outputFormat == FileFormat.V1) {
-        throw DriverException("Cannot perform compatibility check of signature file $signatureFile in format ${current.format} without analyzing current codebase with $ARG_FORMAT=${current.format}")
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+        val futures = checks.map { check ->
+            executor.submit(Callable<Triple<List<String>, PendingCompatibilityCheck?, Throwable?>> {
+                val messages = mutableListOf("Checking API compatibility ($check): ")
+                try {
+                    // The threads are already busy with the other checks; compare the
+                    // packages of each of them one after the other
+                    val pending = collectProgress(messages) {
+                        compareCompatibility(codebase, check, signatureFiles, threads = 1)
+                    }
+                    Triple(messages, pending, null)
+                } catch (e: Throwable) {
+                    Triple(messages, null, e)
+                }
+            })
+        }
+        for (future in futures) {
+            val (messages, pending, failure) = try {
+                future.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+            for (message in messages) {
+                progress(message)
+            }
+            if (failure != null) {
+                throw failure
+            }
+            pending?.report()
+        }
+    } finally {
+        executor.shutdownNow()
     }
+}
+
+/**
+ * The signature files of [codebase] which compatibility checks compare against, written
+ * at most once per [ApiType] and shared by all the checks (see [ApiType.getSignatureFile])
+ */
+private class CompatibilitySignatureFiles(private val codebase: Codebase) {
+    private val files = ConcurrentHashMap<ApiType, File>()
+
+    fun get(apiType: ApiType): File = files.computeIfAbsent(apiType) {
+        apiType.getSignatureFile(codebase, "compat-check-signatures-$apiType")
+    }
+}
+
+/** A compatibility check whose results have not been reported yet (see [compareCompatibility]) */
+private class PendingCompatibilityCheck(
+    private val comparison: CompatibilityCheck.Comparison,
+    /** Set if the signature file of the API differs from the one the codebase would have */
+    private val signatureDifference: DriverException?
+) {
+    fun report() {
+        comparison.report()
+        signatureDifference?.let { throw it }
+    }
+}
+
+/**
+ * Compares [codebase] with the codebase described in the signature file of [check],
+ * without reporting anything yet, comparing packages concurrently on [threads] threads.
+ * Returns null if the check passed without having to compare the codebases.
+ */
+private fun compareCompatibility(
+    codebase: Codebase,
+    check: CheckRequest,
+    signatureFiles: CompatibilitySignatureFiles,
+    threads: Int
+): PendingCompatibilityCheck? {
+    val signatureFile = check.file
 
     var base: Codebase? = null
+    // The packages of the signature file to load, if not all of them (see SignaturePackages.select)
+    var previousText: String? = null
     val releaseType = check.releaseType
     val apiType = check.apiType
 
@@ -623,32 +806,43 @@ fun checkCompatibility(
                 kotlinStyleNulls = options.inputKotlinStyleNulls
             )
         } else if (!options.showUnannotated || apiType != ApiType.PUBLIC_API) {
-            val apiFile = apiType.getSignatureFile(codebase, "compat-check-signatures-$apiType")
+            val apiFile = signatureFiles.get(apiType)
 
-            // Fast path: if the signature files are identical, we're already good!
-            if (apiFile.readText(UTF_8) == signatureFile.readText(UTF_8)) {
-                return
+            // Fast path: if the signature files are identical, we're already good! If not,
+            // only load the packages that need to be compared.
+            val selection = SignaturePackages.select(signatureFile, apiFile)
+            if (selection.identical) {
+                return null
             }
+            previousText = selection.previousText
 
             base = codebase
 
-            SignatureFileLoader.load(
-                file = apiFile,
-                kotlinStyleNulls = options.inputKotlinStyleNulls
-            )
+            loadSignatures(apiFile, selection.currentText)
         } else {
             // Fast path: if we've already generated a signature file and it's identical, we're good!
             val apiFile = options.apiFile
             if (apiFile != null && apiFile.readText(UTF_8) == signatureFile.readText(UTF_8)) {
-                return
+                return null
             }
 
             codebase
         }
 
-    // If configured, compares the new API with the previous API and reports
-    // any incompatibilities.
-    CompatibilityCheck.checkCompatibility(new, current, releaseType, apiType, base)
+    val current =
+        if (signatureFile.path.endsWith(DOT_JAR)) {
+            loadFromJarFile(signatureFile)
+        } else {
+            loadSignatures(signatureFile, previousText)
+        }
+
+    if (current is TextCodebase && current.format > FileFormat.V1 && options.outputFormat == FileFormat.V1) {
+        throw DriverException("Cannot perform compatibility check of signature file $signatureFile in format ${current.format} without analyzing current codebase with $ARG_FORMAT=${current.format}")
+    }
+
+    // If configured, compares the new API with the previous API; any incompatibilities
+    // are reported by the returned check.
+    val comparison = CompatibilityCheck.compare(new, current, releaseType, apiType, base, threads)
 
     // Make sure the text files are identical too? (only applies for *current.txt;
     // last-released is expected to differ)
@@ -656,7 +850,7 @@ fun checkCompatibility(
         val apiFile = if (new.location.isFile)
             new.location
         else
-            apiType.getSignatureFile(codebase, "compat-diff-signatures-$apiType")
+            signatureFiles.get(apiType)
 
         fun getCanonicalSignatures(file: File): String {
             // Get rid of trailing newlines and Windows line endings
@@ -681,9 +875,19 @@ fun checkCompatibility(
                     Diffs:
                 """.trimIndent() + "\n" + diff
 
-            throw DriverException(exitCode = -1, stderr = message)
+            return PendingCompatibilityCheck(comparison, DriverException(exitCode = -1, stderr = message))
         }
     }
+    return PendingCompatibilityCheck(comparison, null)
+}
+
+/** Loads the signature [file], or, if given, the [text] of the packages of it to load */
+private fun loadSignatures(file: File, text: String?): Codebase {
+    return if (text != null) {
+        SignatureFileLoader.loadText(file, text, options.inputKotlinStyleNulls)
+    } else {
+        SignatureFileLoader.load(file = file, kotlinStyleNulls = options.inputKotlinStyleNulls)
+    }
 }
 
 fun createTempFile(namePrefix: String, nameSuffix: String): File {
@@ -822,7 +1026,7 @@ private fun loadFromSources(): Codebase {
     }
 
     progress("Reading Codebase: ")
-    val codebase = parseSources(sources, "Codebase loaded from source folders")
+    val codebase = parseSourcesForSurface(sources, "Codebase loaded from source folders")
 
     progress("Analyzing API: ")
 
@@ -844,6 +1048,8 @@ private fun loadFromSources(): Codebase {
     options.nullabilityAnnotationsValidator?.validateAllFrom(codebase, options.validateNullabilityFromList)
     options.nullabilityAnnotationsValidator?.report()
     analyzer.handleStripping()
+    // The API flags of classes and packages are final from here on
+    codebase.apiFlagsCache = ApiFlagsCache()
 
     val apiLintReporter = options.reporterApiLint
 
@@ -886,6 +1092,44 @@ private fun loadFromSources(): Codebase {
     return codebase
 }
 
+/**
+ * Sources parsed for an earlier API surface of the current [run] (see [Options.surfaces]),
+ * along with the inputs they were parsed with.
+ */
+private class SharedSources(val inputs: List<Any?>, val codebase: PsiBasedCodebase)
+
+private var sharedSources: SharedSources? = null
+
+/**
+ * Like [parseSources], but when an earlier API surface in this [run] already parsed the
+ * same sources with the same settings, creates a new codebase from the existing PSI
+ * instead of parsing and analyzing the sources again. Each surface needs its own item
+ * model since the API analysis records the surface specific state (hidden, removed,
+ * inherited stub methods, ...) on the items.
+ */
+private fun parseSourcesForSurface(sources: List<File>, description: String): PsiBasedCodebase {
+    val inputs = listOf(
+        sources, options.sourcePath, options.classpath, options.javaLanguageLevel, options.manifest,
+        options.currentApiLevel, options.currentCodeName, options.allowImplicitRoot
+    )
+    val shared = sharedSources
+    if (shared == null || shared.inputs != inputs) {
+        val codebase = parseSources(sources, description)
+        sharedSources = SharedSources(inputs, codebase)
+        return codebase
+    }
+
+    val previous = shared.codebase
+    val codebase = PsiBasedCodebase(previous.location, description)
+    codebase.initialize(previous.project, previous.units, gatherHiddenPackagesFromJavaDocs(options.sourcePath))
+    codebase.manifest = previous.manifest
+    codebase.apiLevel = previous.apiLevel
+    codebase.bindingContext = previous.bindingContext
+    // Only hold on to the most recent item model
+    sharedSources = SharedSources(inputs, codebase)
+    return codebase
+}
+
 /**
  * Returns a codebase initialized from the given Java or Kotlin source files, with the given
  * description. The codebase will use a project environment initialized according to the current
@@ -937,6 +1181,14 @@ internal fun parseSources(
 }
 
 fun loadFromJarFile(apiJar: File, manifest: File? = null, preFiltered: Boolean = false): Codebase {
+    if (options.binaryJars) {
+        val codebase = BinaryCodebaseLoader(apiJar).load()
+        if (manifest != null) {
+            codebase.manifest = options.manifest
+        }
+        return codebase
+    }
+
     val projectEnvironment = createProjectEnvironment()
 
     progress("Processing jar file: ")
@@ -962,6 +1214,7 @@ fun loadFromJarFile(apiJar: File, manifest: File? = null, preFiltered: Boolean =
     options.nullabilityAnnotationsValidator?.validateAllFrom(codebase, options.validateNullabilityFromList)
     options.nullabilityAnnotationsValidator?.report()
     analyzer.generateInheritedStubs(apiEmit, apiReference)
+    codebase.apiFlagsCache = ApiFlagsCache()
     codebase.bindingContext = trace.bindingContext
     return codebase
 }
@@ -979,7 +1232,11 @@ private fun loadFromApiSignatureFiles(files: List<File>, kotlinStyleNulls: Boole
 private fun createProjectEnvironment(): LintCoreProjectEnvironment {
     ensurePsiFileCapacity()
     val appEnv = LintCoreApplicationEnvironment.get()
-    val parentDisposable = appEnv.parentDisposable
+    applicationEnvironment = appEnv
+    val parentDisposable = projectDisposable ?: Disposer.newDisposable().also {
+        Disposer.register(appEnv.parentDisposable, it)
+        projectDisposable = it
+    }
 
     if (!assertionsEnabled() &&
         System.getenv(ENV_VAR_METALAVA_DUMP_ARGV) == null &&
@@ -1034,6 +1291,7 @@ private fun createStubFiles(stubDir: File, codebase: Codebase, docStubs: Boolean
     // Temporary bug workaround for org.chromium.arc
     if (options.sourcePath.firstOrNull()?.path?.endsWith("org.chromium.arc") == true) {
         codebase.findClass("org.chromium.mojo.bindings.Callbacks")?.hidden = true
+        codebase.apiFlagsCache?.invalidate()
     }
 
     if (docStubs) {
@@ -1104,11 +1362,7 @@ fun createReportFile(
     }
     val localTimer = Stopwatch.createStarted()
     try {
-        val writer = PrintWriter(Files.asCharSink(apiFile, UTF_8).openBufferedStream())
-        writer.use { printWriter ->
-            val apiWriter = createVisitor(printWriter)
-            codebase.accept(apiWriter)
-        }
+        writeReportFile(codebase, apiFile, createVisitor)
     } catch (e: IOException) {
         reporter.report(Issues.IO_ERROR, apiFile, "Cannot open file for write.")
     }
@@ -1117,43 +1371,88 @@ fun createReportFile(
     }
 }
 
-private fun skippableDirectory(file: File): Boolean = file.path.endsWith(".git") && file.name == ".git"
+private fun writeReportFile(codebase: Codebase, apiFile: File, createVisitor: (PrintWriter) -> ApiVisitor) {
+    val writer = PrintWriter(Files.asCharSink(apiFile, UTF_8).openBufferedStream())
+    writer.use { printWriter ->
+        val apiWriter = createVisitor(printWriter)
+        codebase.accept(apiWriter)
+    }
+}
 
-private fun addSourceFiles(list: MutableList<File>, file: File) {
-    if (file.isDirectory) {
-        if (skippableDirectory(file)) {
-            return
+/** A file written by visiting [codebase] with the [ApiVisitor] created by [createVisitor] */
+class ReportFile(
+    val codebase: Codebase,
+    val file: File,
+    val description: String,
+    val createVisitor: (PrintWriter) -> ApiVisitor
+)
+
+/**
+ * Writes the given report files. The visitors only read the codebase, so when
+ * [Options.parallelOutputs] is more than 1 the files are written concurrently on a
+ * bounded thread pool. Progress and errors are still reported from the calling
+ * thread, in the order the files were listed.
+ */
+fun createReportFiles(reportFiles: List<ReportFile>) {
+    val threads = Math.min(options.parallelOutputs, reportFiles.size)
+    if (threads <= 1) {
+        for (report in reportFiles) {
+            createReportFile(report.codebase, report.file, report.description, report.createVisitor)
         }
-        if (java.nio.file.Files.isSymbolicLink(file.toPath())) {
-            reporter.report(
-                Issues.IGNORING_SYMLINK, file,
-                "Ignoring symlink during source file discovery directory traversal"
-            )
-            return
+        return
+    }
+
+    progress("Writing ${reportFiles.size} report files using $threads threads: ")
+    val localTimer = Stopwatch.createStarted()
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+        val futures = reportFiles.map { report ->
+            executor.submit(Callable<Long> {
+                val writerTimer = Stopwatch.createStarted()
+                writeReportFile(report.codebase, report.file, report.createVisitor)
+                writerTimer.elapsed(MILLISECONDS)
+            })
         }
-        val files = file.listFiles()
-        if (files != null) {
-            for (child in files) {
-                addSourceFiles(list, child)
+
+        for ((report, future) in reportFiles.zip(futures)) {
+            try {
+                val elapsed = future.get()
+                if (options.verbose) {
+                    progress("$PROGRAM_NAME wrote ${report.description} file ${report.file} in ${elapsed / 1000.0} seconds\n")
+                }
+            } catch (e: ExecutionException) {
+                val cause = e.cause ?: e
+                if (cause is IOException) {
+                    reporter.report(Issues.IO_ERROR, report.file, "Cannot open file for write.")
+                } else {
+                    throw cause
+                }
             }
         }
-    } else {
-        if (file.isFile && (file.path.endsWith(DOT_JAVA) || file.path.endsWith(DOT_KT))) {
-            list.add(file)
-        }
+    } finally {
+        executor.shutdownNow()
+    }
+    if (options.verbose) {
+        progress("$PROGRAM_NAME wrote ${reportFiles.size} report files in ${localTimer.elapsed(SECONDS)} seconds\n")
     }
 }
 
+private fun skippableDirectory(file: File): Boolean = file.path.endsWith(".git") && file.name == ".git"
+
 fun gatherSources(sourcePath: List<File>): List<File> {
-    val sources = Lists.newArrayList<File>()
-    for (file in sourcePath) {
-        if (file.path.isBlank()) {
-            // --source-path "" means don't search source path; use "." for pwd
-            continue
-        }
-        addSourceFiles(sources, file.absoluteFile)
+    val roots = sourcePath
+        // --source-path "" means don't search source path; use "." for pwd
+        .filter { !it.path.isBlank() }
+        .map { it.absoluteFile }
+    val discovery = SourceDiscovery(options.threads, options.cacheDir?.let { File(it, "sources") })
+    val result = discovery.find(roots)
+    for (symlink in result.ignoredSymlinks) {
+        reporter.report(
+            Issues.IGNORING_SYMLINK, symlink,
+            "Ignoring symlink during source file discovery directory traversal"
+        )
     }
-    return sources.sortedWith(compareBy({ it.name }))
+    return result.sources.sortedWith(compareBy({ it.name }, { it.path }))
 }
 
 private fun addHiddenPackages(
@@ -1249,19 +1548,43 @@ private fun gatherHiddenPackagesFromJavaDocs(sourcePath: List<File>): PackageDoc
 }
 
 fun extractRoots(sources: List<File>, sourceRoots: MutableList<File> = mutableListOf()): List<File> {
-    // Cache for each directory since computing root for a source file is
-    // expensive
-    val dirToRootCache = mutableMapOf<String, File>()
+    // Computing the root for a source file is expensive, so only do it until
+    // it succeeds for one of the files in each directory
+    val directories = LinkedHashMap<String, MutableList<File>>()
     for (file in sources) {
         val parent = file.parentFile ?: continue
-        val found = dirToRootCache[parent.path]
-        if (found != null) {
-            continue
-        }
+        directories.getOrPut(parent.path) { mutableListOf() }.add(file)
+    }
 
-        val root = findRoot(file) ?: continue
-        dirToRootCache[parent.path] = root
+    val threads = Math.min(options.threads, directories.size)
+    val roots = if (threads > 1) {
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val scanners = ThreadLocal.withInitial { PackageScanner() }
+            val futures = directories.values.map { files ->
+                executor.submit(Callable<DirectoryRoot> { findRoot(files, scanners.get()) })
+            }
+            futures.map {
+                try {
+                    it.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    } else {
+        val scanner = PackageScanner()
+        directories.values.map { findRoot(it, scanner) }
+    }
 
+    // Report problems and record the roots in the order of the sources
+    for (directoryRoot in roots) {
+        for ((file, message) in directoryRoot.problems) {
+            reporter.report(Issues.IO_ERROR, file, message)
+        }
+        val root = directoryRoot.root ?: continue
         if (!sourceRoots.contains(root)) {
             sourceRoots.add(root)
         }
@@ -1270,22 +1593,40 @@ fun extractRoots(sources: List<File>, sourceRoots: MutableList<File> = mutableLi
     return sourceRoots
 }
 
+/**
+ * The source root found for the files in a directory by [findRoot], along with the
+ * problems found for the files which were looked at.
+ */
+private class DirectoryRoot(val root: File?, val problems: List<Pair<File, String>>)
+
+/** Finds the source root of the first of the given files (in one directory) for which that is possible */
+private fun findRoot(files: List<File>, scanner: PackageScanner): DirectoryRoot {
+    val problems = mutableListOf<Pair<File, String>>()
+    for (file in files) {
+        val root = findRoot(file, scanner, problems)
+        if (root != null) {
+            return DirectoryRoot(root, problems)
+        }
+    }
+    return DirectoryRoot(null, problems)
+}
+
 /**
  * If given a full path to a Java or Kotlin source file, produces the path to
  * the source root if possible.
  */
-private fun findRoot(file: File): File? {
+private fun findRoot(file: File, scanner: PackageScanner, problems: MutableList<Pair<File, String>>): File? {
     val path = file.path
     if (path.endsWith(DOT_JAVA) || path.endsWith(DOT_KT)) {
-        val pkg = findPackage(file) ?: return null
+        val pkg = findPackage(file, scanner) ?: return null
         val parent = file.parentFile ?: return null
         val endIndex = parent.path.length - pkg.length
         val before = path[endIndex - 1]
         if (before == '/' || before == '\\') {
             return File(path.substring(0, endIndex))
         } else {
-            reporter.report(
-                Issues.IO_ERROR, file, "$PROGRAM_NAME was unable to determine the package name. " +
+            problems.add(
+                file to "$PROGRAM_NAME was unable to determine the package name. " +
                     "This usually means that a source file was where the directory does not seem to match the package " +
                     "declaration; we expected the path $path to end with /${pkg.replace('.', '/') + '/' + file.name}"
             )
@@ -1297,8 +1638,15 @@ private fun findRoot(file: File): File? {
 
 /** Finds the package of the given Java/Kotlin source file, if possible */
 fun findPackage(file: File): String? {
-    val source = Files.asCharSource(file, UTF_8).read()
-    return findPackage(source)
+    return findPackage(file, PackageScanner())
+}
+
+/**
+ * Finds the package of the given Java/Kotlin source file, if possible, normally by
+ * only reading the header of the file with the given [scanner]
+ */
+private fun findPackage(file: File, scanner: PackageScanner): String? {
+    return scanner.scan(file) ?: findPackage(Files.asCharSource(file, UTF_8).read())
 }
 
 /** Finds the package of the given Java/Kotlin source code, if possible */
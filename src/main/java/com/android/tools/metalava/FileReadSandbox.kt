@@ -98,6 +98,10 @@ internal object FileReadSandbox {
         }
     }
 
+    /** Whether the sandbox is currently activated */
+    val isActivated: Boolean
+        get() = installed
+
     /** Activate the sandbox. */
     fun activate(listener: Listener) {
         if (installed) {
@@ -33,6 +33,7 @@ import java.io.PrintWriter
 import java.io.StringWriter
 import java.lang.NumberFormatException
 import java.util.Locale
+import java.util.function.Predicate
 import kotlin.reflect.KMutableProperty1
 import kotlin.reflect.full.memberProperties
 import kotlin.text.Charsets.UTF_8
@@ -171,6 +172,14 @@ const val ARG_STRICT_INPUT_FILES = "--strict-input-files"
 const val ARG_STRICT_INPUT_FILES_STACK = "--strict-input-files:stack"
 const val ARG_STRICT_INPUT_FILES_WARN = "--strict-input-files:warn"
 const val ARG_STRICT_INPUT_FILES_EXEMPT = "--strict-input-files-exempt"
+const val ARG_PARALLEL_OUTPUTS = "--parallel-outputs"
+const val ARG_CACHE_DIR = "--cache-dir"
+const val ARG_THREADS = "--threads"
+const val ARG_PERSISTENT_WORKER = "--persistent_worker"
+const val ARG_SURFACE = "--surface"
+const val ARG_BINARY_JARS = "--binary-jars"
+const val ARG_SHARD = "--shard"
+const val ARG_MERGE_SHARDS = "--merge-shards"
 
 class Options(
     private val args: Array<String>,
@@ -705,6 +714,68 @@ class Options(
     /** Temporary folder to use instead of the JDK default, if any */
     var tempFolder: File? = null
 
+    /**
+     * The number of threads to use when writing the signature, DEX and proguard files
+     * ([ARG_API], [ARG_DEX_API], [ARG_PROGUARD] etc.) once the codebase has been analyzed.
+     * When 1 (the default) the files are written one after another. Set with [ARG_PARALLEL_OUTPUTS].
+     */
+    var parallelOutputs = 1
+
+    /**
+     * Directory in which metalava may keep data between invocations, such as the parsed form
+     * of signature files (see [SignatureFileCache]), summaries of the android.jar files read
+     * for [ARG_GENERATE_API_LEVELS] or the source files found on the source path (see
+     * [SourceDiscovery]). Entries are keyed by the content of their inputs, so the
+     * directory can be shared between builds. Set with [ARG_CACHE_DIR].
+     */
+    var cacheDir: File? = null
+
+    /**
+     * The number of threads to use for input processing which can be split into independent
+     * pieces, such as parsing several signature files or reading the android.jar files for
+     * [ARG_GENERATE_API_LEVELS], creating the model of the source files, converting the
+     * android.jar files of several API levels with [ARG_BINARY_JARS], or comparing the
+     * packages of two APIs in compatibility checks. Results never depend on this number.
+     * When 1 (the default) everything runs on the calling thread. Set with [ARG_THREADS].
+     */
+    var threads = 1
+
+    /**
+     * Additional API surfaces to produce after the one described by these options, each
+     * given as the complete argument list of a separate invocation (read from the file
+     * passed to [ARG_SURFACE], one argument per line). Surfaces reading the same sources
+     * reuse the parsed sources of the previous surface instead of parsing them again;
+     * only the surface specific analysis (show/hide annotations, stripping, inherited
+     * stubs) and the outputs are computed for each of them.
+     */
+    var surfaces: MutableList<Array<String>> = mutableListOf()
+
+    /**
+     * Whether jar files (such as [ARG_INPUT_API_JAR] or a previous API passed to
+     * [ARG_CHECK_COMPATIBILITY]) should be read directly from their class files (see
+     * [BinaryCodebaseLoader]) instead of through an IntelliJ project environment.
+     * Set with [ARG_BINARY_JARS].
+     */
+    var binaryJars = false
+
+    /**
+     * When splitting the API over several runs, the number of this run, from 1 to
+     * [shardCount]. Each run still reads all the sources, but only emits the packages
+     * assigned to its shard (see [ShardPredicate]); the outputs of all the runs are
+     * combined afterwards with [ARG_MERGE_SHARDS]. Set with [ARG_SHARD].
+     */
+    var shardIndex = 1
+
+    /** The number of runs the API is split over, see [shardIndex] */
+    var shardCount = 1
+
+    /**
+     * The output directories of the runs of all the shards (see [shardIndex]). When set,
+     * nothing is analyzed; the outputs are instead combined from the files of the same
+     * name in each of these directories (see [ShardMerger]). Set with [ARG_MERGE_SHARDS].
+     */
+    var mergeShards: List<File> = emptyList()
+
     init {
         // Pre-check whether --color/--no-color is present and use that to decide how
         // to emit the banner even before we emit errors
@@ -1359,6 +1430,52 @@ class Options(
                     tempFolder = stringToNewOrExistingDir(getValue(args, ++index))
                 }
 
+                ARG_PARALLEL_OUTPUTS -> {
+                    val value = getValue(args, ++index)
+                    val threads = value.toIntOrNull()
+                    if (threads == null || threads < 1) {
+                        throw DriverException("$ARG_PARALLEL_OUTPUTS must be a positive number of threads, was $value")
+                    }
+                    parallelOutputs = threads
+                }
+
+                ARG_CACHE_DIR -> {
+                    cacheDir = stringToNewOrExistingDir(getValue(args, ++index))
+                }
+
+                ARG_THREADS -> {
+                    val value = getValue(args, ++index)
+                    val count = value.toIntOrNull()
+                    if (count == null || count < 1) {
+                        throw DriverException("$ARG_THREADS must be a positive number of threads, was $value")
+                    }
+                    threads = count
+                }
+
+                ARG_BINARY_JARS -> binaryJars = true
+
+                ARG_SHARD -> {
+                    val value = getValue(args, ++index)
+                    val shard = value.substringBefore('/').toIntOrNull()
+                    val count = value.substringAfter('/', "").toIntOrNull()
+                    if (shard == null || count == null || shard < 1 || shard > count) {
+                        throw DriverException("$ARG_SHARD must be given as <index>/<count> with 1 <= index <= count, was $value")
+                    }
+                    shardIndex = shard
+                    shardCount = count
+                }
+
+                ARG_MERGE_SHARDS -> mergeShards = stringToExistingDirs(getValue(args, ++index))
+
+                ARG_SURFACE -> {
+                    val file = stringToExistingFile(getValue(args, ++index))
+                    val surfaceArgs = file.readLines().filter { it.isNotEmpty() }.toTypedArray()
+                    if (surfaceArgs.contains(ARG_SURFACE)) {
+                        throw DriverException("$ARG_SURFACE cannot be used in the arguments of a surface ($file)")
+                    }
+                    surfaces.add(surfaceArgs)
+                }
+
                 // Option only meant for tests (not documented); doesn't work in all cases (to do that we'd
                 // need JNA to call libc)
                 "--pwd" -> {
@@ -1726,6 +1843,14 @@ class Options(
             reporterCompatibilityCurrent
         )
 
+        if (shardCount > 1) {
+            // Only emit (and report issues in) the packages of this shard, in addition
+            // to any --stub-packages restrictions
+            val filter = stubPackages ?: PackageFilter().apply { add(Predicate { true }, true) }
+            filter.add(ShardPredicate(shardIndex, shardCount).negate(), false)
+            stubPackages = filter
+        }
+
         checkFlagConsistency()
     }
 
@@ -1859,10 +1984,56 @@ class Options(
 
     /** Makes sure that the flag combinations make sense */
     private fun checkFlagConsistency() {
+        if (mergeShards.isNotEmpty()) {
+            if (shardCount > 1) {
+                throw DriverException(stderr = "Specify either $ARG_SHARD or $ARG_MERGE_SHARDS, not both")
+            }
+            if (listOfNotNull(
+                    apiXmlFile, dexApiMappingFile, privateApiFile, privateDexApiFile, proguard,
+                    docStubsDir, stubsSourceList, docStubsSourceList, externalAnnotations
+                ).isNotEmpty()
+            ) {
+                throw DriverException(
+                    stderr = "$ARG_MERGE_SHARDS can only combine $ARG_API, $ARG_REMOVED_API, " +
+                        "$ARG_DEX_API, $ARG_REMOVED_DEX_API and $ARG_STUBS outputs"
+                )
+            }
+            if (compatibilityChecks.isNotEmpty() || checkApi) {
+                // There is no codebase to check: each shard has to run its checks itself
+                throw DriverException(
+                    stderr = "$ARG_MERGE_SHARDS cannot be combined with $ARG_CHECK_COMPATIBILITY or $ARG_API_LINT"
+                )
+            }
+        }
+
         if (apiJar != null && sources.isNotEmpty()) {
             throw DriverException(stderr = "Specify either $ARG_SOURCE_FILES or $ARG_INPUT_API_JAR, not both")
         }
 
+        if (androidJarSignatureFiles != null && threads > 1 && !binaryJars) {
+            throw DriverException(
+                stderr = "Converting android.jar files on several $ARG_THREADS requires $ARG_BINARY_JARS, " +
+                    "since loading jar files through PSI uses an environment shared by the whole process"
+            )
+        }
+
+        if (binaryJars &&
+            (mergeQualifierAnnotations.isNotEmpty() || mergeInclusionAnnotations.isNotEmpty() ||
+                nullabilityAnnotationsValidator != null)
+        ) {
+            // Jar files read from their class files don't get the annotations merged into
+            // them, nor their nullability validated
+            val jars = listOfNotNull(apiJar, migrateNullsFrom, subtractApi, checkApiBaselineApiFile) +
+                sources + compatibilityChecks.map { it.file }
+            if (jars.any { it.path.endsWith(SdkConstants.DOT_JAR) }) {
+                throw DriverException(
+                    stderr = "$ARG_BINARY_JARS cannot be combined with $ARG_MERGE_QUALIFIER_ANNOTATIONS, " +
+                        "$ARG_MERGE_INCLUSION_ANNOTATIONS, $ARG_VALIDATE_NULLABILITY_FROM_MERGED_STUBS or " +
+                        "$ARG_VALIDATE_NULLABILITY_FROM_LIST when reading jar files"
+                )
+            }
+        }
+
         if (compatOutput && outputKotlinStyleNulls) {
             throw DriverException(
                 stderr = "$ARG_OUTPUT_KOTLIN_NULLS=yes should not be combined with " +
@@ -2418,6 +2589,31 @@ class Options(
                 "access to files and/or directories (separated by `${File.pathSeparator}). Can also be " +
                 "@ followed by a path to a text file containing paths to the full set of files and/or directories.",
 
+            "", "\nPerformance:",
+            "$ARG_PARALLEL_OUTPUTS <n>", "Writes the signature, DEX and ProGuard files on the given number of " +
+                "threads once the codebase has been analyzed, instead of one after another. The default is 1.",
+            "$ARG_CACHE_DIR <dir>", "A directory in which to keep data between invocations, such as parsed " +
+                "signature files and summaries of android.jar files. Entries are keyed by the contents of their " +
+                "inputs, so the directory can be shared between builds.",
+            "$ARG_THREADS <n>", "Processes independent inputs on the given number of threads, such as parsing " +
+                "signature files, reading the android.jar files for $ARG_GENERATE_API_LEVELS or comparing the " +
+                "packages of two APIs in compatibility checks. The results do not depend on the number of threads. " +
+                "The default is 1.",
+            ARG_PERSISTENT_WORKER, "Runs as a persistent worker: reads requests (one JSON object per line, " +
+                "holding the arguments of an invocation) from standard input and writes a response for each to " +
+                "standard output, keeping the process and its IntelliJ application environment alive between them.",
+            "$ARG_SURFACE <file>", "Produces another API surface after the one described by the other flags. " +
+                "The file lists the complete arguments of that surface, one per line. Surfaces reading the same " +
+                "sources share the parsed sources instead of parsing them again. Can be specified multiple times.",
+            ARG_BINARY_JARS, "Reads jar files (such as $ARG_INPUT_API_JAR or a previous API passed to " +
+                "$ARG_CHECK_COMPATIBILITY) directly from their class files instead of through an IntelliJ project " +
+                "environment. Cannot be combined with merging annotations into jar files.",
+            "$ARG_SHARD <index>/<count>", "Splits the API over <count> runs, and only emits the packages " +
+                "assigned to run number <index> (from 1 to <count>). Each run still reads all the sources.",
+            "$ARG_MERGE_SHARDS <dirs>", "One or more output directories (separated by `${File.pathSeparator}`) " +
+                "of the runs of all the shards of $ARG_SHARD. Instead of analyzing any sources, combines the " +
+                "files of the same name in these directories into the outputs.",
+
             "", "\nEnvironment Variables:",
             ENV_VAR_METALAVA_DUMP_ARGV, "Set to true to have metalava emit all the arguments it was invoked with. " +
                 "Helpful when debugging or reproducing under a debugger what the build system is doing.",
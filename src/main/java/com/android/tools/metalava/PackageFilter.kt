@@ -91,6 +91,18 @@ class StringEqualsPredicate(val acceptedPackage: String) : Predicate<String> {
     }
 }
 
+/**
+ * Accepts the packages assigned to shard [index] (from 1 to [count]) when splitting the API
+ * over several runs (see [Options.shardIndex]). Packages are assigned by the hash code of
+ * their name, which is the same on every machine and doesn't depend on which other
+ * packages exist.
+ */
+class ShardPredicate(val index: Int, val count: Int) : Predicate<String> {
+    override fun test(candidatePackage: String): Boolean {
+        return Math.floorMod(candidatePackage.hashCode(), count) == index - 1
+    }
+}
+
 /**
  * One element of a PackageFilter.
  * Detects packages and either either includes or excludes them from the filter
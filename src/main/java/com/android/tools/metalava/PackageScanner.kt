@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStreamReader
+import java.io.Reader
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Finds the package declared by a Java or Kotlin source file by reading only the header
+ * of the file: the comments, file annotations and `package` declaration at the top.
+ * Reading stops as soon as the package name has been read, or at the first other token.
+ *
+ * The same buffer is reused for every file, so a scanner must only be used by one
+ * thread at a time.
+ */
+class PackageScanner {
+    private val buffer = CharArray(BUFFER_SIZE)
+    private var reader: Reader? = null
+    private var offset = 0
+    private var length = 0
+
+    /**
+     * Returns the package declared in the given file, or null if the header does not
+     * contain a package declaration (such as in the default package) or could not be
+     * understood.
+     */
+    fun scan(file: File): String? {
+        InputStreamReader(FileInputStream(file), UTF_8).use { return scan(it) }
+    }
+
+    /** Like [scan] for a file, but reads the source from the given [reader] */
+    fun scan(reader: Reader): String? {
+        this.reader = reader
+        offset = 0
+        length = 0
+        try {
+            if (peek(0) == '\uFEFF') {
+                offset++
+            }
+            while (true) {
+                skipWhitespaceAndComments()
+                val c = peek(0) ?: return null
+                if (c == '@') {
+                    if (!skipAnnotation()) {
+                        return null
+                    }
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    return if (readIdentifier() == "package") readPackageName() else null
+                } else {
+                    return null
+                }
+            }
+        } finally {
+            this.reader = null
+        }
+    }
+
+    /** Reads the package name following the `package` keyword, the way lint's ClassName does */
+    private fun readPackageName(): String? {
+        val first = peek(0) ?: return null
+        if (!Character.isWhitespace(first)) {
+            return null
+        }
+        skipWhitespaceAndComments()
+        val sb = StringBuilder()
+        while (true) {
+            val c = peek(0) ?: break
+            if (Character.isWhitespace(c) || c == ';' || c == '/' && (peek(1) == '/' || peek(1) == '*')) {
+                break
+            }
+            sb.append(c)
+            offset++
+        }
+        return if (sb.isEmpty()) null else sb.toString()
+    }
+
+    /** Skips an annotation such as `@Foo`, `@file:JvmName("Foo")` or `@a.b.C(x = { 1, 2 })` */
+    private fun skipAnnotation(): Boolean {
+        offset++ // @
+        skipWhitespaceAndComments()
+        while (true) {
+            val c = peek(0) ?: return false
+            if (!Character.isJavaIdentifierStart(c)) {
+                return false
+            }
+            readIdentifier()
+            skipWhitespaceAndComments()
+            val next = peek(0)
+            if (next == '.' || next == ':') {
+                // Qualified name, or a Kotlin use-site target such as file:
+                offset++
+                skipWhitespaceAndComments()
+                if (next == ':' && peek(0) == '[') {
+                    return skipBalanced()
+                }
+            } else {
+                break
+            }
+        }
+        return if (peek(0) == '(') skipBalanced() else true
+    }
+
+    /** Skips a parenthesized or bracketed group, including any nested groups and literals */
+    private fun skipBalanced(): Boolean {
+        var depth = 0
+        while (true) {
+            val c = peek(0) ?: return false
+            when (c) {
+                '(', '[', '{' -> {
+                    depth++
+                    offset++
+                }
+                ')', ']', '}' -> {
+                    depth--
+                    offset++
+                    if (depth == 0) {
+                        return true
+                    }
+                }
+                '"', '\'' -> if (!skipLiteral(c)) return false
+                '/' -> if (peek(1) == '/' || peek(1) == '*') skipWhitespaceAndComments() else offset++
+                else -> offset++
+            }
+        }
+    }
+
+    private fun skipLiteral(quote: Char): Boolean {
+        offset++
+        while (true) {
+            val c = peek(0) ?: return false
+            offset++
+            if (c == '\\') {
+                peek(0) ?: return false
+                offset++
+            } else if (c == quote) {
+                return true
+            } else if (c == '\n') {
+                return false
+            }
+        }
+    }
+
+    private fun readIdentifier(): String {
+        val sb = StringBuilder()
+        while (true) {
+            val c = peek(0) ?: break
+            if (!Character.isJavaIdentifierPart(c)) {
+                break
+            }
+            sb.append(c)
+            offset++
+        }
+        return sb.toString()
+    }
+
+    private fun skipWhitespaceAndComments() {
+        while (true) {
+            val c = peek(0) ?: return
+            if (Character.isWhitespace(c)) {
+                offset++
+            } else if (c == '/' && peek(1) == '/') {
+                offset += 2
+                while (true) {
+                    val next = peek(0) ?: return
+                    offset++
+                    if (next == '\n') {
+                        break
+                    }
+                }
+            } else if (c == '/' && peek(1) == '*') {
+                offset += 2
+                while (true) {
+                    val next = peek(0) ?: return
+                    if (next == '*' && peek(1) == '/') {
+                        offset += 2
+                        break
+                    }
+                    offset++
+                }
+            } else {
+                return
+            }
+        }
+    }
+
+    /** Returns the character [ahead] characters past the current one, or null at the end of the input */
+    private fun peek(ahead: Int): Char? {
+        if (offset + ahead >= length) {
+            fill()
+            if (offset + ahead >= length) {
+                return null
+            }
+        }
+        return buffer[offset + ahead]
+    }
+
+    private fun fill() {
+        // Keep the unread characters, and read as many new ones as fit
+        val remaining = length - offset
+        System.arraycopy(buffer, offset, buffer, 0, remaining)
+        offset = 0
+        length = remaining
+        val reader = reader ?: return
+        while (length < buffer.size) {
+            val read = reader.read(buffer, length, buffer.size - length)
+            if (read == -1) {
+                break
+            }
+            length += read
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 4096
+    }
+}
@@ -22,11 +22,18 @@ private val PROGRESS_TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss.SSS"
 private var beginningOfLine = true
 private var firstProgress = true
 
+/** Messages collected instead of printed on the current thread, see [collectProgress] */
+private val collectedProgress = ThreadLocal<MutableList<String>?>()
+
 /** Print a progress message with a timestamp when --verbose is enabled. */
 fun progress(message: String) {
     if (!options.verbose) {
         return
     }
+    collectedProgress.get()?.let {
+        it.add(message)
+        return
+    }
     if (!beginningOfLine) {
         options.stdout.println()
     }
@@ -104,8 +111,26 @@ fun resetTicker() {
     tick = 0
 }
 
+/**
+ * Runs [block], adding the progress messages it prints on the current thread to
+ * [messages] instead, such that work running concurrently on several threads can
+ * print its progress in a predictable order afterwards.
+ */
+fun <T> collectProgress(messages: MutableList<String>, block: () -> T): T {
+    val previous = collectedProgress.get()
+    collectedProgress.set(messages)
+    try {
+        return block()
+    } finally {
+        collectedProgress.set(previous)
+    }
+}
+
 /** Print progress */
 fun tick() {
+    if (collectedProgress.get() != null) {
+        return
+    }
     tick++
     if (tick % 100 == 0) {
         if (!options.verbose) {
@@ -34,10 +34,13 @@ import com.intellij.openapi.util.TextRange
 import com.intellij.openapi.vfs.VfsUtilCore
 import com.intellij.psi.PsiCompiledElement
 import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiModifierListOwner
 import com.intellij.psi.impl.light.LightElement
 import java.io.File
 import java.io.PrintWriter
+import java.util.Arrays
+import java.util.WeakHashMap
 
 /**
  * "Global" [Reporter] used by most operations.
@@ -268,22 +271,25 @@ class Reporter(
             // No source offsets, use invalid line number
             -1
         } else {
-            getLineNumber(psiFile.text, range.startOffset) + 1
+            getLineNumber(psiFile, range.startOffset) + 1
         }
         return if (lineNumber > 0) "$path:$lineNumber" else path
     }
 
-    /** Returns the 0-based line number of character position <offset> in <text> */
-    private fun getLineNumber(text: String, offset: Int): Int {
-        var line = 0
-        var curr = 0
-        val target = Math.min(offset, text.length)
-        while (curr < target) {
-            if (text[curr++] == '\n') {
-                line++
+    /** Returns the 0-based line number of character position <offset> in <psiFile> */
+    private fun getLineNumber(psiFile: PsiFile, offset: Int): Int {
+        val stamp = psiFile.modificationStamp
+        val lineOffsets = synchronized(lineOffsetsCache) {
+            val cached = lineOffsetsCache[psiFile]
+            if (cached != null && cached.modificationStamp == stamp) {
+                cached
+            } else {
+                val computed = LineOffsets(psiFile.text, stamp)
+                lineOffsetsCache[psiFile] = computed
+                computed
             }
         }
-        return line
+        return lineOffsets.getLineNumber(offset)
     }
 
     /** Alias to allow method reference in [report.dispatch] */
@@ -454,5 +460,48 @@ class Reporter(
             output.print(message.trim())
             output.flush()
         }
+
+        /**
+         * Line offsets of the files we have reported issues in, shared by all reporters (api-lint
+         * and compatibility checks use their own). Weak keys such that entries go away along with
+         * the PSI files.
+         */
+        private val lineOffsetsCache = WeakHashMap<PsiFile, LineOffsets>()
+    }
+}
+
+/**
+ * The start offsets of the lines in a source file, such that the line number of an offset can be
+ * looked up with a binary search instead of counting the newlines preceding it.
+ */
+@VisibleForTesting
+internal class LineOffsets(text: CharSequence, val modificationStamp: Long = 0) {
+    private val length = text.length
+    private val lineStarts: IntArray
+    private val lineCount: Int
+
+    init {
+        var starts = IntArray(256)
+        var count = 1 // starts[0] = 0
+        for (i in 0 until length) {
+            if (text[i] == '\n') {
+                if (count == starts.size) {
+                    starts = starts.copyOf(count * 2)
+                }
+                starts[count++] = i + 1
+            }
+        }
+        lineStarts = starts
+        lineCount = count
+    }
+
+    /** Returns the 0-based line number of character position [offset] */
+    fun getLineNumber(offset: Int): Int {
+        val target = Math.min(offset, length)
+        if (target <= 0) {
+            return 0
+        }
+        val index = Arrays.binarySearch(lineStarts, 0, lineCount, target)
+        return if (index >= 0) index else -index - 2
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import com.android.tools.metalava.model.PackageItem
+import java.io.File
+import java.util.TreeMap
+
+/**
+ * Combines the outputs of several runs with [ARG_SHARD] into the outputs of a single run
+ * over all the packages (see [ARG_MERGE_SHARDS]). Each shard writes its outputs into its
+ * own directory in [shardDirs], using the same file names as the combined outputs.
+ *
+ * Every package is emitted by exactly one shard, and signature files and DEX API files
+ * list their packages one after the other in the order of [PackageItem.comparator]. The
+ * partial files are therefore split at package boundaries and the packages put back in
+ * order, which gives byte for byte the files a single run would have written. (Loading
+ * the partial signature files as a text codebase and writing it out again would not: the
+ * removed API for example is no longer marked as removed once written.)
+ */
+class ShardMerger(private val shardDirs: List<File>) {
+    /** Combines the partial signature files named like [output], such as the `--api` file */
+    fun mergeSignatureFiles(output: File) {
+        var header: String? = null
+        val packages = TreeMap<String, String>()
+        for ((shard, file) in partialFiles(output)) {
+            val partial = SignaturePackages.parse(file.readText())
+            if (header == null) {
+                header = partial.header
+            } else if (header != partial.header) {
+                throw DriverException("$file was not written with the same signature format as the other shards")
+            }
+            for ((name, block) in partial.packages) {
+                add(packages, shard, name, block)
+            }
+        }
+        write(output, (header ?: "") + packages.values.joinToString(""))
+    }
+
+    /** Combines the partial DEX API files named like [output], such as the `--dex-api` file */
+    fun mergeDexApiFiles(output: File) {
+        val packages = TreeMap<String, String>()
+        for ((shard, file) in partialFiles(output)) {
+            // Each line starts with the internal name of a class (Lpkg/Outer$Inner;), and the
+            // lines of a package are all next to each other
+            var name: String? = null
+            val block = StringBuilder()
+            for (line in file.readLines()) {
+                val descriptor = line.substringBefore("->")
+                val lineName = descriptor.substring(1, Math.max(1, descriptor.lastIndexOf('/'))).replace('/', '.')
+                if (lineName != name) {
+                    if (name != null) {
+                        add(packages, shard, name, block.toString())
+                    }
+                    name = lineName
+                    block.setLength(0)
+                }
+                block.append(line).append('\n')
+            }
+            if (name != null) {
+                add(packages, shard, name, block.toString())
+            }
+        }
+        write(output, packages.values.joinToString(""))
+    }
+
+    /** Copies the stub files of all the shards into [stubsDir] */
+    fun mergeStubs(stubsDir: File) {
+        val copied = HashSet<File>()
+        for ((_, dir) in partialFiles(stubsDir)) {
+            for (file in dir.walkTopDown().filter { it.isFile }) {
+                val target = File(stubsDir, file.relativeTo(dir).path)
+                if (!copied.add(target)) {
+                    // Some files, such as the sources of annotations, are written by every shard
+                    if (target.readBytes().contentEquals(file.readBytes())) {
+                        continue
+                    }
+                    throw DriverException("Stub file ${file.relativeTo(dir)} was written by more than one shard")
+                }
+                file.copyTo(target, overwrite = true)
+            }
+        }
+    }
+
+    private fun partialFiles(output: File): List<Pair<Int, File>> {
+        return shardDirs.mapIndexed { shard, dir ->
+            val file = File(dir, output.name)
+            if (!file.exists()) {
+                throw DriverException("Shard directory $dir does not contain ${output.name}")
+            }
+            shard to file
+        }
+    }
+
+    private fun add(packages: MutableMap<String, String>, shard: Int, name: String, block: String) {
+        if (packages.put(name, block) != null) {
+            throw DriverException(
+                "Package $name was emitted by more than one shard (${shardDirs[shard]}); " +
+                    "were all the shards run with the same $ARG_SHARD count?"
+            )
+        }
+    }
+
+    private fun write(output: File, text: String) {
+        output.parentFile?.mkdirs()
+        output.writeText(text)
+    }
+}
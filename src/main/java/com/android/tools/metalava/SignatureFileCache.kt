@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import com.android.tools.metalava.doclava1.ApiFile
+import com.android.tools.metalava.doclava1.SourcePositionInfo
+import com.android.tools.metalava.doclava1.TextCodebase
+import com.android.tools.metalava.model.TypeParameterList
+import com.android.tools.metalava.model.text.TextClassItem
+import com.android.tools.metalava.model.text.TextConstructorItem
+import com.android.tools.metalava.model.text.TextFieldItem
+import com.android.tools.metalava.model.text.TextMethodItem
+import com.android.tools.metalava.model.text.TextModifiers
+import com.android.tools.metalava.model.text.TextPackageItem
+import com.android.tools.metalava.model.text.TextParameterItem
+import com.android.tools.metalava.model.text.TextPropertyItem
+import com.android.tools.metalava.model.text.TextTypeItem
+import com.android.tools.metalava.model.text.TextTypeParameterList
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+/**
+ * Cache of parsed signature files, stored in a directory which survives between metalava
+ * invocations (see [Options.cacheDir]).
+ *
+ * Entries are keyed by a digest of the metalava version and the paths and contents of the
+ * signature files, so a changed input simply results in a new entry. Each entry stores the
+ * codebase as it looks right after parsing, before [TextCodebase.postProcess] has resolved
+ * super classes, interfaces, throws lists and inner classes; loading an entry replays the
+ * same model construction calls as [ApiFile] and then runs [TextCodebase.postProcess], which
+ * is cheap compared to tokenizing and parsing the text again.
+ *
+ * Unreadable or stale entries are ignored and overwritten.
+ */
+class SignatureFileCache(private val dir: File) {
+    fun load(files: List<File>, kotlinStyleNulls: Boolean, threads: Int = 1): TextCodebase {
+        val key = try {
+            computeKey(files, kotlinStyleNulls)
+        } catch (e: IOException) {
+            // Let the parser report the unreadable file
+            return ApiFile.parseApi(files, kotlinStyleNulls, threads)
+        }
+        val entry = File(dir, "$key.bin")
+        if (entry.isFile) {
+            try {
+                val codebase = read(entry, files[0])
+                codebase.postProcess()
+                return codebase
+            } catch (e: IOException) {
+                progress("Ignoring signature cache entry $entry: ${e.message}")
+            }
+        }
+
+        val codebase = ApiFile.parseApiWithoutPostProcessing(files, kotlinStyleNulls, threads)
+        try {
+            write(codebase, entry)
+        } catch (e: IOException) {
+            progress("Could not write signature cache entry $entry: ${e.message}")
+        }
+        codebase.postProcess()
+        return codebase
+    }
+
+    private fun computeKey(files: List<File>, kotlinStyleNulls: Boolean): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("$CACHE_VERSION:${Version.VERSION}:$kotlinStyleNulls".toByteArray(Charsets.UTF_8))
+        for (file in files) {
+            digest.update(0)
+            digest.update(file.path.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+            digest.update(file.readBytes())
+        }
+        val sb = StringBuilder()
+        for (b in digest.digest()) {
+            sb.append(String.format("%02x", b))
+        }
+        return sb.toString()
+    }
+
+    private fun write(codebase: TextCodebase, entry: File) {
+        dir.mkdirs()
+        // Write to a temporary file and move it in place such that concurrent
+        // builds sharing the cache directory never observe a partial entry
+        val temp = File.createTempFile("signatures", ".tmp", dir)
+        try {
+            DataOutputStream(BufferedOutputStream(temp.outputStream())).use { out ->
+                Writer(out).writeCodebase(codebase)
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            temp.delete()
+        }
+    }
+
+    private fun read(entry: File, location: File): TextCodebase {
+        DataInputStream(BufferedInputStream(entry.inputStream())).use { input ->
+            return Reader(input, location).readCodebase()
+        }
+    }
+
+    private class Writer(private val out: DataOutputStream) {
+        private val strings = HashMap<String, Int>()
+
+        fun writeCodebase(codebase: TextCodebase) {
+            out.writeInt(MAGIC)
+            out.writeInt(CACHE_VERSION)
+            writeString(codebase.format.name)
+            out.writeBoolean(codebase.kotlinStyleNulls)
+            writeString(codebase.description)
+
+            val packages = codebase.getPackages().packages
+            out.writeInt(packages.size)
+            for (pkg in packages) {
+                pkg as TextPackageItem
+                writeString(pkg.name())
+                writeModifiers(pkg.modifiers)
+                writePosition(pkg.position)
+                val classes = pkg.classList()
+                out.writeInt(classes.size)
+                for (cls in classes) {
+                    writeClass(codebase, cls as TextClassItem)
+                }
+            }
+        }
+
+        private fun writeClass(codebase: TextCodebase, cls: TextClassItem) {
+            writePosition(cls.position)
+            writeModifiers(cls.modifiers)
+            out.writeBoolean(cls.isInterface())
+            out.writeBoolean(cls.isEnum())
+            out.writeBoolean(cls.isAnnotationType())
+            writeString(cls.asTypeInfo().type)
+            writeString(cls.name)
+            writeStrings(cls.annotations)
+            out.writeBoolean(cls.deprecated)
+            writeString(codebase.mappedSuperClass(cls))
+            writeStrings(codebase.mappedInterfaces(cls))
+
+            val constructors = cls.constructors()
+            out.writeInt(constructors.size)
+            for (constructor in constructors) {
+                writeMethod(constructor as TextMethodItem)
+            }
+
+            val methods = cls.methods()
+            out.writeInt(methods.size)
+            for (method in methods) {
+                writeMethod(method as TextMethodItem)
+            }
+
+            val fields = cls.fields()
+            out.writeInt(fields.size)
+            for (field in fields) {
+                field as TextFieldItem
+                writeString(field.name())
+                writeModifiers(field.modifiers)
+                writeString((field.type() as TextTypeItem).type)
+                writeValue(field.initialValue(true))
+                writePosition(field.position)
+                out.writeBoolean(field.deprecated)
+                out.writeBoolean(field.isEnumConstant())
+            }
+
+            val properties = cls.properties()
+            out.writeInt(properties.size)
+            for (property in properties) {
+                property as TextPropertyItem
+                writeString(property.name())
+                writeModifiers(property.modifiers)
+                writeString((property.type() as TextTypeItem).type)
+                writePosition(property.position)
+                out.writeBoolean(property.deprecated)
+            }
+        }
+
+        private fun writeMethod(method: TextMethodItem) {
+            writeString(method.name())
+            writeModifiers(method.modifiers)
+            writePosition(method.position)
+            out.writeBoolean(method.deprecated)
+            if (!method.isConstructor()) {
+                writeString((method.returnType() as TextTypeItem).type)
+                val typeParameterList = method.typeParameterList()
+                writeString(if (typeParameterList is TextTypeParameterList) typeParameterList.toString() else null)
+            }
+            val parameters = method.parameters()
+            out.writeInt(parameters.size)
+            for (parameter in parameters) {
+                parameter as TextParameterItem
+                writeString(parameter.name())
+                writeString(parameter.publicName())
+                writeString(parameter.defaultValue())
+                out.writeInt(parameter.parameterIndex)
+                writeString(parameter.type().type)
+                writeModifiers(parameter.modifiers)
+                writePosition(parameter.position)
+            }
+            writeStrings(method.throwsTypeNames())
+            writeString(method.defaultValue())
+            out.writeBoolean(method.isVarArg())
+        }
+
+        private fun writeModifiers(modifiers: TextModifiers) {
+            out.writeInt(modifiers.flags())
+            writeStrings(modifiers.annotations().map { it.toSource() })
+        }
+
+        private fun writePosition(position: SourcePositionInfo) {
+            if (position === SourcePositionInfo.UNKNOWN) {
+                writeString(null)
+            } else {
+                writeString(position.file)
+                out.writeInt(position.line)
+            }
+        }
+
+        private fun writeValue(value: Any?) {
+            when (value) {
+                null -> out.writeByte(VALUE_NULL)
+                is Boolean -> { out.writeByte(VALUE_BOOLEAN); out.writeBoolean(value) }
+                is Int -> { out.writeByte(VALUE_INT); out.writeInt(value) }
+                is Long -> { out.writeByte(VALUE_LONG); out.writeLong(value) }
+                is Float -> { out.writeByte(VALUE_FLOAT); out.writeFloat(value) }
+                is Double -> { out.writeByte(VALUE_DOUBLE); out.writeDouble(value) }
+                is Char -> { out.writeByte(VALUE_CHAR); out.writeChar(value.toInt()) }
+                is String -> { out.writeByte(VALUE_STRING); writeString(value) }
+                else -> throw IOException("Unexpected constant value type ${value.javaClass.name}")
+            }
+        }
+
+        private fun writeStrings(list: List<String>?) {
+            if (list == null) {
+                out.writeInt(-1)
+                return
+            }
+            out.writeInt(list.size)
+            for (s in list) {
+                writeString(s)
+            }
+        }
+
+        /** Writes a string, or a back reference to an identical string written earlier */
+        private fun writeString(s: String?) {
+            if (s == null) {
+                out.writeInt(STRING_NULL)
+                return
+            }
+            val index = strings[s]
+            if (index != null) {
+                out.writeInt(index)
+                return
+            }
+            strings[s] = strings.size
+            out.writeInt(STRING_NEW)
+            val bytes = s.toByteArray(Charsets.UTF_8)
+            out.writeInt(bytes.size)
+            out.write(bytes)
+        }
+    }
+
+    private class Reader(private val input: DataInputStream, private val location: File) {
+        private val strings = ArrayList<String>()
+        private lateinit var codebase: TextCodebase
+
+        fun readCodebase(): TextCodebase {
+            if (input.readInt() != MAGIC || input.readInt() != CACHE_VERSION) {
+                throw IOException("Not a signature cache entry of version $CACHE_VERSION")
+            }
+            val api = TextCodebase(location)
+            codebase = api
+            val formatName = readRequiredString()
+            api.format = FileFormat.values().firstOrNull { it.name == formatName }
+                ?: throw IOException("Unknown format $formatName")
+            api.kotlinStyleNulls = input.readBoolean()
+            api.description = readRequiredString()
+
+            repeat(readCount()) {
+                val pkg = TextPackageItem(api, readRequiredString(), readModifiers(), readPosition())
+                repeat(readCount()) {
+                    pkg.addClass(readClass(pkg))
+                }
+                api.addPackage(pkg)
+            }
+            return api
+        }
+
+        private fun readClass(pkg: TextPackageItem): TextClassItem {
+            val position = readPosition()
+            val modifiers = readModifiers()
+            val isInterface = input.readBoolean()
+            val isEnum = input.readBoolean()
+            val isAnnotation = input.readBoolean()
+            val typeInfo = codebase.obtainTypeFromString(readRequiredString())
+            val rawName = readRequiredString()
+            val annotations = readStrings()
+            val cls = TextClassItem(codebase, position, modifiers, isInterface, isEnum, isAnnotation,
+                typeInfo.toErasedTypeString(null), typeInfo.qualifiedTypeName(), rawName, annotations)
+            cls.setContainingPackage(pkg)
+            cls.setTypeInfo(typeInfo)
+            cls.deprecated = input.readBoolean()
+            codebase.mapClassToSuper(cls, readString())
+            readStrings()?.forEach { codebase.mapClassToInterface(cls, it) }
+
+            repeat(readCount()) {
+                cls.addConstructor(readMethod(cls, true) as TextConstructorItem)
+            }
+            repeat(readCount()) {
+                cls.addMethod(readMethod(cls, false))
+            }
+            repeat(readCount()) {
+                val name = readRequiredString()
+                val fieldModifiers = readModifiers()
+                val type = codebase.obtainTypeFromString(readRequiredString())
+                val value = readValue()
+                val field = TextFieldItem(codebase, name, cls, fieldModifiers, type, value, readPosition())
+                field.deprecated = input.readBoolean()
+                if (input.readBoolean()) {
+                    cls.addEnumConstant(field)
+                } else {
+                    cls.addField(field)
+                }
+            }
+            repeat(readCount()) {
+                val name = readRequiredString()
+                val propertyModifiers = readModifiers()
+                val type = codebase.obtainTypeFromString(readRequiredString())
+                val property = TextPropertyItem(codebase, name, cls, propertyModifiers, type, readPosition())
+                property.deprecated = input.readBoolean()
+                cls.addProperty(property)
+            }
+            return cls
+        }
+
+        private fun readMethod(cls: TextClassItem, isConstructor: Boolean): TextMethodItem {
+            val name = readRequiredString()
+            val modifiers = readModifiers()
+            val position = readPosition()
+            val deprecated = input.readBoolean()
+            val method = if (isConstructor) {
+                TextConstructorItem(codebase, name, cls, modifiers, cls.asTypeInfo(), position)
+            } else {
+                val returnTypeString = readRequiredString()
+                val typeParameterListString = readString()
+                val typeParameterList = if (typeParameterListString != null) {
+                    TextTypeParameterList.create(codebase, null, typeParameterListString)
+                } else {
+                    TypeParameterList.NONE
+                }
+                val returnType = codebase.obtainTypeFromString(returnTypeString, cls, typeParameterList)
+                val method = TextMethodItem(codebase, name, cls, modifiers, returnType, position)
+                method.setTypeParameterList(typeParameterList)
+                if (typeParameterList is TextTypeParameterList) {
+                    typeParameterList.owner = method
+                }
+                method
+            }
+            method.deprecated = deprecated
+
+            repeat(readCount()) {
+                val parameterName = readRequiredString()
+                val publicName = readString()
+                val defaultValue = readString()
+                val index = input.readInt()
+                val type = codebase.obtainTypeFromString(readRequiredString(), cls, method.typeParameterList())
+                val parameterModifiers = readModifiers()
+                method.addParameter(TextParameterItem(codebase, method, parameterName, publicName, defaultValue,
+                    index, type, parameterModifiers, readPosition()))
+            }
+            readStrings()?.forEach { method.addException(it) }
+            method.setAnnotationDefault(readRequiredString())
+            method.setVarargs(input.readBoolean())
+            return method
+        }
+
+        private fun readModifiers(): TextModifiers {
+            val modifiers = TextModifiers(codebase, input.readInt(), null)
+            modifiers.addAnnotations(readStrings())
+            return modifiers
+        }
+
+        private fun readPosition(): SourcePositionInfo {
+            val file = readString() ?: return SourcePositionInfo.UNKNOWN
+            return SourcePositionInfo(file, input.readInt())
+        }
+
+        private fun readValue(): Any? {
+            val type = input.readByte().toInt()
+            return when (type) {
+                VALUE_NULL -> null
+                VALUE_BOOLEAN -> input.readBoolean()
+                VALUE_INT -> input.readInt()
+                VALUE_LONG -> input.readLong()
+                VALUE_FLOAT -> input.readFloat()
+                VALUE_DOUBLE -> input.readDouble()
+                VALUE_CHAR -> input.readChar()
+                VALUE_STRING -> readRequiredString()
+                else -> throw IOException("Unexpected constant value tag $type")
+            }
+        }
+
+        private fun readCount(): Int {
+            val count = input.readInt()
+            if (count < 0) {
+                throw IOException("Unexpected count $count")
+            }
+            return count
+        }
+
+        private fun readStrings(): List<String>? {
+            val count = input.readInt()
+            if (count == -1) {
+                return null
+            }
+            val list = ArrayList<String>(count)
+            repeat(count) {
+                list.add(readRequiredString())
+            }
+            return list
+        }
+
+        private fun readRequiredString(): String {
+            return readString() ?: throw IOException("Unexpected null string")
+        }
+
+        private fun readString(): String? {
+            val index = input.readInt()
+            return when {
+                index == STRING_NULL -> null
+                index == STRING_NEW -> {
+                    val length = input.readInt()
+                    if (length < 0) {
+                        throw EOFException()
+                    }
+                    val bytes = ByteArray(length)
+                    input.readFully(bytes)
+                    val s = String(bytes, Charsets.UTF_8)
+                    strings.add(s)
+                    s
+                }
+                index >= 0 && index < strings.size -> strings[index]
+                else -> throw IOException("Invalid string reference $index")
+            }
+        }
+    }
+
+    companion object {
+        /** Bump whenever the entry layout or the parsed model changes shape */
+        private const val CACHE_VERSION = 1
+        private const val MAGIC = 0x4d565343 // "MVSC"
+
+        private const val STRING_NULL = -1
+        private const val STRING_NEW = -2
+
+        private const val VALUE_NULL = 0
+        private const val VALUE_BOOLEAN = 1
+        private const val VALUE_INT = 2
+        private const val VALUE_LONG = 3
+        private const val VALUE_FLOAT = 4
+        private const val VALUE_DOUBLE = 5
+        private const val VALUE_CHAR = 6
+        private const val VALUE_STRING = 7
+    }
+}
@@ -17,30 +17,60 @@
 package com.android.tools.metalava
 
 import com.android.tools.metalava.doclava1.ApiFile
+import com.android.tools.metalava.doclava1.ApiFlagsCache
 import com.android.tools.metalava.doclava1.ApiParseException
+import com.android.tools.metalava.doclava1.TextCodebase
 import com.android.tools.metalava.model.Codebase
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
 
 object SignatureFileLoader {
-    private val map = mutableMapOf<File, Codebase>()
+    /**
+     * Concurrent since signature files can be loaded on several threads (see [ConvertJarsToSignatureFiles]
+     * and [checkCompatibility])
+     */
+    private val map = ConcurrentHashMap<File, Codebase>()
 
+    /**
+     * Loads the signature file [file], or returns the codebase already loaded from it. Threads
+     * loading the same file at the same time share a single codebase.
+     */
     fun load(
         file: File,
         kotlinStyleNulls: Boolean? = null
     ): Codebase {
-        return map[file] ?: run {
-            val loaded = loadFromSignatureFiles(file, kotlinStyleNulls)
-            map[file] = loaded
-            loaded
+        return map.computeIfAbsent(file) { loadFromSignatureFiles(it, kotlinStyleNulls) }
+    }
+
+    /**
+     * Loads [text] as if it were the contents of the signature file [file], such as a
+     * signature file with some of its packages left out (see [SignaturePackages.select]).
+     * The result is not cached.
+     */
+    fun loadText(
+        file: File,
+        text: String,
+        kotlinStyleNulls: Boolean? = null
+    ): Codebase {
+        try {
+            return ApiFile.parseApi(file.path, text, kotlinStyleNulls ?: false)
+        } catch (ex: ApiParseException) {
+            val message = "Unable to parse signature file $file: ${ex.message}"
+            throw DriverException(message)
         }
     }
 
+    /** Forgets all previously loaded signature files */
+    fun clear() {
+        map.clear()
+    }
+
     private fun loadFromSignatureFiles(
         file: File,
         kotlinStyleNulls: Boolean? = null
     ): Codebase {
         try {
-            val codebase = ApiFile.parseApi(File(file.path), kotlinStyleNulls ?: false)
+            val codebase = parseApi(listOf(File(file.path)), kotlinStyleNulls ?: false)
             codebase.description = "Codebase loaded from ${file.path}"
             return codebase
         } catch (ex: ApiParseException) {
@@ -54,10 +84,22 @@ object SignatureFileLoader {
             throw IllegalArgumentException("files must not be empty")
         }
         try {
-            return ApiFile.parseApi(files, kotlinStyleNulls ?: false)
+            return parseApi(files, kotlinStyleNulls ?: false)
         } catch (ex: ApiParseException) {
             val message = "Unable to parse signature file: ${ex.message}"
             throw DriverException(message)
         }
     }
+
+    private fun parseApi(files: List<File>, kotlinStyleNulls: Boolean): TextCodebase {
+        val cacheDir = options.cacheDir
+        val codebase = if (cacheDir == null) {
+            ApiFile.parseApi(files, kotlinStyleNulls, options.threads)
+        } else {
+            SignatureFileCache(File(cacheDir, "signatures")).load(files, kotlinStyleNulls, options.threads)
+        }
+        // Signature files record the final API flags, so they will not change after loading
+        codebase.apiFlagsCache = ApiFlagsCache()
+        return codebase
+    }
 }
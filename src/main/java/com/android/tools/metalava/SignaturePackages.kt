@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import java.io.File
+import java.util.ArrayDeque
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * A signature file split into its header and the blocks of its packages, in file order.
+ * Each block runs from its `package name {` line up to the next one, so the header followed
+ * by all the blocks is the original text.
+ */
+class SignaturePackages(val header: String, val packages: Map<String, String>) {
+    /**
+     * Returns the text of this signature file with all the packages but [names] replaced
+     * by blank lines, such that the remaining items keep their line numbers
+     */
+    private fun text(names: Set<String>): String {
+        val sb = StringBuilder(header)
+        for ((name, block) in packages) {
+            if (name in names) {
+                sb.append(block)
+            } else {
+                for (c in block) {
+                    if (c == '\n') {
+                        sb.append(c)
+                    }
+                }
+            }
+        }
+        return sb.toString()
+    }
+
+    /**
+     * The result of [select]: whether two signature files are [identical], and if not, the
+     * texts to load in place of the files, or null to load them in full
+     */
+    class Selection(val identical: Boolean, val previousText: String?, val currentText: String?)
+
+    companion object {
+        /** Supertypes which the signature files leave out, such as the super class of enums */
+        private val IMPLICIT_SUPERTYPE_PACKAGES = listOf("java.lang", "java.lang.annotation")
+
+        private val QUALIFIED_NAME = Regex("""[A-Za-z_$][\w$]*(\.[A-Za-z_$][\w$]*)+""")
+
+        fun parse(text: String): SignaturePackages {
+            val start = nextPackage(text, 0)
+            val packages = LinkedHashMap<String, String>()
+            var offset = start
+            while (offset < text.length) {
+                val end = nextPackage(text, offset + 1)
+                val block = text.substring(offset, end)
+                // package [modifiers] name {
+                val name = block.substringBefore('\n').trimEnd().removeSuffix("{").trimEnd().substringAfterLast(' ')
+                packages[name] = block
+                offset = end
+            }
+            return SignaturePackages(text.substring(0, start), packages)
+        }
+
+        /** Returns the offset of the first package block at or after [offset], or the end of [text] */
+        private fun nextPackage(text: String, offset: Int): Int {
+            if (offset == 0 && text.startsWith("package ")) {
+                return 0
+            }
+            val index = text.indexOf("\npackage ", Math.max(0, offset - 1))
+            return if (index == -1) text.length else index + 1
+        }
+
+        /**
+         * Decides what to load for comparing the API in the signature file [previous] with
+         * the one in [current].
+         *
+         * Files with the same text are identical. Otherwise, if only some packages differ,
+         * only those packages and the ones the comparison looks at from them (see
+         * [packagesToCompare]) are loaded; the others are blanked out so that reported line
+         * numbers don't change.
+         */
+        fun select(previous: File, current: File): Selection {
+            val previousText = previous.readText(UTF_8)
+            val currentText = current.readText(UTF_8)
+            if (previousText == currentText) {
+                return Selection(true, null, null)
+            }
+
+            val previousPackages = parse(previousText)
+            val currentPackages = parse(currentText)
+            if (previousPackages.header != currentPackages.header) {
+                // Such as a different format; compare everything
+                return Selection(false, null, null)
+            }
+
+            val names = LinkedHashSet(previousPackages.packages.keys)
+            names.addAll(currentPackages.packages.keys)
+            val changed = names.filter { previousPackages.packages[it] != currentPackages.packages[it] }.toSet()
+            val selected = packagesToCompare(previousPackages, currentPackages, changed)
+            if (selected.size == names.size) {
+                return Selection(false, null, null)
+            }
+
+            progress("Comparing ${selected.size} of ${names.size} packages (${changed.size} changed): ")
+            return Selection(false, previousPackages.text(selected), currentPackages.text(selected))
+        }
+
+        /**
+         * Returns the packages of [previous] and [current] needed to compare the [changed]
+         * packages the same way as when comparing the files in full. Besides the changed
+         * packages, these are
+         * - the packages whose classes extend, implement or throw classes of a changed
+         *   package, directly or indirectly, since checks such as the one for a changed
+         *   super class look at the whole class hierarchy;
+         * - the packages of all the classes referenced by a changed package, whose class
+         *   hierarchy is looked at when for example a return type becomes a type parameter;
+         * - and, transitively, the packages of the super classes, interfaces and thrown
+         *   exceptions of all of the above, such that inherited members are found.
+         */
+        private fun packagesToCompare(
+            previous: SignaturePackages,
+            current: SignaturePackages,
+            changed: Set<String>
+        ): Set<String> {
+            val names = HashSet(previous.packages.keys)
+            names.addAll(current.packages.keys)
+
+            fun blocks(name: String) = listOfNotNull(previous.packages[name], current.packages[name])
+
+            fun packageOf(className: String): String? {
+                var name = className
+                while (true) {
+                    val dot = name.lastIndexOf('.')
+                    if (dot == -1) {
+                        return null
+                    }
+                    name = name.substring(0, dot)
+                    if (name in names) {
+                        return name
+                    }
+                }
+            }
+
+            val supertypes = HashMap<String, MutableSet<String>>()
+            val subtypes = HashMap<String, MutableSet<String>>()
+            for (name in names) {
+                for (block in blocks(name)) {
+                    for (className in hierarchyReferences(block)) {
+                        val other = packageOf(className) ?: continue
+                        if (other != name) {
+                            supertypes.getOrPut(name) { HashSet() }.add(other)
+                            subtypes.getOrPut(other) { HashSet() }.add(name)
+                        }
+                    }
+                }
+            }
+
+            val selected = closure(changed, subtypes).toMutableSet()
+            for (name in changed) {
+                for (block in blocks(name)) {
+                    for (match in QUALIFIED_NAME.findAll(block)) {
+                        packageOf(match.value)?.let { selected.add(it) }
+                    }
+                }
+            }
+            selected.addAll(IMPLICIT_SUPERTYPE_PACKAGES.filter { it in names })
+            return closure(selected, supertypes)
+        }
+
+        /** Returns [start] along with everything reachable from it through [edges] */
+        private fun closure(start: Set<String>, edges: Map<String, Set<String>>): Set<String> {
+            val result = HashSet(start)
+            val queue = ArrayDeque(start)
+            while (queue.isNotEmpty()) {
+                val name = queue.poll()
+                for (other in edges[name] ?: continue) {
+                    if (result.add(other)) {
+                        queue.add(other)
+                    }
+                }
+            }
+            return result
+        }
+
+        /**
+         * Returns the names of the super classes, interfaces and thrown exceptions listed in
+         * the given package block. This may include a few other names, which only means that
+         * a few more packages get compared.
+         */
+        private fun hierarchyReferences(block: String): Sequence<String> {
+            return block.lineSequence().flatMap { line ->
+                val clause = withoutTypeArguments(line)
+                val start = listOf(" extends ", " implements ", " throws ")
+                    .map { clause.indexOf(it) }
+                    .filter { it != -1 }
+                    .min()
+                if (start != null) {
+                    QUALIFIED_NAME.findAll(clause, start).map { it.value }
+                } else {
+                    emptySequence()
+                }
+            }
+        }
+
+        private fun withoutTypeArguments(line: String): String {
+            if (line.indexOf('<') == -1) {
+                return line
+            }
+            val sb = StringBuilder(line.length)
+            var depth = 0
+            for (c in line) {
+                when {
+                    c == '<' -> depth++
+                    c == '>' && depth > 0 -> depth--
+                    depth == 0 -> sb.append(c)
+                }
+            }
+            return sb.toString()
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import com.android.SdkConstants.DOT_JAVA
+import com.android.SdkConstants.DOT_KT
+import java.io.File
+import java.io.IOException
+import java.nio.file.FileVisitOption
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.security.MessageDigest
+import java.util.EnumSet
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveTask
+
+/**
+ * Finds the Java and Kotlin source files below a set of source path roots (see
+ * [gatherSources]).
+ *
+ * Each directory is listed with [Files.walkFileTree], which hands out the attributes of
+ * every entry along with its name, so entries don't need to be checked one system call
+ * at a time. With more than one thread the subdirectories are listed concurrently in a
+ * fork/join pool. As before, `.git` directories are skipped, and symbolic links to
+ * directories are not followed but returned as [Result.ignoredSymlinks]; symbolic links
+ * to source files are included.
+ *
+ * When [cacheDir] is set, the discovered files are stored there along with the time stamps
+ * of all the visited directories. Adding, removing or renaming an entry updates the time
+ * stamp of its directory, so as long as none of them changed, the stored list is returned
+ * instead of walking the tree again.
+ */
+class SourceDiscovery(private val threads: Int = 1, private val cacheDir: File? = null) {
+    class Result(val sources: List<File>, val ignoredSymlinks: List<File>)
+
+    /** The contents found below one or more directories */
+    private class Listing {
+        val sources = mutableListOf<File>()
+        val ignoredSymlinks = mutableListOf<File>()
+        /** The visited directories and their time stamps */
+        val directories = mutableListOf<Pair<File, Long>>()
+        val subdirectories = mutableListOf<Path>()
+
+        fun addAll(other: Listing) {
+            sources.addAll(other.sources)
+            ignoredSymlinks.addAll(other.ignoredSymlinks)
+            directories.addAll(other.directories)
+        }
+    }
+
+    fun find(roots: List<File>): Result {
+        val entry = cacheDir?.let { File(it, computeKey(roots) + ".txt") }
+        if (entry != null) {
+            readEntry(entry)?.let { return it }
+        }
+
+        val listing = Listing()
+        for (root in roots) {
+            val path = root.toPath()
+            val attributes = try {
+                Files.readAttributes(path, BasicFileAttributes::class.java, LinkOption.NOFOLLOW_LINKS)
+            } catch (e: IOException) {
+                continue
+            }
+            addEntry(listing, path, attributes)
+        }
+
+        if (listing.subdirectories.isNotEmpty()) {
+            if (threads > 1) {
+                val pool = ForkJoinPool(threads)
+                try {
+                    for (dir in listing.subdirectories) {
+                        listing.addAll(pool.invoke(DirectoryTask(dir)))
+                    }
+                } finally {
+                    pool.shutdownNow()
+                }
+            } else {
+                for (dir in listing.subdirectories) {
+                    listing.addAll(listTree(dir))
+                }
+            }
+        }
+
+        if (entry != null) {
+            writeEntry(entry, listing)
+        }
+        return Result(listing.sources, listing.ignoredSymlinks)
+    }
+
+    /** Lists the given directory and all its subdirectories on the current thread */
+    private fun listTree(dir: Path): Listing {
+        val listing = listDirectory(dir)
+        for (subdirectory in listing.subdirectories) {
+            listing.addAll(listTree(subdirectory))
+        }
+        return listing
+    }
+
+    /** Lists the given directory, and forks tasks for all its subdirectories */
+    private inner class DirectoryTask(private val dir: Path) : RecursiveTask<Listing>() {
+        override fun compute(): Listing {
+            val listing = listDirectory(dir)
+            val tasks = listing.subdirectories.map { DirectoryTask(it) }
+            ForkJoinTask.invokeAll(tasks)
+            for (task in tasks) {
+                listing.addAll(task.join())
+            }
+            return listing
+        }
+    }
+
+    /** Lists the entries of a single directory */
+    private fun listDirectory(dir: Path): Listing {
+        val listing = Listing()
+        try {
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption::class.java), 1,
+                object : SimpleFileVisitor<Path>() {
+                    override fun preVisitDirectory(path: Path, attributes: BasicFileAttributes): FileVisitResult {
+                        listing.directories.add(path.toFile() to attributes.lastModifiedTime().toMillis())
+                        return FileVisitResult.CONTINUE
+                    }
+
+                    override fun visitFile(path: Path, attributes: BasicFileAttributes): FileVisitResult {
+                        addEntry(listing, path, attributes)
+                        return FileVisitResult.CONTINUE
+                    }
+
+                    override fun visitFileFailed(path: Path, e: IOException): FileVisitResult {
+                        return FileVisitResult.CONTINUE
+                    }
+                })
+        } catch (e: IOException) {
+            // Unreadable directories are skipped, just like File.listFiles returning null
+        }
+        return listing
+    }
+
+    private fun addEntry(listing: Listing, path: Path, attributes: BasicFileAttributes) {
+        val name = path.fileName?.toString() ?: ""
+        if (attributes.isSymbolicLink) {
+            // Only costs extra system calls for symbolic links, which are rare in source trees
+            if (Files.isDirectory(path)) {
+                if (name != ".git") {
+                    listing.ignoredSymlinks.add(path.toFile())
+                }
+            } else if (Files.isRegularFile(path) && isSource(name)) {
+                listing.sources.add(path.toFile())
+            }
+        } else if (attributes.isDirectory) {
+            if (name != ".git") {
+                listing.subdirectories.add(path)
+            }
+        } else if (attributes.isRegularFile && isSource(name)) {
+            listing.sources.add(path.toFile())
+        }
+    }
+
+    private fun isSource(name: String): Boolean = name.endsWith(DOT_JAVA) || name.endsWith(DOT_KT)
+
+    private fun computeKey(roots: List<File>): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("$CACHE_VERSION:${Version.VERSION}".toByteArray(Charsets.UTF_8))
+        for (root in roots) {
+            digest.update(0)
+            digest.update(root.path.toByteArray(Charsets.UTF_8))
+        }
+        val sb = StringBuilder()
+        for (b in digest.digest()) {
+            sb.append(String.format("%02x", b))
+        }
+        return sb.toString()
+    }
+
+    private fun readEntry(entry: File): Result? {
+        if (!entry.isFile) {
+            return null
+        }
+        val sources = mutableListOf<File>()
+        val ignoredSymlinks = mutableListOf<File>()
+        try {
+            val lines = entry.readLines()
+            if (lines.firstOrNull() != HEADER) {
+                return null
+            }
+            for (line in lines.subList(1, lines.size)) {
+                val fields = line.split('\t', limit = 3)
+                when (fields[0]) {
+                    "D" -> {
+                        // Directory: must still have the same time stamp
+                        if (fields.size != 3) {
+                            return null
+                        }
+                        val lastModified = Files.getLastModifiedTime(File(fields[2]).toPath(), LinkOption.NOFOLLOW_LINKS)
+                        if (lastModified.toMillis() != fields[1].toLongOrNull()) {
+                            return null
+                        }
+                    }
+                    "F" -> sources.add(File(fields[1]))
+                    "S" -> ignoredSymlinks.add(File(fields[1]))
+                    else -> return null
+                }
+            }
+        } catch (e: IOException) {
+            return null
+        }
+        return Result(sources, ignoredSymlinks)
+    }
+
+    private fun writeEntry(entry: File, listing: Listing) {
+        // Don't trust the time stamps of directories modified just now: another change
+        // within the resolution of the file system clock would go unnoticed
+        val now = System.currentTimeMillis()
+        if (listing.directories.any { now - it.second <= TIMESTAMP_RESOLUTION }) {
+            return
+        }
+
+        var temp: File? = null
+        try {
+            entry.parentFile.mkdirs()
+            // Write to a temporary file and move it in place such that concurrent
+            // builds sharing the cache directory never observe a partial entry
+            temp = File.createTempFile("sources", ".tmp", entry.parentFile)
+            temp.bufferedWriter().use { writer ->
+                writer.write("$HEADER\n")
+                for ((dir, lastModified) in listing.directories) {
+                    writer.write("D\t$lastModified\t${dir.path}\n")
+                }
+                for (file in listing.sources) {
+                    writer.write("F\t${file.path}\n")
+                }
+                for (file in listing.ignoredSymlinks) {
+                    writer.write("S\t${file.path}\n")
+                }
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            // The tree is simply walked again next time
+        } finally {
+            temp?.delete()
+        }
+    }
+
+    companion object {
+        /** Bump whenever the entry layout or the discovered files change */
+        private const val CACHE_VERSION = 1
+        private const val HEADER = "metalava source list $CACHE_VERSION"
+        private const val TIMESTAMP_RESOLUTION = 2000L
+    }
+}
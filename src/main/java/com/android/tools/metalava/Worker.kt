@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import com.android.tools.metalava.model.defaultConfiguration
+import com.google.common.base.Stopwatch
+import java.io.BufferedReader
+import java.io.File
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.PrintStream
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * Runs metalava as a persistent worker (see [ARG_PERSISTENT_WORKER]): instead of
+ * running once, requests are read from [input] and each is run through [run], with
+ * a response written to [output] when it completes.
+ *
+ * This uses the JSON flavor of the persistent worker protocol used by build systems
+ * such as Bazel: each request is a single line JSON object such as
+ * `{"arguments": ["--api", "api.txt", "@flags"], "requestId": 1}`, and each response
+ * is a single line `{"exitCode": 0, "output": "...", "requestId": 1}`. Arguments of
+ * the form `@file` are replaced by the lines of that file. Lines which are not valid
+ * requests get a failed response with request id 0.
+ *
+ * Keeping the process alive avoids repeating JVM startup, class loading, JIT warm-up
+ * and the initialization of the IntelliJ application environment for every invocation;
+ * only the project environments are disposed between requests. All other global
+ * state ([options], [reporter], [compatibility], issue configuration, ...) is
+ * recreated for each request just like for a regular invocation.
+ *
+ * Returns when [input] is closed.
+ */
+fun runWorker(input: InputStream, output: PrintStream) {
+    val reader = BufferedReader(InputStreamReader(input, Charsets.UTF_8))
+    while (true) {
+        val line = reader.readLine() ?: break
+        if (line.isBlank()) {
+            continue
+        }
+        val request = try {
+            JsonParser(line).parseObject()
+        } catch (e: IllegalArgumentException) {
+            // Without a request id the build system can only match this with a request
+            // by its position, which only works for requests that are not multiplexed
+            writeResponse(output, 0, false, "$PROGRAM_NAME worker: malformed request: ${e.message}\n")
+            continue
+        }
+        val requestId = (request["requestId"] as? Number)?.toInt() ?: 0
+        val arguments = (request["arguments"] as? List<*>)?.map { it.toString() } ?: emptyList()
+
+        val args = expandArgumentFiles(arguments)
+        val buffer = StringWriter()
+        val writer = PrintWriter(buffer)
+        val timer = Stopwatch.createStarted()
+        val success = try {
+            runRequest(args, writer)
+        } catch (e: Throwable) {
+            e.printStackTrace(writer)
+            false
+        }
+        writer.flush()
+        if (args.contains(ARG_VERBOSE)) {
+            // Timing goes to the worker log rather than into the output of the action
+            System.err.println("$PROGRAM_NAME worker: request $requestId finished in ${timer.elapsed(MILLISECONDS)} ms")
+        }
+
+        writeResponse(output, requestId, success, buffer.toString())
+    }
+}
+
+private fun writeResponse(output: PrintStream, requestId: Int, success: Boolean, text: String) {
+    output.println(
+        "{\"exitCode\":${if (success) 0 else 1}," +
+            "\"output\":${jsonString(text)}," +
+            "\"requestId\":$requestId}"
+    )
+    output.flush()
+}
+
+private fun runRequest(args: Array<String>, writer: PrintWriter): Boolean {
+    // Reset the global state which is not recreated by run()
+    defaultConfiguration.reset()
+    SignatureFileLoader.clear()
+    hasFileReadViolations = false
+
+    try {
+        return run(args, writer, writer, setExitCode = false, disposeEnvironment = false)
+    } finally {
+        if (FileReadSandbox.isActivated) {
+            FileReadSandbox.deactivate()
+        }
+        FileReadSandbox.reset()
+    }
+}
+
+private fun expandArgumentFiles(arguments: List<String>): Array<String> {
+    val expanded = mutableListOf<String>()
+    for (argument in arguments) {
+        if (argument.startsWith("@") && File(argument.substring(1)).isFile) {
+            File(argument.substring(1)).readLines().filterTo(expanded) { it.isNotEmpty() }
+        } else {
+            expanded.add(argument)
+        }
+    }
+    return expanded.toTypedArray()
+}
+
+private fun jsonString(s: String): String {
+    val sb = StringBuilder(s.length + 2)
+    sb.append('"')
+    for (c in s) {
+        when (c) {
+            '"' -> sb.append("\\\"")
+            '\\' -> sb.append("\\\\")
+            '\n' -> sb.append("\\n")
+            '\r' -> sb.append("\\r")
+            '\t' -> sb.append("\\t")
+            else -> if (c < ' ') {
+                sb.append(String.format("\\u%04x", c.toInt()))
+            } else {
+                sb.append(c)
+            }
+        }
+    }
+    sb.append('"')
+    return sb.toString()
+}
+
+/**
+ * Minimal JSON parser for worker requests. Objects are returned as maps, arrays as lists,
+ * numbers as doubles; throws [IllegalArgumentException] on malformed input.
+ */
+private class JsonParser(private val text: String) {
+    private var offset = 0
+
+    fun parseObject(): Map<String, Any?> {
+        val value = parseValue()
+        skipWhitespace()
+        require(offset == text.length) { "Unexpected trailing content at $offset" }
+        @Suppress("UNCHECKED_CAST")
+        return value as? Map<String, Any?> ?: throw IllegalArgumentException("Expected an object")
+    }
+
+    private fun parseValue(): Any? {
+        skipWhitespace()
+        require(offset < text.length) { "Unexpected end of input" }
+        return when (text[offset]) {
+            '{' -> {
+                offset++
+                val map = LinkedHashMap<String, Any?>()
+                skipWhitespace()
+                if (!consume('}')) {
+                    do {
+                        skipWhitespace()
+                        val key = parseString()
+                        skipWhitespace()
+                        expect(':')
+                        map[key] = parseValue()
+                        skipWhitespace()
+                    } while (consume(','))
+                    expect('}')
+                }
+                map
+            }
+            '[' -> {
+                offset++
+                val list = ArrayList<Any?>()
+                skipWhitespace()
+                if (!consume(']')) {
+                    do {
+                        list.add(parseValue())
+                        skipWhitespace()
+                    } while (consume(','))
+                    expect(']')
+                }
+                list
+            }
+            '"' -> parseString()
+            't' -> literal("true", true)
+            'f' -> literal("false", false)
+            'n' -> literal("null", null)
+            else -> {
+                val start = offset
+                while (offset < text.length && text[offset] in "+-0123456789.eE") {
+                    offset++
+                }
+                text.substring(start, offset).toDoubleOrNull()
+                    ?: throw IllegalArgumentException("Unexpected character at $start")
+            }
+        }
+    }
+
+    private fun parseString(): String {
+        expect('"')
+        val sb = StringBuilder()
+        while (true) {
+            require(offset < text.length) { "Unterminated string" }
+            val c = text[offset++]
+            when (c) {
+                '"' -> return sb.toString()
+                '\\' -> {
+                    require(offset < text.length) { "Unterminated string" }
+                    when (val escaped = text[offset++]) {
+                        'b' -> sb.append('\b')
+                        'f' -> sb.append('\u000c')
+                        'n' -> sb.append('\n')
+                        'r' -> sb.append('\r')
+                        't' -> sb.append('\t')
+                        'u' -> {
+                            require(offset + 4 <= text.length) { "Invalid unicode escape" }
+                            val code = text.substring(offset, offset + 4).toIntOrNull(16)
+                                ?: throw IllegalArgumentException("Invalid unicode escape")
+                            sb.append(code.toChar())
+                            offset += 4
+                        }
+                        else -> sb.append(escaped)
+                    }
+                }
+                else -> sb.append(c)
+            }
+        }
+    }
+
+    private fun literal(word: String, value: Any?): Any? {
+        require(text.startsWith(word, offset)) { "Unexpected character at $offset" }
+        offset += word.length
+        return value
+    }
+
+    private fun skipWhitespace() {
+        while (offset < text.length && text[offset].isWhitespace()) {
+            offset++
+        }
+    }
+
+    private fun consume(c: Char): Boolean {
+        if (offset < text.length && text[offset] == c) {
+            offset++
+            return true
+        }
+        return false
+    }
+
+    private fun expect(c: Char) {
+        require(consume(c)) { "Expected '$c' at $offset" }
+    }
+}
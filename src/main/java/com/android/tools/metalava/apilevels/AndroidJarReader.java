@@ -17,22 +17,28 @@ package com.android.tools.metalava.apilevels;
 
 import com.android.SdkConstants;
 import com.android.tools.metalava.model.Codebase;
+import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.Closeables;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldNode;
-import org.objectweb.asm.tree.MethodNode;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 /**
  * Reads all the android.jar files found in an SDK and generate a map of {@link ApiClass}.
@@ -44,6 +50,8 @@ class AndroidJarReader {
     private List<String> mPatterns;
     private File[] mApiLevels;
     private final Codebase mCodebase;
+    private final int mThreads;
+    private final JarSummaryCache mCache;
 
     AndroidJarReader(@NotNull List<String> patterns,
                      int minApi,
@@ -55,11 +63,18 @@ class AndroidJarReader {
         mCurrentJar = currentJar;
         mCurrentApi = currentApi;
         mCodebase = codebase;
+        mThreads = 1;
+        mCache = null;
     }
 
-    AndroidJarReader(@NotNull File[] apiLevels, @Nullable Codebase codebase) {
+    AndroidJarReader(@NotNull File[] apiLevels,
+                     @Nullable Codebase codebase,
+                     int threads,
+                     @Nullable File cacheDir) {
         mApiLevels = apiLevels;
         mCodebase = codebase;
+        mThreads = threads;
+        mCache = cacheDir != null ? new JarSummaryCache(cacheDir) : null;
     }
 
     public Api getApi() throws IOException {
@@ -71,10 +86,11 @@ class AndroidJarReader {
             }
 
             api = new Api(max);
+            List<File> jars = new ArrayList<>(mApiLevels.length);
             for (int apiLevel = 1; apiLevel < mApiLevels.length; apiLevel++) {
-                File jar = getAndroidJarFile(apiLevel);
-                readJar(api, apiLevel, jar);
+                jars.add(getAndroidJarFile(apiLevel));
             }
+            readJars(api, 1, jars);
             if (mCodebase != null) {
                 int apiLevel = mCodebase.getApiLevel();
                 if (apiLevel != -1) {
@@ -84,6 +100,7 @@ class AndroidJarReader {
         } else {
             api = new Api(mCurrentApi);
             // Get all the android.jar. They are in platforms-#
+            List<File> jars = new ArrayList<>();
             int apiLevel = mMinApi - 1;
             while (true) {
                 apiLevel++;
@@ -95,12 +112,13 @@ class AndroidJarReader {
                     jar = getAndroidJarFile(apiLevel);
                 }
                 if (jar == null || !jar.isFile()) {
-                    if (mCodebase != null) {
-                        processCodebase(api, apiLevel);
-                    }
                     break;
                 }
-                readJar(api, apiLevel, jar);
+                jars.add(jar);
+            }
+            readJars(api, mMinApi, jars);
+            if (mCodebase != null) {
+                processCodebase(api, apiLevel);
             }
         }
 
@@ -119,65 +137,168 @@ class AndroidJarReader {
         AddApisFromCodebaseKt.addApisFromCodebase(api, apiLevel, mCodebase);
     }
 
-    private void readJar(Api api, int apiLevel, File jar) throws IOException {
-        api.update(apiLevel);
+    /**
+     * Reads the given jars, for consecutive API levels starting at {@code firstApiLevel},
+     * into the API. The jars are scanned concurrently when more than one thread was
+     * requested, but their classes are always added to the API in API level order.
+     */
+    private void readJars(Api api, int firstApiLevel, List<File> jars) throws IOException {
+        int threads = Math.min(mThreads, jars.size());
+        if (threads <= 1) {
+            for (int i = 0; i < jars.size(); i++) {
+                addClasses(api, firstApiLevel + i, readJar(jars.get(i)));
+            }
+            return;
+        }
 
-        FileInputStream fis = new FileInputStream(jar);
-        ZipInputStream zis = new ZipInputStream(fis);
-        ZipEntry entry = zis.getNextEntry();
-        while (entry != null) {
-            String name = entry.getName();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<JarClass>>> futures = new ArrayList<>(jars.size());
+            for (File jar : jars) {
+                futures.add(executor.submit(() -> readJar(jar)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                List<JarClass> classes;
+                try {
+                    classes = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + jars.get(i));
+                } catch (ExecutionException e) {
+                    Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+                    Throwables.throwIfUnchecked(e.getCause());
+                    throw new RuntimeException(e.getCause());
+                }
+                addClasses(api, firstApiLevel + i, classes);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            if (name.endsWith(SdkConstants.DOT_CLASS)) {
-                byte[] bytes = ByteStreams.toByteArray(zis);
-                ClassReader reader = new ClassReader(bytes);
-                ClassNode classNode = new ClassNode(Opcodes.ASM5);
-                reader.accept(classNode, 0 /*flags*/);
+    private static void addClasses(Api api, int apiLevel, List<JarClass> classes) {
+        api.update(apiLevel);
 
-                ApiClass theClass = api.addClass(classNode.name, apiLevel,
-                    (classNode.access & Opcodes.ACC_DEPRECATED) != 0);
+        for (JarClass jarClass : classes) {
+            ApiClass theClass = api.addClass(jarClass.name, apiLevel,
+                (jarClass.access & Opcodes.ACC_DEPRECATED) != 0);
 
-                theClass.updateHidden(apiLevel, (classNode.access & Opcodes.ACC_PUBLIC) == 0);
+            theClass.updateHidden(apiLevel, (jarClass.access & Opcodes.ACC_PUBLIC) == 0);
 
-                // super class
-                if (classNode.superName != null) {
-                    theClass.addSuperClass(classNode.superName, apiLevel);
-                }
+            // super class
+            if (jarClass.superName != null) {
+                theClass.addSuperClass(jarClass.superName, apiLevel);
+            }
 
-                // interfaces
-                for (Object interfaceName : classNode.interfaces) {
-                    theClass.addInterface((String) interfaceName, apiLevel);
+            // interfaces
+            if (jarClass.interfaces != null) {
+                for (String interfaceName : jarClass.interfaces) {
+                    theClass.addInterface(interfaceName, apiLevel);
                 }
+            }
 
-                // fields
-                for (Object field : classNode.fields) {
-                    FieldNode fieldNode = (FieldNode) field;
-                    if (((fieldNode.access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) == 0)) {
-                        continue;
-                    }
-                    if (!fieldNode.name.startsWith("this$") &&
-                        !fieldNode.name.equals("$VALUES")) {
-                        boolean deprecated = (fieldNode.access & Opcodes.ACC_DEPRECATED) != 0;
-                        theClass.addField(fieldNode.name, apiLevel, deprecated);
-                    }
-                }
+            // fields
+            for (int i = 0; i < jarClass.fields.size(); i++) {
+                theClass.addField(jarClass.fields.get(i), apiLevel, jarClass.deprecatedFields.get(i));
+            }
 
-                // methods
-                for (Object method : classNode.methods) {
-                    MethodNode methodNode = (MethodNode) method;
-                    if (((methodNode.access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) == 0)) {
-                        continue;
-                    }
-                    if (!methodNode.name.equals("<clinit>")) {
-                        boolean deprecated = (methodNode.access & Opcodes.ACC_DEPRECATED) != 0;
-                        theClass.addMethod(methodNode.name + methodNode.desc, apiLevel, deprecated);
-                    }
+            // methods
+            for (int i = 0; i < jarClass.methods.size(); i++) {
+                theClass.addMethod(jarClass.methods.get(i), apiLevel, jarClass.deprecatedMethods.get(i));
+            }
+        }
+    }
+
+    /**
+     * Reads the API relevant parts of all the classes in the given jar, from the summary
+     * cache when possible. This does not touch the {@link Api}, so it can be called for
+     * several jars at the same time.
+     */
+    private List<JarClass> readJar(File jar) throws IOException {
+        if (mCache == null) {
+            return scanJar(jar);
+        }
+        String key = mCache.computeKey(jar);
+        List<JarClass> classes = mCache.get(key);
+        if (classes == null) {
+            classes = scanJar(jar);
+            mCache.put(key, classes);
+        }
+        return classes;
+    }
+
+    private static List<JarClass> scanJar(File jar) throws IOException {
+        List<JarClass> classes = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(SdkConstants.DOT_CLASS)) {
+                    continue;
+                }
+                byte[] bytes;
+                try (InputStream stream = zipFile.getInputStream(entry)) {
+                    bytes = ByteStreams.toByteArray(stream);
                 }
+                JarClass jarClass = new JarClass();
+                new ClassReader(bytes).accept(jarClass,
+                    ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                classes.add(jarClass);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * The API relevant parts of a class file: its name, access flags, super types, and its
+     * public and protected fields and methods. Collected with a plain {@link ClassVisitor}
+     * rather than a {@code ClassNode} to avoid building the full class tree. These are
+     * also what {@link JarSummaryCache} stores.
+     */
+    static class JarClass extends ClassVisitor {
+        String name;
+        int access;
+        String superName;
+        String[] interfaces;
+        final List<String> fields = new ArrayList<>();
+        final List<Boolean> deprecatedFields = new ArrayList<>();
+        final List<String> methods = new ArrayList<>();
+        final List<Boolean> deprecatedMethods = new ArrayList<>();
+
+        JarClass() {
+            super(Opcodes.ASM5);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName,
+                          String[] interfaces) {
+            this.name = name;
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+            if ((access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0 &&
+                !name.startsWith("this$") &&
+                !name.equals("$VALUES")) {
+                fields.add(name);
+                deprecatedFields.add((access & Opcodes.ACC_DEPRECATED) != 0);
             }
-            entry = zis.getNextEntry();
+            return null;
         }
 
-        Closeables.close(fis, true);
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                         String[] exceptions) {
+            if ((access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0 &&
+                !name.equals("<clinit>")) {
+                methods.add(name + desc);
+                deprecatedMethods.add((access & Opcodes.ACC_DEPRECATED) != 0);
+            }
+            return null;
+        }
     }
 
     private File getAndroidJarFile(int apiLevel) {
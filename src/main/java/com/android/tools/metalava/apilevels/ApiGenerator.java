@@ -159,7 +159,20 @@ public class ApiGenerator {
     public static boolean generate(@NotNull File[] apiLevels,
                                    @NotNull File outputFile,
                                    @Nullable Codebase codebase) throws IOException {
-        AndroidJarReader reader = new AndroidJarReader(apiLevels, codebase);
+        return generate(apiLevels, outputFile, codebase, 1, null);
+    }
+
+    /**
+     * Generates the API levels file from the given per API level jars, reading up to
+     * {@code threads} jars at the same time. If a {@code cacheDir} is given, a summary
+     * of each jar is kept there such that later runs don't have to scan the jars again.
+     */
+    public static boolean generate(@NotNull File[] apiLevels,
+                                   @NotNull File outputFile,
+                                   @Nullable Codebase codebase,
+                                   int threads,
+                                   @Nullable File cacheDir) throws IOException {
+        AndroidJarReader reader = new AndroidJarReader(apiLevels, codebase, threads, cacheDir);
         Api api = reader.getApi();
         return createApiFile(outputFile, api);
     }
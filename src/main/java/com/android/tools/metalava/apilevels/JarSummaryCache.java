@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.metalava.apilevels;
+
+import com.android.tools.metalava.Version;
+import com.google.common.io.ByteStreams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the per API level summaries {@link AndroidJarReader} extracts from each android.jar
+ * file, stored in a directory which survives between metalava invocations.
+ * <p>
+ * The jars for released API levels never change, so once their summaries have been written,
+ * generating the API levels file only needs to read these compact summaries (and the current
+ * codebase) instead of scanning every class in every historical jar. Entries are keyed by a
+ * digest of the jar contents, so the directory can be shared between builds and checkouts.
+ * Unreadable or stale entries are ignored and overwritten.
+ */
+class JarSummaryCache {
+    /** Bump whenever the entry layout or the summary contents change */
+    private static final int CACHE_VERSION = 1;
+    private static final int MAGIC = 0x4d56414c; // "MVAL"
+
+    private static final int STRING_NULL = -1;
+    private static final int STRING_NEW = -2;
+
+    private final File mDir;
+
+    JarSummaryCache(@NotNull File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the cached summary of the given jar, or null if there is no usable entry.
+     * The returned key is used to {@link #put} a summary computed by the caller.
+     */
+    @Nullable
+    List<AndroidJarReader.JarClass> get(@NotNull String key) {
+        File entry = new File(mDir, key + ".bin");
+        if (!entry.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            return read(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Stores the summary of the jar with the given key; failures only mean the entry is missing */
+    void put(@NotNull String key, @NotNull List<AndroidJarReader.JarClass> classes) {
+        File entry = new File(mDir, key + ".bin");
+        File temp = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            mDir.mkdirs();
+            // Write to a temporary file and move it in place such that concurrent
+            // builds sharing the cache directory never observe a partial entry
+            temp = File.createTempFile("api-levels", ".tmp", mDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                write(out, classes);
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignore) {
+            // The jar is simply scanned again next time
+        } finally {
+            if (temp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+    /** Computes the cache key of the given jar from its contents */
+    @NotNull
+    String computeKey(@NotNull File jar) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update((CACHE_VERSION + ":" + Version.INSTANCE.getVERSION()).getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = new DigestInputStream(new FileInputStream(jar), digest)) {
+            ByteStreams.exhaust(in);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void write(DataOutputStream out, List<AndroidJarReader.JarClass> classes) throws IOException {
+        Map<String, Integer> strings = new HashMap<>();
+        out.writeInt(MAGIC);
+        out.writeInt(CACHE_VERSION);
+        out.writeInt(classes.size());
+        for (AndroidJarReader.JarClass jarClass : classes) {
+            writeString(out, strings, jarClass.name);
+            out.writeInt(jarClass.access);
+            writeString(out, strings, jarClass.superName);
+            if (jarClass.interfaces == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(jarClass.interfaces.length);
+                for (String name : jarClass.interfaces) {
+                    writeString(out, strings, name);
+                }
+            }
+            out.writeInt(jarClass.fields.size());
+            for (int i = 0; i < jarClass.fields.size(); i++) {
+                writeString(out, strings, jarClass.fields.get(i));
+                out.writeBoolean(jarClass.deprecatedFields.get(i));
+            }
+            out.writeInt(jarClass.methods.size());
+            for (int i = 0; i < jarClass.methods.size(); i++) {
+                writeString(out, strings, jarClass.methods.get(i));
+                out.writeBoolean(jarClass.deprecatedMethods.get(i));
+            }
+        }
+    }
+
+    private static List<AndroidJarReader.JarClass> read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != CACHE_VERSION) {
+            throw new IOException("Not an API level summary of version " + CACHE_VERSION);
+        }
+        List<String> strings = new ArrayList<>();
+        int classCount = readCount(in);
+        List<AndroidJarReader.JarClass> classes = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            AndroidJarReader.JarClass jarClass = new AndroidJarReader.JarClass();
+            jarClass.name = readString(in, strings);
+            jarClass.access = in.readInt();
+            jarClass.superName = readString(in, strings);
+            int interfaceCount = in.readInt();
+            if (interfaceCount >= 0) {
+                jarClass.interfaces = new String[interfaceCount];
+                for (int j = 0; j < interfaceCount; j++) {
+                    jarClass.interfaces[j] = readString(in, strings);
+                }
+            }
+            int fieldCount = readCount(in);
+            for (int j = 0; j < fieldCount; j++) {
+                jarClass.fields.add(readString(in, strings));
+                jarClass.deprecatedFields.add(in.readBoolean());
+            }
+            int methodCount = readCount(in);
+            for (int j = 0; j < methodCount; j++) {
+                jarClass.methods.add(readString(in, strings));
+                jarClass.deprecatedMethods.add(in.readBoolean());
+            }
+            classes.add(jarClass);
+        }
+        return classes;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Unexpected count " + count);
+        }
+        return count;
+    }
+
+    /** Writes a string, or a back reference to an identical string written earlier */
+    private static void writeString(DataOutputStream out, Map<String, Integer> strings, String s)
+        throws IOException {
+        if (s == null) {
+            out.writeInt(STRING_NULL);
+            return;
+        }
+        Integer index = strings.get(s);
+        if (index != null) {
+            out.writeInt(index);
+            return;
+        }
+        strings.put(s, strings.size());
+        out.writeInt(STRING_NEW);
+        out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in, List<String> strings) throws IOException {
+        int index = in.readInt();
+        if (index == STRING_NULL) {
+            return null;
+        } else if (index == STRING_NEW) {
+            String s = in.readUTF();
+            strings.add(s);
+            return s;
+        } else if (index >= 0 && index < strings.size()) {
+            return strings.get(index);
+        } else {
+            throw new IOException("Invalid string reference " + index);
+        }
+    }
+}
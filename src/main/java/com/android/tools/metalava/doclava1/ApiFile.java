@@ -19,6 +19,7 @@ package com.android.tools.metalava.doclava1;
 import com.android.tools.lint.checks.infrastructure.ClassNameKt;
 import com.android.tools.metalava.FileFormat;
 import com.android.tools.metalava.model.AnnotationItem;
+import com.android.tools.metalava.model.ClassItem;
 import com.android.tools.metalava.model.DefaultModifierList;
 import com.android.tools.metalava.model.TypeParameterList;
 import com.android.tools.metalava.model.VisibilityLevel;
@@ -34,6 +35,7 @@ import com.android.tools.metalava.model.text.TextPropertyItem;
 import com.android.tools.metalava.model.text.TextTypeItem;
 import com.android.tools.metalava.model.text.TextTypeParameterList;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.io.Files;
 import kotlin.Pair;
 import kotlin.text.StringsKt;
@@ -43,7 +45,15 @@ import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.android.tools.metalava.ConstantsKt.ANDROIDX_NONNULL;
 import static com.android.tools.metalava.ConstantsKt.ANDROIDX_NULLABLE;
@@ -84,30 +94,80 @@ public class ApiFile {
      */
     public static TextCodebase parseApi(@Nonnull List<File> files, boolean kotlinStyleNulls)
         throws ApiParseException {
+        return parseApi(files, kotlinStyleNulls, 1);
+    }
+
+    /**
+     * Same as {@link #parseApi(List, boolean)}, but parses up to {@code threads} files concurrently.
+     * The result does not depend on the number of threads: the files are merged into the codebase
+     * in the order they are listed, exactly as if they had been parsed one after another.
+     */
+    public static TextCodebase parseApi(@Nonnull List<File> files, boolean kotlinStyleNulls, int threads)
+        throws ApiParseException {
+        final TextCodebase api = parseApiWithoutPostProcessing(files, kotlinStyleNulls, threads);
+        api.postProcess();
+        return api;
+    }
+
+    /**
+     * Like {@link #parseApi(List, boolean, int)}, but does not resolve super classes, interfaces, throws
+     * lists and inner classes; the caller must call {@link TextCodebase#postProcess()} before using
+     * the codebase. This is the state in which {@link com.android.tools.metalava.SignatureFileCache}
+     * stores codebases.
+     */
+    public static TextCodebase parseApiWithoutPostProcessing(@Nonnull List<File> files, boolean kotlinStyleNulls,
+                                                             int threads) throws ApiParseException {
         if (files.size() == 0) {
             throw new IllegalArgumentException("files must not be empty");
         }
         final TextCodebase api = new TextCodebase(files.get(0));
         final StringBuilder description = new StringBuilder("Codebase loaded from ");
 
+        if (threads <= 1 || files.size() == 1) {
+            boolean first = true;
+            for (File file : files) {
+                mergeParsedFile(api, parseApiFile(api, file, kotlinStyleNulls), !first);
+                first = false;
+            }
+        } else {
+            // Each file is parsed into its own set of packages; the parsing threads only share
+            // the (concurrent) type cache and super type maps of the codebase. The packages are
+            // then merged into the codebase on this thread, in file order.
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+            try {
+                final List<Future<ParsedFile>> futures = new ArrayList<>(files.size());
+                for (File file : files) {
+                    futures.add(executor.submit(() -> parseApiFile(api, file, kotlinStyleNulls)));
+                }
+                boolean first = true;
+                for (Future<ParsedFile> future : futures) {
+                    final ParsedFile parsed;
+                    try {
+                        parsed = future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ApiParseException("Interrupted while parsing API files");
+                    } catch (ExecutionException e) {
+                        Throwables.throwIfUnchecked(e.getCause());
+                        throw new RuntimeException(e.getCause());
+                    }
+                    mergeParsedFile(api, parsed, !first);
+                    first = false;
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
         boolean first = true;
         for (File file : files) {
             if (!first) {
                 description.append(", ");
             }
             description.append(file.getPath());
-
-            final String apiText;
-            try {
-                apiText = Files.asCharSource(file, UTF_8).read();
-            } catch (IOException ex) {
-                throw new ApiParseException("Error reading API file", file.getPath(), ex);
-            }
-            parseApiSingleFile(api, !first, file.getPath(), apiText, kotlinStyleNulls);
             first = false;
         }
         api.setDescription(description.toString());
-        api.postProcess();
         return api;
     }
 
@@ -126,15 +186,68 @@ public class ApiFile {
                                         boolean kotlinStyleNulls) throws ApiParseException {
         final TextCodebase api = new TextCodebase(new File(filename));
         api.setDescription("Codebase loaded from " + filename);
-        parseApiSingleFile(api, false, filename, apiText, kotlinStyleNulls);
+        mergeParsedFile(api, parseApiSingleFile(api, filename, apiText, kotlinStyleNulls), false);
         api.postProcess();
         return api;
     }
 
-    private static void parseApiSingleFile(TextCodebase api, boolean appending, String filename, String apiText,
-                                           boolean kotlinStyleNulls) throws ApiParseException {
+    /**
+     * The result of parsing a single signature file: the packages it declares, which have not yet
+     * been added to the codebase, or the error which prevented it from being parsed.
+     */
+    private static class ParsedFile {
+        final String filename;
+        final String apiText;
+        final FileFormat format;
+        final Map<String, TextPackageItem> packages = new LinkedHashMap<>();
+        final Set<String> classNames = new HashSet<>();
+        boolean kotlinStyleNulls;
+        ApiParseException error;
+
+        ParsedFile(String filename, String apiText, FileFormat format) {
+            this.filename = filename;
+            this.apiText = apiText;
+            this.format = format;
+        }
+    }
+
+    private static ParsedFile parseApiFile(TextCodebase api, File file, boolean kotlinStyleNulls) {
+        final String apiText;
+        try {
+            apiText = Files.asCharSource(file, UTF_8).read();
+        } catch (IOException ex) {
+            ParsedFile parsed = new ParsedFile(file.getPath(), "", FileFormat.UNKNOWN);
+            parsed.error = new ApiParseException("Error reading API file", file.getPath(), ex);
+            return parsed;
+        }
+        return parseApiSingleFile(api, file.getPath(), apiText, kotlinStyleNulls);
+    }
+
+    /**
+     * Parses the given signature file. This only touches the codebase to create items and types,
+     * so several files can be parsed into the same codebase concurrently; the result must then be
+     * added with {@link #mergeParsedFile}.
+     */
+    private static ParsedFile parseApiSingleFile(TextCodebase api, String filename, String apiText,
+                                                 boolean kotlinStyleNulls) {
         // Infer the format.
         FileFormat format = FileFormat.Companion.parseHeader(apiText);
+        ParsedFile parsed = new ParsedFile(filename, apiText, format);
+        try {
+            parseApiSingleFile(api, parsed, kotlinStyleNulls);
+        } catch (ApiParseException e) {
+            parsed.error = e;
+        }
+        return parsed;
+    }
+
+    /**
+     * Adds the packages of a parsed file to the codebase, reporting the same errors (in the same
+     * order) as if the file had been parsed directly into the codebase.
+     */
+    private static void mergeParsedFile(TextCodebase api, ParsedFile parsed, boolean appending)
+        throws ApiParseException {
+        final FileFormat format = parsed.format;
 
         // If it's the first file, set the format. Otherwise, make sure the format is the same as the prior files.
         if (!appending) {
@@ -145,14 +258,52 @@ public class ApiFile {
             if (!format.equals(api.getFormat())) {
                 throw new ApiParseException(String.format(
                     "Cannot merge different formats of signature files. First file format=%s, current file format=%s: file=%s",
-                    api.getFormat(), format, filename));
+                    api.getFormat(), format, parsed.filename));
             }
             // When we're appending, and the content is empty, nothing to do.
-            if (StringsKt.isBlank(apiText)) {
+            if (StringsKt.isBlank(parsed.apiText)) {
                 return;
             }
         }
 
+        if (parsed.error != null) {
+            throw parsed.error;
+        }
+
+        if (parsed.kotlinStyleNulls) {
+            api.setKotlinStyleNulls(true);
+        }
+
+        for (TextPackageItem pkg : parsed.packages.values()) {
+            final TextPackageItem existing = api.findPackage(pkg.name());
+            if (existing == null) {
+                api.addPackage(pkg);
+                continue;
+            }
+            if (!pkg.getModifiers().toString().equals(existing.getModifiers().toString())) {
+                throw new ApiParseException(String.format(
+                    "Contradicting declaration of package %s. Previously seen with modifiers \"%s\", but now with \"%s\"",
+                    pkg.name(), existing.getModifiers(), pkg.getModifiers()), pkg.getPosition());
+            }
+            for (ClassItem item : pkg.classList()) {
+                final TextClassItem cl = (TextClassItem) item;
+                if (api.findClass(cl.qualifiedName()) != null) {
+                    throw new ApiParseException("Duplicate class found: " + cl.qualifiedName(), cl.getPosition());
+                }
+                cl.setContainingPackage(existing);
+                existing.addClass(cl);
+            }
+            api.addPackage(existing);
+        }
+    }
+
+
+    private static void parseApiSingleFile(TextCodebase api, ParsedFile parsed, boolean kotlinStyleNulls)
+        throws ApiParseException {
+        final FileFormat format = parsed.format;
+        final String filename = parsed.filename;
+        String apiText = parsed.apiText;
+
         // Even if kotlinStyleNulls is false, still allow kotlin nullability markers, if the format allows them.
         if (format.isSignatureFormat()) {
             if (!kotlinStyleNulls) {
@@ -164,9 +315,7 @@ public class ApiFile {
             throw new ApiParseException("Unknown file format of " + filename);
         }
 
-        if (kotlinStyleNulls) {
-            api.setKotlinStyleNulls(true);
-        }
+        parsed.kotlinStyleNulls = kotlinStyleNulls;
 
         // Remove the block comments.
         if (apiText.contains("/*")) {
@@ -181,14 +330,14 @@ public class ApiFile {
             }
             // TODO: Accept annotations on packages.
             if ("package".equals(token)) {
-                parsePackage(api, tokenizer);
+                parsePackage(api, parsed, tokenizer);
             } else {
                 throw new ApiParseException("expected package got " + token, tokenizer);
             }
         }
     }
 
-    private static void parsePackage(TextCodebase api, Tokenizer tokenizer)
+    private static void parsePackage(TextCodebase api, ParsedFile parsed, Tokenizer tokenizer)
         throws ApiParseException {
         String token;
         String name;
@@ -220,7 +369,7 @@ public class ApiFile {
         // Once the parser supports that, we should add a test case for this too.
         pkg = new TextPackageItem(api, name, modifiers, tokenizer.pos());
 
-        final TextPackageItem existing = api.findPackage(name);
+        final TextPackageItem existing = parsed.packages.get(name);
         if (existing != null) {
             if (!pkg.getModifiers().toString().equals(existing.getModifiers().toString())) {
                 throw new ApiParseException(String.format(
@@ -239,13 +388,17 @@ public class ApiFile {
             if ("}".equals(token)) {
                 break;
             } else {
-                parseClass(api, pkg, tokenizer, token);
+                parseClass(api, parsed, pkg, tokenizer, token);
             }
         }
-        api.addPackage(pkg);
+        parsed.packages.put(name, pkg);
+        for (ClassItem cl : pkg.classList()) {
+            parsed.classNames.add(cl.qualifiedName());
+        }
     }
 
-    private static void parseClass(TextCodebase api, TextPackageItem pkg, Tokenizer tokenizer, String token)
+    private static void parseClass(TextCodebase api, ParsedFile parsed, TextPackageItem pkg, Tokenizer tokenizer,
+                                   String token)
         throws ApiParseException {
         boolean isInterface = false;
         boolean isAnnotation = false;
@@ -286,7 +439,7 @@ public class ApiFile {
         name = token;
         qualifiedName = qualifiedName(pkg.name(), name);
 
-        if (api.findClass(qualifiedName) != null) {
+        if (parsed.classNames.contains(qualifiedName)) {
             throw new ApiParseException("Duplicate class found: " + qualifiedName, tokenizer);
         }
 
@@ -352,19 +505,19 @@ public class ApiFile {
                 break;
             } else if ("ctor".equals(token)) {
                 token = tokenizer.requireToken();
-                parseConstructor(api, tokenizer, cl, token);
+                parseConstructor(api, parsed, tokenizer, cl, token);
             } else if ("method".equals(token)) {
                 token = tokenizer.requireToken();
-                parseMethod(api, tokenizer, cl, token);
+                parseMethod(api, parsed, tokenizer, cl, token);
             } else if ("field".equals(token)) {
                 token = tokenizer.requireToken();
-                parseField(api, tokenizer, cl, token, false);
+                parseField(api, parsed, tokenizer, cl, token, false);
             } else if ("enum_constant".equals(token)) {
                 token = tokenizer.requireToken();
-                parseField(api, tokenizer, cl, token, true);
+                parseField(api, parsed, tokenizer, cl, token, true);
             } else if ("property".equals(token)) {
                 token = tokenizer.requireToken();
-                parseProperty(api, tokenizer, cl, token);
+                parseProperty(api, parsed, tokenizer, cl, token);
             } else {
                 throw new ApiParseException("expected ctor, enum_constant, field or method", tokenizer);
             }
@@ -373,13 +526,13 @@ public class ApiFile {
         pkg.addClass(cl);
     }
 
-    private static Pair<String, List<String>> processKotlinTypeSuffix(TextCodebase api, String type, List<String> annotations) throws ApiParseException {
+    private static Pair<String, List<String>> processKotlinTypeSuffix(ParsedFile parsed, String type, List<String> annotations) throws ApiParseException {
         boolean varArgs = false;
         if (type.endsWith("...")) {
             type = type.substring(0, type.length() - 3);
             varArgs = true;
         }
-        if (api.getKotlinStyleNulls()) {
+        if (parsed.kotlinStyleNulls) {
             if (type.endsWith("?")) {
                 type = type.substring(0, type.length() - 1);
                 annotations = mergeAnnotations(annotations, ANDROIDX_NULLABLE);
@@ -442,7 +595,8 @@ public class ApiFile {
         return annotations;
     }
 
-    private static void parseConstructor(TextCodebase api, Tokenizer tokenizer, TextClassItem cl, String token)
+    private static void parseConstructor(TextCodebase api, ParsedFile parsed, Tokenizer tokenizer, TextClassItem cl,
+                                         String token)
         throws ApiParseException {
         String name;
         TextConstructorItem method;
@@ -462,7 +616,7 @@ public class ApiFile {
         }
         method = new TextConstructorItem(api, name, cl, modifiers, cl.asTypeInfo(), tokenizer.pos());
         method.setDeprecated(modifiers.isDeprecated());
-        parseParameterList(api, tokenizer, method);
+        parseParameterList(api, parsed, tokenizer, method);
         token = tokenizer.requireToken();
         if ("throws".equals(token)) {
             token = parseThrows(tokenizer, method);
@@ -473,7 +627,8 @@ public class ApiFile {
         cl.addConstructor(method);
     }
 
-    private static void parseMethod(TextCodebase api, Tokenizer tokenizer, TextClassItem cl, String token)
+    private static void parseMethod(TextCodebase api, ParsedFile parsed, Tokenizer tokenizer, TextClassItem cl,
+                                    String token)
         throws ApiParseException {
         TextTypeItem returnType;
         String name;
@@ -493,7 +648,7 @@ public class ApiFile {
         }
         assertIdent(tokenizer, token);
 
-        Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(api, token, annotations);
+        Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(parsed, token, annotations);
         token = kotlinTypeSuffix.getFirst();
         annotations = kotlinTypeSuffix.getSecond();
         modifiers.addAnnotations(annotations);
@@ -538,7 +693,7 @@ public class ApiFile {
         if (!"(".equals(token)) {
             throw new ApiParseException("expected (, was " + token, tokenizer);
         }
-        parseParameterList(api, tokenizer, method);
+        parseParameterList(api, parsed, tokenizer, method);
         token = tokenizer.requireToken();
         if ("throws".equals(token)) {
             token = parseThrows(tokenizer, method);
@@ -565,7 +720,8 @@ public class ApiFile {
         return annotations;
     }
 
-    private static void parseField(TextCodebase api, Tokenizer tokenizer, TextClassItem cl, String token, boolean isEnum)
+    private static void parseField(TextCodebase api, ParsedFile parsed, Tokenizer tokenizer, TextClassItem cl,
+                                   String token, boolean isEnum)
         throws ApiParseException {
         List<String> annotations = getAnnotations(tokenizer, token);
         token = tokenizer.getCurrent();
@@ -574,7 +730,7 @@ public class ApiFile {
         token = tokenizer.getCurrent();
         assertIdent(tokenizer, token);
 
-        Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(api, token, annotations);
+        Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(parsed, token, annotations);
         token = kotlinTypeSuffix.getFirst();
         annotations = kotlinTypeSuffix.getSecond();
         modifiers.addAnnotations(annotations);
@@ -766,7 +922,8 @@ public class ApiFile {
         return null;
     }
 
-    private static void parseProperty(TextCodebase api, Tokenizer tokenizer, TextClassItem cl, String token)
+    private static void parseProperty(TextCodebase api, ParsedFile parsed, Tokenizer tokenizer, TextClassItem cl,
+                                      String token)
         throws ApiParseException {
         String type;
         String name;
@@ -779,7 +936,7 @@ public class ApiFile {
         token = tokenizer.getCurrent();
         assertIdent(tokenizer, token);
 
-        Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(api, token, annotations);
+        Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(parsed, token, annotations);
         token = kotlinTypeSuffix.getFirst();
         annotations = kotlinTypeSuffix.getSecond();
         modifiers.addAnnotations(annotations);
@@ -821,7 +978,8 @@ public class ApiFile {
         }
     }
 
-    private static void parseParameterList(TextCodebase api, Tokenizer tokenizer, TextMethodItem method)
+    private static void parseParameterList(TextCodebase api, ParsedFile parsed, Tokenizer tokenizer,
+                                           TextMethodItem method)
                                            throws ApiParseException {
         String token = tokenizer.requireToken();
         int index = 0;
@@ -854,7 +1012,7 @@ public class ApiFile {
                 }
             }
 
-            Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(api, type, annotations);
+            Pair<String, List<String>> kotlinTypeSuffix = processKotlinTypeSuffix(parsed, type, annotations);
             String typeString = kotlinTypeSuffix.getFirst();
             annotations = kotlinTypeSuffix.getSecond();
             modifiers.addAnnotations(annotations);
@@ -990,13 +1148,26 @@ public class ApiFile {
         int mPos;
         int mLine = 1;
 
+        /**
+         * Strings handed out for tokens so far. Signature files repeat the same small set of
+         * keywords, modifiers, annotations and type names over and over, so rather than allocating
+         * a new string per token we look the characters up here and share a single instance.
+         */
+        private final TokenTable mTokens = new TokenTable();
+
+        /** The most recently created position, reused while we're still on the same line */
+        private SourcePositionInfo mPosition;
+
         Tokenizer(String filename, char[] buf) {
             mFilename = filename;
             mBuf = buf;
         }
 
         SourcePositionInfo pos() {
-            return new SourcePositionInfo(mFilename, mLine);
+            if (mPosition == null || mPosition.getLine() != mLine) {
+                mPosition = new SourcePositionInfo(mFilename, mLine);
+            }
+            return mPosition;
         }
 
         public int getLine() {
@@ -1103,7 +1274,7 @@ public class ApiFile {
                                     state = STATE_ESCAPE;
                                     break;
                                 case '"':
-                                    mCurrent = new String(mBuf, start, mPos - start);
+                                    mCurrent = mTokens.get(mBuf, start, mPos - start);
                                     return mCurrent;
                             }
                             break;
@@ -1113,7 +1284,7 @@ public class ApiFile {
                     }
                 }
             } else if (isSeparator(c, parenIsSep)) {
-                mCurrent = Character.toString(c);
+                mCurrent = mTokens.get(mBuf, start, 1);
                 return mCurrent;
             } else {
                 int genericDepth = 0;
@@ -1154,7 +1325,7 @@ public class ApiFile {
                 if (mPos >= mBuf.length) {
                     throw new ApiParseException("Unexpected end of file for \" starting at " + line, this);
                 }
-                mCurrent = new String(mBuf, start, mPos - start);
+                mCurrent = mTokens.get(mBuf, start, mPos - start);
                 return mCurrent;
             }
         }
@@ -1165,6 +1336,85 @@ public class ApiFile {
         }
     }
 
+    /**
+     * Open addressing hash table mapping character ranges to strings, such that equal tokens
+     * are represented by the same {@link String} without first having to allocate a string
+     * just to look it up (as a {@code HashMap<String, String>} or {@link String#intern} would).
+     */
+    static class TokenTable {
+        private String[] mStrings = new String[1024];
+        private int[] mHashes = new int[1024];
+        private int mSize;
+
+        String get(char[] buf, int start, int length) {
+            int hash = 0;
+            for (int i = start, end = start + length; i < end; i++) {
+                hash = 31 * hash + buf[i];
+            }
+
+            int mask = mStrings.length - 1;
+            int index = mix(hash) & mask;
+            while (true) {
+                String s = mStrings[index];
+                if (s == null) {
+                    break;
+                }
+                if (mHashes[index] == hash && matches(s, buf, start, length)) {
+                    return s;
+                }
+                index = (index + 1) & mask;
+            }
+
+            String s = new String(buf, start, length);
+            mStrings[index] = s;
+            mHashes[index] = hash;
+            if (++mSize * 2 > mStrings.length) {
+                grow();
+            }
+            return s;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        private static boolean matches(String s, char[] buf, int start, int length) {
+            if (s.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            // Spread the bits of String-style hashes, which are poor in the low bits for short tokens
+            return hash ^ (hash >>> 16);
+        }
+
+        private void grow() {
+            String[] oldStrings = mStrings;
+            int[] oldHashes = mHashes;
+            mStrings = new String[oldStrings.length * 2];
+            mHashes = new int[oldStrings.length * 2];
+            int mask = mStrings.length - 1;
+            for (int i = 0; i < oldStrings.length; i++) {
+                String s = oldStrings[i];
+                if (s != null) {
+                    int index = mix(oldHashes[i]) & mask;
+                    while (mStrings[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    mStrings[index] = s;
+                    mHashes[index] = oldHashes[i];
+                }
+            }
+        }
+    }
+
     private static boolean isSpace(char c) {
         return c == ' ' || c == '\t' || c == '\n' || c == '\r';
     }
@@ -27,6 +27,10 @@ class ApiParseException : Exception {
         file = tokenizer.fileName
         line = tokenizer.line
     }
+    internal constructor(message: String, position: SourcePositionInfo) : super(message) {
+        file = position.file
+        line = position.line
+    }
 
     override val message: String
         get() {
@@ -1,11 +1,14 @@
 package com.android.tools.metalava.doclava1
 
+import com.android.tools.metalava.AnnotationFilter
 import com.android.tools.metalava.Options
 import com.android.tools.metalava.model.ClassItem
+import com.android.tools.metalava.model.Codebase
 import com.android.tools.metalava.model.Item
 import com.android.tools.metalava.model.MemberItem
 import com.android.tools.metalava.model.PackageItem
 import com.android.tools.metalava.options
+import java.util.concurrent.ConcurrentHashMap
 import java.util.function.Predicate
 
 // Ported from doclava1
@@ -72,28 +75,19 @@ class ApiPredicate(
         var docOnly = member.docOnly
         var removed = member.removed
 
-        var clazz: ClassItem? = when (member) {
+        val clazz: ClassItem? = when (member) {
             is MemberItem -> member.containingClass()
             is ClassItem -> member
             else -> null
         }
 
         if (clazz != null) {
-            var pkg: PackageItem? = clazz.containingPackage()
-            while (pkg != null) {
-                hidden = hidden or pkg.hidden
-                docOnly = docOnly or pkg.docOnly
-                removed = removed or pkg.removed
-                pkg = pkg.containingPackage()
-            }
-        }
-        while (clazz != null) {
-            visible = visible and (clazz.isPublic || clazz.isProtected)
-            hasShowAnnotation = hasShowAnnotation or (ignoreShown || clazz.hasShowAnnotation())
-            hidden = hidden or clazz.hidden
-            docOnly = docOnly or clazz.docOnly
-            removed = removed or clazz.removed
-            clazz = clazz.containingClass()
+            val flags = clazz.codebase.apiFlagsCache?.get(clazz) ?: ApiFlagsCache.computeFlags(clazz)
+            visible = visible and (flags and ApiFlagsCache.VISIBLE != 0)
+            hasShowAnnotation = hasShowAnnotation or (flags and ApiFlagsCache.SHOWN != 0)
+            hidden = hidden or (flags and ApiFlagsCache.HIDDEN != 0)
+            docOnly = docOnly or (flags and ApiFlagsCache.DOC_ONLY != 0)
+            removed = removed or (flags and ApiFlagsCache.REMOVED != 0)
         }
 
         if (ignoreRemoved) {
@@ -106,4 +100,123 @@ class ApiPredicate(
 
         return visible && hasShowAnnotation && !hidden && !docOnly && removed == matchRemoved
     }
+
+    // Predicates with the same configuration match the same items, which lets caches of
+    // filtered output (such as [com.android.tools.metalava.model.psi.TypeStringCache]) be
+    // shared by writers that each create their own predicate
+
+    override fun equals(other: Any?): Boolean {
+        return other is ApiPredicate &&
+            ignoreShown == other.ignoreShown &&
+            ignoreRemoved == other.ignoreRemoved &&
+            matchRemoved == other.matchRemoved &&
+            allowClassesFromClasspath == other.allowClassesFromClasspath &&
+            includeDocOnly == other.includeDocOnly
+    }
+
+    override fun hashCode(): Int {
+        var result = ignoreShown.hashCode()
+        result = 31 * result + ignoreRemoved.hashCode()
+        result = 31 * result + matchRemoved.hashCode()
+        result = 31 * result + allowClassesFromClasspath.hashCode()
+        result = 31 * result + includeDocOnly.hashCode()
+        return result
+    }
+}
+
+/**
+ * Cache of the flags [ApiPredicate] combines from the containing classes and
+ * packages of an item. These are the same for all members of a class, and for
+ * all predicate configurations, so they are computed once per class rather than
+ * walking up the class and package hierarchy on every [ApiPredicate.test] call.
+ *
+ * Whether a class has a show annotation ([SHOWN]) depends on the current
+ * [Options.showAnnotations]; when the cache is used with different ones (such as
+ * by the next API surface, with a codebase loaded for an earlier one) all the
+ * flags are computed again.
+ *
+ * A codebase only gets a cache (see [Codebase.apiFlagsCache]) once its flags have
+ * been computed; code changing the visibility, show annotations, or the hidden,
+ * doc-only or removed state of classes or packages after that point must call
+ * [invalidate].
+ */
+class ApiFlagsCache {
+    private val flags = ConcurrentHashMap<ClassItem, Int>()
+
+    /** The show annotations the cached flags were computed with */
+    @Volatile
+    private var showAnnotations: AnnotationFilter? = null
+
+    /** Returns the flags for the given class and all its containing classes and packages */
+    fun get(cls: ClassItem): Int {
+        val currentShowAnnotations = options.showAnnotations
+        if (showAnnotations !== currentShowAnnotations) {
+            synchronized(this) {
+                if (showAnnotations !== currentShowAnnotations) {
+                    flags.clear()
+                    showAnnotations = currentShowAnnotations
+                }
+            }
+        }
+        flags[cls]?.let { return it }
+
+        // Not using computeIfAbsent: computing the flags recursively populates the map
+        val outer = cls.containingClass()
+        val computed = if (outer != null) {
+            combine(cls, get(outer))
+        } else {
+            combine(cls, packageFlags(cls.containingPackage()))
+        }
+        return flags.putIfAbsent(cls, computed) ?: computed
+    }
+
+    /** Discards all cached flags */
+    fun invalidate() {
+        flags.clear()
+    }
+
+    companion object {
+        /** All classes are public or protected */
+        const val VISIBLE = 1 shl 0
+        /** Any class has a show annotation */
+        const val SHOWN = 1 shl 1
+        /** Any class or package is hidden */
+        const val HIDDEN = 1 shl 2
+        /** Any class or package is doc-only */
+        const val DOC_ONLY = 1 shl 3
+        /** Any class or package is removed */
+        const val REMOVED = 1 shl 4
+
+        /** Computes the flags for the given class without consulting any cache */
+        fun computeFlags(cls: ClassItem): Int {
+            val outer = cls.containingClass()
+            return if (outer != null) {
+                combine(cls, computeFlags(outer))
+            } else {
+                combine(cls, packageFlags(cls.containingPackage()))
+            }
+        }
+
+        private fun packageFlags(pkg: PackageItem?): Int {
+            var flags = VISIBLE
+            var current = pkg
+            while (current != null) {
+                if (current.hidden) flags = flags or HIDDEN
+                if (current.docOnly) flags = flags or DOC_ONLY
+                if (current.removed) flags = flags or REMOVED
+                current = current.containingPackage()
+            }
+            return flags
+        }
+
+        private fun combine(cls: ClassItem, outerFlags: Int): Int {
+            var flags = outerFlags
+            if (!cls.isPublic && !cls.isProtected) flags = flags and VISIBLE.inv()
+            if (cls.hasShowAnnotation()) flags = flags or SHOWN
+            if (cls.hidden) flags = flags or HIDDEN
+            if (cls.docOnly) flags = flags or DOC_ONLY
+            if (cls.removed) flags = flags or REMOVED
+            return flags
+        }
+    }
 }
@@ -16,8 +16,8 @@
 package com.android.tools.metalava.doclava1
 
 class SourcePositionInfo(
-    private val file: String,
-    private val line: Int
+    val file: String,
+    val line: Int
 ) : Comparable<SourcePositionInfo> {
     override fun toString(): String {
         return "$file:$line"
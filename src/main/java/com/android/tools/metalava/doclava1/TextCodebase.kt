@@ -51,7 +51,7 @@ import com.android.tools.metalava.model.visitors.ItemVisitor
 import com.android.tools.metalava.model.visitors.TypeVisitor
 import java.io.File
 import java.util.ArrayList
-import java.util.HashMap
+import java.util.concurrent.ConcurrentHashMap
 import java.util.function.Predicate
 
 // Copy of ApiInfo in doclava1 (converted to Kotlin + some cleanup to make it work with metalava's data structures.
@@ -63,10 +63,14 @@ class TextCodebase(location: File) : DefaultCodebase(location) {
      */
     var kotlinStyleNulls = false
 
-    private val mPackages = HashMap<String, TextPackageItem>(300)
-    private val mAllClasses = HashMap<String, TextClassItem>(30000)
-    private val mClassToSuper = HashMap<TextClassItem, String>(30000)
-    private val mClassToInterface = HashMap<TextClassItem, ArrayList<String>>(10000)
+    // Concurrent, and only added to while holding the lock of this codebase, since classes missing
+    // from the signature files are created when looked up (see [getOrCreateClass]), which also
+    // happens while the packages of two codebases are compared concurrently
+    private val mPackages = ConcurrentHashMap<String, TextPackageItem>(300)
+    private val mAllClasses = ConcurrentHashMap<String, TextClassItem>(30000)
+    // Concurrent since ApiFile may parse several files into this codebase at the same time
+    private val mClassToSuper = ConcurrentHashMap<TextClassItem, String>(30000)
+    private val mClassToInterface = ConcurrentHashMap<TextClassItem, ArrayList<String>>(10000)
 
     override var description = "Codebase"
     override var preFiltered: Boolean = true
@@ -116,10 +120,17 @@ class TextCodebase(location: File) : DefaultCodebase(location) {
         mClassToInterface[classInfo]?.add(iface)
     }
 
+    /** The superclass name recorded for the given class while parsing, if any */
+    fun mappedSuperClass(classInfo: TextClassItem): String? = mClassToSuper[classInfo]
+
+    /** The interface names recorded for the given class while parsing */
+    fun mappedInterfaces(classInfo: TextClassItem): List<String> = mClassToInterface[classInfo] ?: emptyList()
+
     fun implementsInterface(classInfo: TextClassItem, iface: String): Boolean {
         return mClassToInterface[classInfo]?.contains(iface) ?: false
     }
 
+    @Synchronized
     fun addPackage(pInfo: TextPackageItem) {
         // track the set of organized packages in the API
         mPackages[pInfo.name()] = pInfo
@@ -215,22 +226,25 @@ class TextCodebase(location: File) : DefaultCodebase(location) {
         }
     }
 
+    @Synchronized
     fun registerClass(cls: TextClassItem) {
         mAllClasses[cls.qualifiedName] = cls
     }
 
     fun getOrCreateClass(name: String, isInterface: Boolean = false): TextClassItem {
         val erased = TextTypeItem.eraseTypeArguments(name)
-        val cls = mAllClasses[erased]
-        if (cls != null) {
-            return cls
+        return mAllClasses[erased] ?: synchronized(this) {
+            mAllClasses[erased] ?: createClass(name, erased, isInterface)
         }
+    }
+
+    /** Creates a stub for the class [name] missing from this codebase; called with the lock held */
+    private fun createClass(name: String, erased: String, isInterface: Boolean): TextClassItem {
         val newClass = if (isInterface) {
             TextClassItem.createInterfaceStub(this, name)
         } else {
             TextClassItem.createClassStub(this, name)
         }
-        mAllClasses[erased] = newClass
         newClass.emit = false
 
         val fullName = newClass.fullName()
@@ -259,6 +273,8 @@ class TextCodebase(location: File) : DefaultCodebase(location) {
             newClass.setContainingPackage(pkg)
             pkg.addClass(newClass)
         }
+        // Only published once fully initialized, since other threads look up classes without the lock
+        mAllClasses[erased] = newClass
 
         return newClass
     }
@@ -476,18 +492,18 @@ class TextCodebase(location: File) : DefaultCodebase(location) {
 
     private abstract class Cache(val codebase: TextCodebase) {
 
-        protected var mCache = HashMap<Any, Any>()
+        protected var mCache = ConcurrentHashMap<Any, Any>()
 
         internal fun obtain(o: Any?): Any? {
             if (o == null) {
                 return null
             }
-            var r: Any? = mCache[o]
-            if (r == null) {
-                r = make(o)
-                mCache[o] = r
+            val r: Any? = mCache[o]
+            if (r != null) {
+                return r
             }
-            return r
+            val made = make(o)
+            return mCache.putIfAbsent(o, made) ?: made
         }
 
         protected abstract fun make(o: Any): Any
@@ -394,6 +394,12 @@ interface ClassItem : Item {
         fun classNameSorter(): Comparator<in ClassItem> = ClassItem.qualifiedComparator
     }
 
+    /**
+     * Returns an index of the members in this class, used by the various `find` methods.
+     * Implementations which can hold on to state cache the index until members are added.
+     */
+    fun memberIndex(): ClassMemberIndex = ClassMemberIndex(this)
+
     fun findMethod(
         template: MethodItem,
         includeSuperClasses: Boolean = false,
@@ -403,9 +409,9 @@ interface ClassItem : Item {
             return findConstructor(template as ConstructorItem)
         }
 
-        methods().asSequence()
-            .filter { it.matches(template) }
-            .forEach { return it }
+        memberIndex().methods(template.name())
+            .firstOrNull { it.matches(template) }
+            ?.let { return it }
 
         if (includeSuperClasses) {
             superClass()?.findMethod(template, true, includeInterfaces)?.let { return it }
@@ -428,14 +434,9 @@ interface ClassItem : Item {
         includeInterfaces: Boolean = false
     ): MethodItem? {
         if (desc.startsWith("<init>")) {
-            constructors().asSequence()
-                .filter { it.internalDesc() == desc }
-                .forEach { return it }
-            return null
+            return memberIndex().constructorByDesc(desc)
         } else {
-            methods().asSequence()
-                .filter { it.name() == name && it.internalDesc() == desc }
-                .forEach { return it }
+            memberIndex().methodByDesc(name, desc)?.let { return it }
         }
 
         if (includeSuperClasses) {
@@ -452,10 +453,7 @@ interface ClassItem : Item {
     }
 
     fun findConstructor(template: ConstructorItem): ConstructorItem? {
-        constructors().asSequence()
-            .filter { it.matches(template) }
-            .forEach { return it }
-        return null
+        return memberIndex().constructors(template.parameters().size).firstOrNull { it.matches(template) }
     }
 
     fun findField(
@@ -463,7 +461,7 @@ interface ClassItem : Item {
         includeSuperClasses: Boolean = false,
         includeInterfaces: Boolean = false
     ): FieldItem? {
-        val field = fields().firstOrNull { it.name() == fieldName }
+        val field = memberIndex().field(fieldName)
         if (field != null) {
             return field
         }
@@ -482,34 +480,37 @@ interface ClassItem : Item {
     }
 
     fun findMethod(methodName: String, parameters: String): MethodItem? {
+        val parameterStrings = parameterTypeStrings(parameters)
         if (methodName == simpleName()) {
             // Constructor
-            constructors()
-                .filter { parametersMatch(it, parameters) }
-                .forEach { return it }
+            memberIndex().constructors(parameterStrings.size)
+                .firstOrNull { parametersMatch(it, parameterStrings) }
+                ?.let { return it }
         } else {
-            methods()
-                .filter { it.name() == methodName && parametersMatch(it, parameters) }
-                .forEach { return it }
+            memberIndex().methods(methodName)
+                .firstOrNull { parametersMatch(it, parameterStrings) }
+                ?.let { return it }
         }
 
         return null
     }
 
-    private fun parametersMatch(method: MethodItem, description: String): Boolean {
-        val parameterStrings = Splitter.on(",").trimResults().omitEmptyStrings().splitToList(description)
+    /** Splits a comma separated parameter list into erased type strings */
+    private fun parameterTypeStrings(description: String): List<String> {
+        return Splitter.on(",").trimResults().omitEmptyStrings().splitToList(description).map {
+            val index = it.indexOf('<')
+            if (index != -1) it.substring(0, index) else it
+        }
+    }
+
+    private fun parametersMatch(method: MethodItem, parameterStrings: List<String>): Boolean {
         val parameters = method.parameters()
         if (parameters.size != parameterStrings.size) {
             return false
         }
         for (i in 0 until parameters.size) {
-            var parameterString = parameterStrings[i]
-            val index = parameterString.indexOf('<')
-            if (index != -1) {
-                parameterString = parameterString.substring(0, index)
-            }
             val parameter = parameters[i].type().toErasedTypeString(method)
-            if (parameter != parameterString) {
+            if (parameter != parameterStrings[i]) {
                 return false
             }
         }
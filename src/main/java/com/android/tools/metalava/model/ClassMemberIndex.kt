@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava.model
+
+/**
+ * Lookup tables for the members of a [ClassItem], used by the various `find` methods
+ * on [ClassItem] such that they don't have to scan all the members of the class.
+ *
+ * The index is a snapshot of the members at the time it was created; classes
+ * which support adding members must discard their index (see [ClassItem.memberIndex])
+ * when that happens.
+ *
+ * Within each bucket the members are kept in declaration order, such that lookups
+ * return the same member a linear scan over [ClassItem.methods] etc. would.
+ */
+class ClassMemberIndex(private val cls: ClassItem) {
+    private val methodsByName: Map<String, List<MethodItem>>
+    private val constructorsByParameterCount: Map<Int, List<ConstructorItem>>
+    private val fieldsByName: Map<String, FieldItem>
+
+    /** Methods keyed by name followed by [MethodItem.internalDesc]; computed on first use */
+    private val methodsByDesc: Map<String, MethodItem> by lazy {
+        val map = HashMap<String, MethodItem>(cls.methods().size * 2)
+        for (method in cls.methods()) {
+            map.putIfAbsent(method.name() + method.internalDesc(), method)
+        }
+        map
+    }
+
+    /** Constructors keyed by [MethodItem.internalDesc]; computed on first use */
+    private val constructorsByDesc: Map<String, ConstructorItem> by lazy {
+        val map = HashMap<String, ConstructorItem>(cls.constructors().size * 2)
+        for (constructor in cls.constructors()) {
+            map.putIfAbsent(constructor.internalDesc(), constructor)
+        }
+        map
+    }
+
+    init {
+        val methods = HashMap<String, MutableList<MethodItem>>(cls.methods().size * 2)
+        for (method in cls.methods()) {
+            methods.getOrPut(method.name()) { ArrayList(2) }.add(method)
+        }
+        methodsByName = methods
+
+        val constructors = HashMap<Int, MutableList<ConstructorItem>>()
+        for (constructor in cls.constructors()) {
+            constructors.getOrPut(constructor.parameters().size) { ArrayList(2) }.add(constructor)
+        }
+        constructorsByParameterCount = constructors
+
+        val fields = HashMap<String, FieldItem>(cls.fields().size * 2)
+        for (field in cls.fields()) {
+            fields.putIfAbsent(field.name(), field)
+        }
+        fieldsByName = fields
+    }
+
+    /** Returns the methods in this class with the given name */
+    fun methods(name: String): List<MethodItem> = methodsByName[name] ?: emptyList()
+
+    /** Returns the constructors in this class with the given number of parameters */
+    fun constructors(parameterCount: Int): List<ConstructorItem> =
+        constructorsByParameterCount[parameterCount] ?: emptyList()
+
+    /** Returns the first field in this class with the given name, if any */
+    fun field(name: String): FieldItem? = fieldsByName[name]
+
+    /** Returns the first method in this class with the given name and VM descriptor, if any */
+    fun methodByDesc(name: String, desc: String): MethodItem? = methodsByDesc[name + desc]
+
+    /** Returns the first constructor in this class with the given VM descriptor, if any */
+    fun constructorByDesc(desc: String): ConstructorItem? = constructorsByDesc[desc]
+}
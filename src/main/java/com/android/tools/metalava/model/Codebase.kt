@@ -23,6 +23,7 @@ import com.android.SdkConstants.TAG_PERMISSION
 import com.android.SdkConstants.TAG_USES_SDK
 import com.android.tools.metalava.CodebaseComparator
 import com.android.tools.metalava.ComparisonVisitor
+import com.android.tools.metalava.doclava1.ApiFlagsCache
 import com.android.tools.metalava.doclava1.Issues
 import com.android.tools.metalava.model.psi.CodePrinter
 import com.android.tools.metalava.model.text.TextBackedAnnotationItem
@@ -133,6 +134,12 @@ interface Codebase {
     /** The manifest to associate with this codebase, if any */
     var manifest: File?
 
+    /**
+     * Cache of the class and package flags consulted by [com.android.tools.metalava.doclava1.ApiPredicate], or null if the
+     * flags in this codebase may still change. Set once the API has been computed.
+     */
+    var apiFlagsCache: ApiFlagsCache?
+
     /**
      * Returns the permission level of the named permission, if specified
      * in the manifest. This method should only be called if the codebase has
@@ -266,6 +273,7 @@ object UnsetMinSdkVersion : MinSdkVersion()
 
 abstract class DefaultCodebase(override var location: File) : Codebase {
     override var manifest: File? = null
+    override var apiFlagsCache: ApiFlagsCache? = null
     private var permissions: Map<String, String>? = null
     private var minSdkVersion: MinSdkVersion? = null
     override var original: Codebase? = null
@@ -31,7 +31,9 @@ import com.android.tools.metalava.model.TypeItem
 import com.android.tools.metalava.options
 import com.android.tools.metalava.reporter
 import com.android.tools.metalava.tick
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Computable
 import com.intellij.openapi.util.Disposer
 import com.intellij.psi.JavaPsiFacade
 import com.intellij.psi.JavaRecursiveElementVisitor
@@ -48,6 +50,7 @@ import com.intellij.psi.PsiJavaCodeReferenceElement
 import com.intellij.psi.PsiJavaFile
 import com.intellij.psi.PsiMethod
 import com.intellij.psi.PsiPackage
+import com.intellij.psi.PsiPackageStatement
 import com.intellij.psi.PsiSubstitutor
 import com.intellij.psi.PsiType
 import com.intellij.psi.TypeAnnotationProvider
@@ -62,6 +65,10 @@ import java.io.File
 import java.io.IOException
 import java.util.ArrayList
 import java.util.HashMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 import java.util.zip.ZipFile
 
 const val PACKAGE_ESTIMATE = 500
@@ -73,21 +80,38 @@ open class PsiBasedCodebase(location: File, override var description: String = "
 
     var bindingContext: BindingContext? = null
 
-    /** Map from class name to class item */
-    private val classMap: MutableMap<String, PsiClassItem> = HashMap(CLASS_ESTIMATE)
+    /**
+     * Map from class name to class item. Concurrent since source classes may be created on
+     * several threads; see [createClassesConcurrently].
+     */
+    private val classMap: MutableMap<String, PsiClassItem> = ConcurrentHashMap(CLASS_ESTIMATE)
 
     /** Map from psi type to type item */
     private val typeMap: MutableMap<PsiType, TypeItem> = HashMap(400)
 
+    /**
+     * Cache of the type strings printed with a filter (see [TypeStringCache]), or null if
+     * the annotations or the compatibility settings may still change. Only set while writing
+     * outputs.
+     */
+    @Volatile
+    var typeStringCache: TypeStringCache? = null
+
     /**
      * Map from classes to the set of methods for each (but only for classes where we've
-     * called [findMethod]
+     * called [findMethod]. Concurrent, like [packageMap], since classes and methods are
+     * still looked up lazily (and created, for classes found on the classpath) while
+     * outputs are written or codebases compared on several threads; the lookups that
+     * have to create anything hold [lazyLock].
      */
     private lateinit var methodMap: MutableMap<PsiClassItem, MutableMap<PsiMethod, PsiMethodItem>>
 
     /** Map from package name to the corresponding package item */
     private lateinit var packageMap: MutableMap<String, PsiPackageItem>
 
+    /** Held while creating classes and methods after the codebase has been initialized */
+    private val lazyLock = Any()
+
     /** Map from package name to list of classes in that package */
     private lateinit var packageClasses: MutableMap<String, MutableList<PsiClassItem>>
 
@@ -124,72 +148,70 @@ open class PsiBasedCodebase(location: File, override var description: String = "
             this.hiddenPackages[pkgName] = true
         }
 
-        packageMap = HashMap(PACKAGE_ESTIMATE)
+        packageMap = ConcurrentHashMap(PACKAGE_ESTIMATE)
         packageClasses = HashMap(PACKAGE_ESTIMATE)
         packageClasses[""] = ArrayList()
-        this.methodMap = HashMap(METHOD_ESTIMATE)
+        this.methodMap = ConcurrentHashMap(METHOD_ESTIMATE)
         topLevelClassesFromSource = ArrayList(CLASS_ESTIMATE)
 
         // Make sure we only process the units once; sometimes there's overlap in the source lists
-        for (unit in units.asSequence().distinct()) {
+        val distinctUnits = units.distinct()
+        val threads = Math.min(options.threads, distinctUnits.size)
+        val unitContents = if (threads > 1) {
+            createClassesConcurrently(distinctUnits, threads).asSequence()
+        } else {
+            distinctUnits.asSequence().map { createClasses(it) }
+        }
+
+        // Record the results in unit order, such that the classes and the reported
+        // issues are the same regardless of how the units were processed
+        for (contents in unitContents) {
             tick() // show progress
 
-            var classes = (unit as? PsiClassOwner)?.classes?.toList() ?: emptyList()
-            if (classes.isEmpty()) {
-                val uastContext = project.getComponent(UastContext::class.java)
-                val uFile = uastContext.convertElementWithParent(unit, UFile::class.java) as? UFile?
-                classes = uFile?.classes?.map { it }?.toList() ?: emptyList()
-            }
-            var packageName: String? = null
-            if (classes.isEmpty() && unit is PsiJavaFile) {
-                // package-info.java ?
-                val packageStatement = unit.packageStatement
+            val packageStatement = contents.packageStatement
+            if (packageStatement != null) {
                 // Look for javadoc on the package statement; this is NOT handed to us on
                 // the PsiPackage!
-                if (packageStatement != null) {
-                    packageName = packageStatement.packageName
-                    val comment = PsiTreeUtil.getPrevSiblingOfType(packageStatement, PsiDocComment::class.java)
-                    if (comment != null) {
-                        val text = comment.text
-                        if (text.contains("@hide")) {
-                            this.hiddenPackages[packageName] = true
-                        }
-                        if (packageDocs[packageName] != null) {
-                            reporter.report(
-                                Issues.BOTH_PACKAGE_INFO_AND_HTML,
-                                unit,
-                                "It is illegal to provide both a package-info.java file and a " +
-                                    "package.html file for the same package"
-                            )
-                        }
-                        packageDocs[packageName] = text
+                val packageName = packageStatement.packageName
+                val comment = PsiTreeUtil.getPrevSiblingOfType(packageStatement, PsiDocComment::class.java)
+                if (comment != null) {
+                    val text = comment.text
+                    if (text.contains("@hide")) {
+                        this.hiddenPackages[packageName] = true
+                    }
+                    if (packageDocs[packageName] != null) {
+                        reporter.report(
+                            Issues.BOTH_PACKAGE_INFO_AND_HTML,
+                            contents.unit,
+                            "It is illegal to provide both a package-info.java file and a " +
+                                "package.html file for the same package"
+                        )
                     }
+                    packageDocs[packageName] = text
                 }
-            } else {
-                for (psiClass in classes) {
-                    psiClass.accept(object : JavaRecursiveElementVisitor() {
-                        override fun visitErrorElement(element: PsiErrorElement?) {
-                            super.visitErrorElement(element)
-                            reporter.report(
-                                Issues.INVALID_SYNTAX,
-                                element,
-                                "Syntax error: `${element?.errorDescription}`"
-                            )
-                        }
-                    })
+            }
 
-                    val classItem = createClass(psiClass)
-                    topLevelClassesFromSource.add(classItem)
+            for (element in contents.errors) {
+                reporter.report(
+                    Issues.INVALID_SYNTAX,
+                    element,
+                    "Syntax error: `${element.errorDescription}`"
+                )
+            }
 
-                    if (packageName == null) {
-                        packageName = getPackageName(psiClass)
-                    }
+            for (classItem in contents.classes) {
+                if (threads > 1) {
+                    // If several units define the same class, the last one wins, as it
+                    // does when the units are processed one by one
+                    registerClassTree(classItem)
                 }
+                topLevelClassesFromSource.add(classItem)
             }
         }
 
         // Next construct packages
-        for ((pkgName, classes) in packageClasses) {
+        for (pkgName in packageClasses.keys.sorted()) {
+            val classes = packageClasses[pkgName]!!
             tick() // show progress
             val psiPackage = JavaPsiFacade.getInstance(project).findPackage(pkgName)
             if (psiPackage == null) {
@@ -227,6 +249,81 @@ open class PsiBasedCodebase(location: File, override var description: String = "
         addParentPackages(packageMap.values)
     }
 
+    /** The top level classes, syntax errors and package statement of a single compilation unit */
+    private class UnitContents(
+        val unit: PsiFile,
+        val classes: List<PsiClassItem>,
+        val errors: List<PsiErrorElement>,
+        val packageStatement: PsiPackageStatement?
+    )
+
+    /**
+     * Creates the class items for the classes in the given [unit], and looks for syntax
+     * errors and package documentation in it. This only looks at the unit itself, so
+     * separate units can be processed concurrently (see [createClassesConcurrently]).
+     */
+    private fun createClasses(unit: PsiFile): UnitContents {
+        var classes = (unit as? PsiClassOwner)?.classes?.toList() ?: emptyList()
+        if (classes.isEmpty()) {
+            val uastContext = project.getComponent(UastContext::class.java)
+            val uFile = uastContext.convertElementWithParent(unit, UFile::class.java) as? UFile?
+            classes = uFile?.classes?.map { it }?.toList() ?: emptyList()
+        }
+        if (classes.isEmpty() && unit is PsiJavaFile) {
+            // package-info.java ?
+            return UnitContents(unit, emptyList(), emptyList(), unit.packageStatement)
+        }
+
+        val errors = mutableListOf<PsiErrorElement>()
+        val classItems = ArrayList<PsiClassItem>(classes.size)
+        for (psiClass in classes) {
+            psiClass.accept(object : JavaRecursiveElementVisitor() {
+                override fun visitErrorElement(element: PsiErrorElement?) {
+                    super.visitErrorElement(element)
+                    element?.let { errors.add(it) }
+                }
+            })
+
+            classItems.add(createClass(psiClass))
+        }
+        return UnitContents(unit, classItems, errors, null)
+    }
+
+    /**
+     * Runs [createClasses] for all the [units] using the given number of threads, and returns
+     * the results in the same order as the units. Creating the item for a source class only
+     * registers the class and its inner classes (in the thread safe [classMap] and
+     * [packageClasses]); everything resolving references to other classes happens later,
+     * in [PsiPackageItem.finishInitialization], which runs on the calling thread.
+     */
+    private fun createClassesConcurrently(units: List<PsiFile>, threads: Int): List<UnitContents> {
+        val application = ApplicationManager.getApplication()
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val futures = units.map { unit ->
+                executor.submit(Callable<UnitContents> {
+                    application.runReadAction(Computable { createClasses(unit) })
+                })
+            }
+            return futures.map {
+                try {
+                    it.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun registerClassTree(cls: PsiClassItem) {
+        classMap[cls.qualifiedName()] = cls
+        for (inner in cls.innerClasses()) {
+            registerClassTree(inner as PsiClassItem)
+        }
+    }
+
     override fun dispose() {
         Disposer.dispose(project)
         super.dispose()
@@ -306,10 +403,10 @@ open class PsiBasedCodebase(location: File, override var description: String = "
         val scope = GlobalSearchScope.allScope(project)
 
         hiddenPackages = HashMap(100)
-        packageMap = HashMap(PACKAGE_ESTIMATE)
+        packageMap = ConcurrentHashMap(PACKAGE_ESTIMATE)
         packageClasses = HashMap(PACKAGE_ESTIMATE)
         packageClasses[""] = ArrayList()
-        this.methodMap = HashMap(1000)
+        this.methodMap = ConcurrentHashMap(1000)
         val packageToClasses: MutableMap<String, MutableList<PsiClassItem>> = HashMap(
             PACKAGE_ESTIMATE
         )
@@ -402,13 +499,15 @@ open class PsiBasedCodebase(location: File, override var description: String = "
     }
 
     private fun registerPackageClass(packageName: String, cls: PsiClassItem) {
-        var list = packageClasses[packageName]
-        if (list == null) {
-            list = ArrayList()
-            packageClasses[packageName] = list
-        }
+        synchronized(packageClasses) {
+            var list = packageClasses[packageName]
+            if (list == null) {
+                list = ArrayList()
+                packageClasses[packageName] = list
+            }
 
-        list.add(cls)
+            list.add(cls)
+        }
     }
 
     private fun isPackageHidden(packageName: String): Boolean {
@@ -532,6 +631,16 @@ open class PsiBasedCodebase(location: File, override var description: String = "
     }
 
     open fun findOrCreateClass(psiClass: PsiClass): PsiClassItem {
+        findClass(psiClass)?.let { return it }
+
+        // Check again while holding the lock, such that a class looked up on several threads
+        // at once is only created once
+        synchronized(lazyLock) {
+            return findOrCreateClassLocked(psiClass)
+        }
+    }
+
+    private fun findOrCreateClassLocked(psiClass: PsiClass): PsiClassItem {
         val existing = findClass(psiClass)
         if (existing != null) {
             return existing
@@ -617,9 +726,17 @@ open class PsiBasedCodebase(location: File, override var description: String = "
         val containingClass = method.containingClass
         val cls = findOrCreateClass(containingClass!!)
 
+        methodMap[cls]?.get(method)?.let { return it }
+        synchronized(lazyLock) {
+            return findMethodLocked(cls, method)
+        }
+    }
+
+    private fun findMethodLocked(cls: PsiClassItem, method: PsiMethod): PsiMethodItem {
         // Ensure initialized/registered via [#registerMethods]
         if (methodMap[cls] == null) {
-            val map = HashMap<PsiMethod, PsiMethodItem>(40)
+            // Concurrent since it's read without holding the lock
+            val map = ConcurrentHashMap<PsiMethod, PsiMethodItem>(40)
             registerMethods(cls.methods(), map)
             registerMethods(cls.constructors(), map)
             methodMap[cls] = map
@@ -19,6 +19,7 @@ package com.android.tools.metalava.model.psi
 import com.android.tools.metalava.compatibility
 import com.android.tools.metalava.model.AnnotationRetention
 import com.android.tools.metalava.model.ClassItem
+import com.android.tools.metalava.model.ClassMemberIndex
 import com.android.tools.metalava.model.CompilationUnit
 import com.android.tools.metalava.model.ConstructorItem
 import com.android.tools.metalava.model.FieldItem
@@ -165,6 +166,13 @@ open class PsiClassItem(
     override fun properties(): List<PropertyItem> = properties
     override fun fields(): List<FieldItem> = fields
 
+    @Volatile
+    private var memberIndex: ClassMemberIndex? = null
+
+    override fun memberIndex(): ClassMemberIndex {
+        return memberIndex ?: ClassMemberIndex(this).also { memberIndex = it }
+    }
+
     override fun toType(): TypeItem {
         return PsiTypeItem.create(codebase, codebase.getClassType(psiClass))
     }
@@ -279,6 +287,7 @@ open class PsiClassItem(
         this.constructors = constructors
         this.methods = methods
         this.fields = fields
+        memberIndex = null
     }
 
     override fun mapTypeVariables(target: ClassItem): Map<String, String> {
@@ -361,6 +370,7 @@ open class PsiClassItem(
 
     override fun addMethod(method: MethodItem) {
         (methods as MutableList<PsiMethodItem>).add(method as PsiMethodItem)
+        memberIndex = null
     }
 
     private var retention: AnnotationRetention? = null
@@ -492,6 +502,7 @@ open class PsiClassItem(
             item.constructors = constructors
             item.methods = methods
             item.fields = fields
+            item.memberIndex = null
 
             item.properties = emptyList()
             if (isKotlin) {
@@ -34,10 +34,14 @@ class PsiPackageItem(
         documentation = documentation,
         element = psiPackage
     ), PackageItem {
-    // Note - top level classes only
+    // Note - top level classes only. Synchronized, since classes found on the classpath
+    // may be added while other threads list them
     private val classes: MutableList<PsiClassItem> = mutableListOf()
 
-    override fun topLevelClasses(): Sequence<ClassItem> = classes.toList().asSequence().filter { it.isTopLevelClass() }
+    override fun topLevelClasses(): Sequence<ClassItem> {
+        val list = synchronized(classes) { classes.toList() }
+        return list.asSequence().filter { it.isTopLevelClass() }
+    }
 
     lateinit var containingPackageField: PsiPackageItem
 
@@ -89,7 +93,9 @@ class PsiPackageItem(
         }
         */
 
-        classes.add(cls)
+        synchronized(classes) {
+            classes.add(cls)
+        }
         cls.containingPackage = this
     }
 
@@ -78,20 +78,26 @@ class PsiTypeItem private constructor(
     ): String {
         assert(innerAnnotations || !outerAnnotations) // Can't supply outer=true,inner=false
 
-        if (filter != null) {
-            // No caching when specifying filter.
+        if (filter != null && kotlinStyleNulls && (innerAnnotations || outerAnnotations)) {
+            // The filter (and the context) only matter when printing the annotations; cached
+            // in the codebase, if at all, instead of here.
             // TODO: When we support type use annotations, here we need to deal with markRecent
             //  and clearAnnotations not really having done their job.
-            return toTypeString(
-                codebase = codebase,
-                type = psiType,
-                outerAnnotations = outerAnnotations,
-                innerAnnotations = innerAnnotations,
-                erased = erased,
-                kotlinStyleNulls = kotlinStyleNulls,
-                context = context,
-                filter = filter
-            )
+            val type = psiType
+            val compute = {
+                toTypeString(
+                    codebase = codebase,
+                    type = type,
+                    outerAnnotations = outerAnnotations,
+                    innerAnnotations = innerAnnotations,
+                    erased = erased,
+                    kotlinStyleNulls = kotlinStyleNulls,
+                    context = context,
+                    filter = filter
+                )
+            }
+            val cache = codebase.typeStringCache ?: return compute()
+            return cache.get(type, outerAnnotations, innerAnnotations, erased, context, filter, compute)
         }
 
         return if (erased) {
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava.model.psi
+
+import com.android.tools.metalava.model.Item
+import com.intellij.psi.PsiType
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Predicate
+
+/**
+ * Cache of the type strings [PsiTypeItem.toTypeString] prints with a filter and Kotlin style
+ * nullness, which unlike the other type strings depend on the filter and on the item the
+ * type belongs to, and so can't be stored in the type item itself.
+ *
+ * Entries are keyed by the identity of the type and the item, the flags, and the filter;
+ * filters that are equal (such as two [com.android.tools.metalava.doclava1.ApiPredicate]s
+ * with the same configuration) share their entries, so the same type printed for several
+ * outputs is only printed once. The printed strings also depend on the annotations in the
+ * codebase and on the global compatibility settings, so the cache must only be installed
+ * (see [PsiBasedCodebase.typeStringCache]) while neither changes.
+ *
+ * Safe to use from concurrent writers. Once [maxSize] strings are cached, further strings
+ * are printed without being cached.
+ */
+class TypeStringCache(private val maxSize: Int = DEFAULT_MAX_SIZE) {
+    private class Key(
+        val type: PsiType,
+        val flags: Int,
+        val context: Item?,
+        val filter: Predicate<Item>
+    ) {
+        override fun equals(other: Any?): Boolean {
+            return other is Key &&
+                type === other.type &&
+                flags == other.flags &&
+                context === other.context &&
+                filter == other.filter
+        }
+
+        override fun hashCode(): Int {
+            var result = System.identityHashCode(type)
+            result = 31 * result + flags
+            result = 31 * result + System.identityHashCode(context)
+            result = 31 * result + filter.hashCode()
+            return result
+        }
+    }
+
+    private val strings = ConcurrentHashMap<Key, String>()
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    /** Returns the cached string for the given type and flags, or caches the one [compute] returns */
+    fun get(
+        type: PsiType,
+        outerAnnotations: Boolean,
+        innerAnnotations: Boolean,
+        erased: Boolean,
+        context: Item?,
+        filter: Predicate<Item>,
+        compute: () -> String
+    ): String {
+        var flags = 0
+        if (outerAnnotations) flags = flags or 1
+        if (innerAnnotations) flags = flags or 2
+        if (erased) flags = flags or 4
+        val key = Key(type, flags, context, filter)
+
+        strings[key]?.let {
+            hits.incrementAndGet()
+            return it
+        }
+        misses.incrementAndGet()
+        val string = compute()
+        if (strings.size < maxSize) {
+            strings.putIfAbsent(key, string)
+        }
+        return string
+    }
+
+    /** Describes how well the cache did, for --verbose output */
+    fun statistics(): String {
+        return "${hits.get()} hits, ${misses.get()} misses, ${strings.size} cached"
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SIZE = 100_000
+    }
+}
@@ -20,6 +20,7 @@ import com.android.tools.metalava.doclava1.SourcePositionInfo
 import com.android.tools.metalava.doclava1.TextCodebase
 import com.android.tools.metalava.model.AnnotationRetention
 import com.android.tools.metalava.model.ClassItem
+import com.android.tools.metalava.model.ClassMemberIndex
 import com.android.tools.metalava.model.ConstructorItem
 import com.android.tools.metalava.model.DefaultModifierList
 import com.android.tools.metalava.model.FieldItem
@@ -198,20 +199,30 @@ open class TextClassItem(
     override fun fields(): List<FieldItem> = fields
     override fun properties(): List<PropertyItem> = properties
 
+    @Volatile
+    private var memberIndex: ClassMemberIndex? = null
+
+    override fun memberIndex(): ClassMemberIndex {
+        return memberIndex ?: ClassMemberIndex(this).also { memberIndex = it }
+    }
+
     fun addInterface(itf: TypeItem) {
         interfaceTypes.add(itf)
     }
 
     fun addConstructor(constructor: TextConstructorItem) {
         constructors += constructor
+        memberIndex = null
     }
 
     fun addMethod(method: TextMethodItem) {
         methods += method
+        memberIndex = null
     }
 
     fun addField(field: TextFieldItem) {
         fields += field
+        memberIndex = null
     }
 
     fun addProperty(property: TextPropertyItem) {
@@ -221,6 +232,7 @@ open class TextClassItem(
     fun addEnumConstant(field: TextFieldItem) {
         field.setEnumConstant(true)
         fields += field
+        memberIndex = null
     }
 
     fun addInnerClass(cls: TextClassItem) {
@@ -44,6 +44,9 @@ class TextModifiers(
         return TextModifiers(codebase, flags, newAnnotations)
     }
 
+    /** The raw modifier bits, as passed to the constructor */
+    fun flags(): Int = flags
+
     fun addAnnotations(annotationSources: List<String>?) {
         annotationSources ?: return
         if (annotationSources.isEmpty()) {
@@ -20,6 +20,7 @@ import com.android.tools.metalava.doclava1.SourcePositionInfo
 import com.android.tools.metalava.doclava1.TextCodebase
 import com.android.tools.metalava.model.ClassItem
 import com.android.tools.metalava.model.PackageItem
+import java.util.concurrent.CopyOnWriteArrayList
 
 class TextPackageItem(
     codebase: TextCodebase,
@@ -31,7 +32,11 @@ class TextPackageItem(
         modifiers.setOwner(this)
     }
 
-    private val classes = ArrayList<TextClassItem>(100)
+    /**
+     * Copied on write, since stubs of classes missing from the signature files may be added
+     * while other threads go through the classes (see [TextCodebase.getOrCreateClass])
+     */
+    private val classes = CopyOnWriteArrayList<TextClassItem>()
 
     fun name() = name
 
@@ -40,16 +45,10 @@ class TextPackageItem(
     }
 
     internal fun pruneClassList() {
-        val iterator = classes.listIterator()
-        while (iterator.hasNext()) {
-            val cls = iterator.next()
-            if (cls.isInnerClass()) {
-                iterator.remove()
-            }
-        }
+        classes.removeIf { it.isInnerClass() }
     }
 
-    internal fun classList(): List<ClassItem> = classes
+    fun classList(): List<ClassItem> = classes
 
     override fun topLevelClasses(): Sequence<ClassItem> = classes.asSequence()
 
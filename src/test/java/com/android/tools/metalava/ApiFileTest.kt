@@ -18,7 +18,9 @@
 
 package com.android.tools.metalava
 
+import org.junit.Assert.assertTrue
 import org.junit.Test
+import java.io.File
 
 class ApiFileTest : DriverTest() {
 /*
@@ -2778,6 +2780,146 @@ class ApiFileTest : DriverTest() {
         )
     }
 
+    @Test
+    fun `Write report files in parallel`() {
+        check(
+            extraArguments = arrayOf(ARG_PARALLEL_OUTPUTS, "4"),
+            sourceFiles = arrayOf(
+                java(
+                    """
+                    package test.pkg;
+                    public class Child extends Parent {
+                        /** @hide */
+                        public void hiddenApi() {
+                        }
+                    }
+                    """
+                ),
+                java(
+                    """
+                    package test.pkg;
+                    public class Parent {
+                        public String toString() {
+                            return "Parent";
+                        }
+                    }
+                    """
+                )
+            ),
+            api = """
+                    package test.pkg {
+                      public class Child extends test.pkg.Parent {
+                        ctor public Child();
+                      }
+                      public class Parent {
+                        ctor public Parent();
+                      }
+                    }
+                    """,
+            dexApi = """
+                Ltest/pkg/Child;
+                Ltest/pkg/Child;-><init>()V
+                Ltest/pkg/Parent;
+                Ltest/pkg/Parent;-><init>()V
+                Ltest/pkg/Parent;->toString()Ljava/lang/String;
+            """,
+            dexApiMapping = """
+                Ltest/pkg/Child;-><init>()V
+                src/test/pkg/Child.java:2
+                Ltest/pkg/Child;->hiddenApi()V
+                src/test/pkg/Child.java:4
+                Ltest/pkg/Parent;-><init>()V
+                src/test/pkg/Parent.java:2
+                Ltest/pkg/Parent;->toString()Ljava/lang/String;
+                src/test/pkg/Parent.java:3
+            """
+        )
+    }
+
+    @Test
+    fun `Write report files in parallel from sources with classpath super types`() {
+        // The writers look up super methods and classpath classes, which the codebase only
+        // creates on demand; writing concurrently must give the same files
+        val project = createProject(
+            java(
+                """
+                package test.pkg;
+                import android.os.Bundle;
+                public class MyActivity extends android.app.Activity {
+                    @Override protected void onCreate(Bundle savedInstanceState) { }
+                    @Override public String toString() { return "MyActivity"; }
+                    /** @hide */
+                    public void hidden() { }
+                }
+                """
+            ),
+            java(
+                """
+                package test.pkg;
+                public class MyList extends java.util.AbstractList<String> implements java.io.Serializable {
+                    @Override public String get(int index) { return null; }
+                    @Override public int size() { return 0; }
+                    /** @removed */
+                    public void removed() { }
+                }
+                """
+            ),
+            java(
+                """
+                package test.pkg;
+                /** @hide */
+                public class HiddenParent extends java.io.InputStream {
+                    @Override public int read() { return 0; }
+                    public void inherited() { }
+                }
+                """
+            ),
+            java(
+                """
+                package test.other;
+                public class Child extends test.pkg.HiddenParent implements Runnable, Comparable<Child> {
+                    @Override public void run() { }
+                    @Override public int compareTo(Child other) { return 0; }
+                    @Override public int read() { return 1; }
+                    public test.pkg.MyList list() { return null; }
+                }
+                """
+            )
+        )
+        val sourcePath = File(project, "src")
+
+        fun runMetalava(outputDir: File, vararg extraArguments: String) {
+            outputDir.mkdirs()
+            runDriver(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_SOURCE_PATH, sourcePath.path,
+                ARG_CLASS_PATH, getPlatformFile("android.jar").path,
+                ARG_API, File(outputDir, "api.txt").path,
+                ARG_REMOVED_API, File(outputDir, "removed.txt").path,
+                ARG_PRIVATE_API, File(outputDir, "private.txt").path,
+                ARG_XML_API, File(outputDir, "api.xml").path,
+                ARG_DEX_API, File(outputDir, "dex-api.txt").path,
+                ARG_REMOVED_DEX_API, File(outputDir, "removed-dex-api.txt").path,
+                ARG_PRIVATE_DEX_API, File(outputDir, "private-dex-api.txt").path,
+                ARG_PROGUARD, File(outputDir, "proguard.txt").path,
+                *extraArguments
+            )
+        }
+
+        val serial = File(project, "serial")
+        runMetalava(serial)
+        for (attempt in 1..3) {
+            val parallel = File(project, "parallel$attempt")
+            runMetalava(parallel, ARG_PARALLEL_OUTPUTS, "8")
+            assertSameOutputs(serial, parallel)
+        }
+
+        val api = File(serial, "api.txt").readText()
+        assertTrue(api, api.contains("public class MyActivity extends android.app.Activity"))
+        assertTrue(api, api.contains("method public void inherited();"))
+    }
+
     @Test
     fun `Test invalid class name`() {
         // Regression test for b/73018978
@@ -3852,6 +3994,16 @@ class ApiFileTest : DriverTest() {
         )
     }
 
+    @Test
+    fun `Test merging API signature files in parallel`() {
+        // Same result as the sequential merge, regardless of which file finishes parsing first
+        check(
+            signatureSources = arrayOf(MERGE_TEST_SOURCE_2, MERGE_TEST_SOURCE_1),
+            extraArguments = arrayOf(ARG_THREADS, "2"),
+            api = MERGE_TEST_EXPECTED
+        )
+    }
+
     @Test
     fun `Test merging API signature files with reverse dependency`() {
         val source1 = """
@@ -3960,6 +4112,22 @@ class ApiFileTest : DriverTest() {
         )
     }
 
+    @Test
+    fun `Test cannot merging API signature files with duplicate class in parallel`() {
+        val source = """
+            package Test.pkg {
+              public final class Class1 {
+                method public void method1();
+              }
+            }
+                    """
+        check(
+            signatureSources = arrayOf(source, source),
+            extraArguments = arrayOf(ARG_THREADS, "2"),
+            expectedFail = "Unable to parse signature file: TESTROOT/project/load-api2.txt:2: Duplicate class found: Test.pkg.Class1"
+        )
+    }
+
     @Test
     fun `Test cannot merging API signature files with different file formats`() {
         val source1 = """
@@ -3978,4 +4146,73 @@ class ApiFileTest : DriverTest() {
                 "First file format=V2, current file format=V3: file=TESTROOT/project/load-api2.txt"
         )
     }
+
+    @Test
+    fun `Create the source model in parallel`() {
+        check(
+            sourceFiles = arrayOf(
+                java(
+                    """
+                    package test.pkg1;
+                    public class Foo extends test.pkg2.Bar {
+                        public void foo() { }
+                        public class Inner {
+                        }
+                    }
+                    """
+                ),
+                java(
+                    """
+                    package test.pkg2;
+                    public class Bar {
+                        public void bar() { }
+                    }
+                    """
+                ),
+                java(
+                    """
+                    /** @hide */
+                    package test.pkg3;
+                    """
+                ),
+                java(
+                    """
+                    package test.pkg3;
+                    public class Hidden {
+                    }
+                    """
+                ),
+                java(
+                    """
+                    package test.pkg2;
+                    public class Baz {
+                        public int baz() { return 0; }
+                    }
+                    """
+                )
+            ),
+            extraArguments = arrayOf(ARG_THREADS, "4"),
+            api = """
+                package test.pkg1 {
+                  public class Foo extends test.pkg2.Bar {
+                    ctor public Foo();
+                    method public void foo();
+                  }
+                  public class Foo.Inner {
+                    ctor public Foo.Inner();
+                  }
+                }
+                package test.pkg2 {
+                  public class Bar {
+                    ctor public Bar();
+                    method public void bar();
+                  }
+                  public class Baz {
+                    ctor public Baz();
+                    method public int baz();
+                  }
+                }
+                """
+        )
+    }
 }
@@ -17,7 +17,10 @@
 package com.android.tools.metalava
 
 import org.intellij.lang.annotations.Language
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
+import java.io.File
 
 class ApiFromTextTest : DriverTest() {
 
@@ -799,4 +802,50 @@ class ApiFromTextTest : DriverTest() {
             api = source
         )
     }
+
+    @Test
+    fun `Loading a signature file through the signature cache`() {
+        val source = """
+                package test.pkg {
+                  public abstract class MyTest<T> implements java.lang.Comparable<T> {
+                    ctor public MyTest();
+                    method public <X> X convert(T, X...) throws java.io.IOException;
+                    method public abstract deprecated int other();
+                    field public static final int CONSTANT = 42; // 0x2a
+                  }
+                  public static enum MyTest.Kind {
+                    enum_constant public static final test.pkg.MyTest.Kind FIRST;
+                  }
+                  public abstract @interface MyAnnotation {
+                    method public abstract String value() default "x";
+                  }
+                }
+                """
+
+        val cacheDir = temporaryFolder.newFolder("cache")
+        check(
+            compatibilityMode = true,
+            signatureSource = source,
+            extraArguments = arrayOf(ARG_CACHE_DIR, cacheDir.path)
+        )
+
+        val signatureCacheDir = File(cacheDir, "signatures")
+        assertEquals(1, signatureCacheDir.listFiles().count { it.path.endsWith(".bin") })
+
+        // Loading the same file again is served from the entry written above
+        val signatureFile = File(temporaryFolder.root, "project/load-api.txt")
+        val codebase = SignatureFileCache(signatureCacheDir).load(listOf(signatureFile), false)
+        val cls = codebase.findClass("test.pkg.MyTest")!!
+        assertEquals("java.lang.Object", cls.superClass()?.qualifiedName())
+        assertEquals(listOf("java.lang.Comparable<T>"), cls.interfaceTypes().map { it.toTypeString() })
+        assertEquals("test.pkg.MyTest.Kind", cls.innerClasses().single().qualifiedName())
+        assertTrue(cls.innerClasses().single().fields().single().isEnumConstant())
+        assertEquals(42, cls.findField("CONSTANT")?.initialValue(true))
+        val convert = cls.methods().single { it.name() == "convert" }
+        assertEquals("java.io.IOException", convert.throwsTypes().single().qualifiedName())
+        assertTrue(convert.parameters().last().isVarArgs())
+        assertTrue(cls.methods().single { it.name() == "other" }.deprecated)
+        assertEquals("\"x\"", codebase.findClass("test.pkg.MyAnnotation")!!.methods().single().defaultValue())
+        assertEquals(1, signatureCacheDir.listFiles().size)
+    }
 }
\ No newline at end of file
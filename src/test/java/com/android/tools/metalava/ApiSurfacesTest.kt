@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class ApiSurfacesTest : DriverTest() {
+    @Test
+    fun `Produce public and system API surfaces from one invocation`() {
+        val project = createProject(
+            java(
+                """
+                package test.pkg;
+                import android.annotation.SystemApi;
+                public class Foo {
+                    public void method1() { }
+
+                    /**
+                     * @hide
+                     */
+                    @SystemApi
+                    public void method2() { }
+                }
+                """
+            ),
+            systemApiSource
+        )
+        val androidJar = getPlatformFile("android.jar")
+        val sourcePath = File(project, "src").path
+        val publicApi = File(project, "public-api.txt")
+        val systemApi = File(project, "system-api.txt")
+
+        val systemArgs = File(project, "system-args")
+        systemArgs.writeText(
+            listOf(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_SOURCE_PATH, sourcePath,
+                ARG_CLASS_PATH, androidJar.path,
+                ARG_HIDE_PACKAGE, "android.annotation",
+                ARG_SHOW_ANNOTATION, "android.annotation.SystemApi",
+                ARG_API, systemApi.path
+            ).joinToString("\n")
+        )
+
+        runDriver(
+            ARG_NO_COLOR,
+            ARG_NO_BANNER,
+            ARG_SOURCE_PATH, sourcePath,
+            ARG_CLASS_PATH, androidJar.path,
+            ARG_HIDE_PACKAGE, "android.annotation",
+            ARG_API, publicApi.path,
+            ARG_SURFACE, systemArgs.path
+        )
+
+        assertTrue(publicApi.path, publicApi.isFile)
+        val publicSignatures = publicApi.readText()
+        assertTrue(publicSignatures, publicSignatures.contains("method public void method1();"))
+        assertFalse(publicSignatures, publicSignatures.contains("method2"))
+
+        assertTrue(systemApi.path, systemApi.isFile)
+        val systemSignatures = systemApi.readText()
+        assertTrue(systemSignatures, systemSignatures.contains("method public void method2();"))
+        assertFalse(systemSignatures, systemSignatures.contains("method1"))
+    }
+
+    @Test
+    fun `Check each surface against the same signature file with its own show annotations`() {
+        val project = createProject(
+            java(
+                """
+                package test.pkg;
+                import android.annotation.SystemApi;
+                public class Foo implements Runnable {
+                    public void method1() { }
+                    public void run() { }
+
+                    /**
+                     * @hide
+                     */
+                    @SystemApi
+                    public void method2() { }
+                }
+                """
+            ),
+            systemApiSource
+        )
+        val androidJar = getPlatformFile("android.jar")
+        val sourcePath = File(project, "src").path
+        val systemApi = File(project, "system-api.txt")
+
+        // Both surfaces check against (and so load) the same released signature file;
+        // the system API one only lists the difference from the public API
+        val released = File(project, "released-api.txt")
+        released.writeText(
+            """
+            package test.pkg {
+              public class Foo implements java.lang.Runnable {
+                ctor public Foo();
+                method public void method1();
+                method public void run();
+              }
+            }
+            """.trimIndent()
+        )
+
+        val systemArgs = File(project, "system-args")
+        systemArgs.writeText(
+            listOf(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_SOURCE_PATH, sourcePath,
+                ARG_CLASS_PATH, androidJar.path,
+                ARG_HIDE_PACKAGE, "android.annotation",
+                ARG_SHOW_ANNOTATION, "android.annotation.SystemApi",
+                ARG_API, systemApi.path,
+                ARG_CHECK_COMPATIBILITY_API_RELEASED, released.path
+            ).joinToString("\n")
+        )
+
+        runDriver(
+            ARG_NO_COLOR,
+            ARG_NO_BANNER,
+            ARG_SOURCE_PATH, sourcePath,
+            ARG_CLASS_PATH, androidJar.path,
+            ARG_HIDE_PACKAGE, "android.annotation",
+            ARG_CHECK_COMPATIBILITY_API_RELEASED, released.path,
+            ARG_SURFACE, systemArgs.path
+        )
+
+        assertTrue(systemApi.path, systemApi.isFile)
+        val systemSignatures = systemApi.readText()
+        assertTrue(systemSignatures, systemSignatures.contains("method public void method2();"))
+        assertFalse(systemSignatures, systemSignatures.contains("method1"))
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import com.android.tools.lint.checks.infrastructure.TestFiles.base64gzip
+import com.android.tools.lint.checks.infrastructure.TestFiles.jar
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class BinaryCodebaseLoaderTest : DriverTest() {
+    /** Creates a project with the compiled classes of a few API shapes in libs/test.jar */
+    private fun createJarProject(): File {
+        return createProject(
+            /* The following source files, compiled with javac -g:none and stored as base64 gzip:
+                package test.pkg;
+                import java.io.IOException;
+                import java.util.List;
+                import java.util.Map;
+                public class Foo<T extends Comparable<T>> extends Hidden implements Listener {
+                    public static final int INT_CONSTANT = 42;
+                    public static final String STRING_CONSTANT = "hello";
+                    public static final char CHAR_CONSTANT = 'x';
+                    public static final boolean BOOLEAN_CONSTANT = true;
+                    public static final long LONG_CONSTANT = 5L;
+                    protected List<? extends T> items;
+                    private int secret;
+                    public Foo() { }
+                    protected Foo(T initial) { }
+                    public <K, V extends Map<K, T>> V generic(K key, List<? super V>[] values) throws IOException { return null; }
+                    public void varargs(String... args) { }
+                    @Deprecated public void old() { }
+                    public void onEvent(int id) { }
+                    void packagePrivate() { }
+                    public class Inner {
+                        public Inner(int value) { }
+                    }
+                    public static class Nested {
+                        public Nested(String[] unused) { }
+                    }
+                }
+                class Hidden {
+                    public static final int HIDDEN_CONSTANT = 7;
+                    public void inherited() { }
+                }
+
+                package test.pkg;
+                public enum Kind {
+                    FIRST, SECOND
+                }
+
+                package test.pkg;
+                public interface Listener {
+                    void onEvent(int id);
+                    default void other() { }
+                    static Listener create() { return null; }
+                }
+
+                package test.pkg;
+                import java.lang.annotation.Retention;
+                import java.lang.annotation.RetentionPolicy;
+                @Retention(RetentionPolicy.RUNTIME)
+                public @interface Marker {
+                    int value() default 5;
+                    String[] names() default {};
+                    Kind kind() default Kind.FIRST;
+                }
+             */
+            jar(
+                "libs/test.jar",
+                base64gzip(
+                    "test/pkg/Foo\$Inner.class", "" +
+                        "H4sIAAAAAAAC/1VPyw7BUBA9o2hVUZXYSyyKRS3siE0TSROJnX1xQ0tacW/8" +
+                        "l4VILHyAjxJzuyKTzOPMmZkz78/zBWCCTg0lGCbKDiqoEjwlpArOx32wyPN+" +
+                        "lGXiQqiqQyL7Y0Jz+due2rBQM2E7qMMhuGl8jYNTnO2D1SYVW8WTsyRL1Jxg" +
+                        "+IM1b/f/F0QaLIf5ThCc4lh4iqUU0kSbkV8uoVIQ0GPBFmsn19WSdcZWR4N9" +
+                        "k6uufoijPRzdQcMHzBtQsFoa5ViCCw/0BQnP/SYEAQAA"
+                ),
+                base64gzip(
+                    "test/pkg/Foo\$Nested.class", "" +
+                        "H4sIAAAAAAAC/zv1b9c+BgYGEwZ+LgYmBmZ2BhYeBlYGNkYGgazEskT9nMS8" +
+                        "dH3/pKzU5BJGBjabzLzMEjtGBmYNzTB2Bg5GBuGS1OIS/YLsdH23/HwVPyAn" +
+                        "NYWRQUwj2gehO7ikKDMv3VozjJGBxTk/JZWRgcczLy+1yDknsbg4tZidgRco" +
+                        "gmwO0CKISQyKDOxAR4EAIxCyMnACSS4gTxBIg8RZtbYzMG6EKuAGklxAmp2B" +
+                        "h4GPgRMAj0+0htkAAAA="
+                ),
+                base64gzip(
+                    "test/pkg/Foo.class", "" +
+                        "H4sIAAAAAAAC/21U227TQBA9m5vb0nuhUG7iUiBpKeFSbrEJCmmhoSFGjZUH" +
+                        "+oDcZJVu664jexP1lT+CJyQe+AA+CjHrtCZJG8nemT1nzs6MZ/Pn76/fANbx" +
+                        "dgIJJA2kJpFGhmFG8VDlO4ft/JZotbhkyFhCClVkSGZzDc0em8S4po4Luc8D" +
+                        "oXjLwAWGyTjyve8bmGKYi3eqIlRc8oBYlZrztWzX6k6p5jCwCsNU2ZehcqVq" +
+                        "uF6XJymtFcqj7uxUah8GqPPVA7fn5j1XtvN1FQjZNsdwiSG9zz3P1zJbpZ1B" +
+                        "6bKWOmaYfWfb1c1SbRD7ojFGQVV76BD2MY3+L03KVNtRSAL9k7tKeFElJtVe" +
+                        "F23pqm7AGRZHYGvVccwikTIhbwZcMaTKfouIS9mBEsr+UccN3D2Pm7kGcbMU" +
+                        "pA2jrRslmgzrg3R774A3lbk7mkpuYOOT26FTJzaPm7yjBDXVwEOGhYgg/HzF" +
+                        "jhEG29ounJVvFArDepazbUbVFLNkjZ5urTkNwnL0psR7VE7Qpn4tZnfPfitd" +
+                        "W9L3WpTgBu8EvOnS4FBPdrpSiSPeEKGgXpSk9JUbJR83NlL5H6OP8uVmj0vd" +
+                        "2WxFC0933Oah2+afA9EjDsOG5RQK53bb6pdTHZlzs3pmWE09rZKMsueGIadu" +
+                        "Fqibg1O+XCNHV5HpGwbe0JwOMSIBGqVoxW3oC0S6MLCEacyQPUvDlsAc+fNY" +
+                        "iP2L5C/icuxfIX8JV2P/GnnXcSP2byKFW6TPcCfy79KzTPrAGO3R1ab3PfLm" +
+                        "aGV6vFd+gv2IJj1F8H2in8KJYbiv94CALHJIRrRp8vQNSrDvEWclkmFYPWGv" +
+                        "4RseIX9y5lS0h1NBhseUTjKG2H/oSfR+So/O91kEruP5+TrAi7isYZ3Zkv6H" +
+                        "Oqdiox+ZOEnzJV7ROk/Wa/owJgVZtBbB/gE4WcHUHwUAAA=="
+                ),
+                base64gzip(
+                    "test/pkg/Hidden.class", "" +
+                        "H4sIAAAAAAAC/z2OPw/BUBTFz9VSLfVntBmxdDGKREqiSw3EKo++1EMe0cf3" +
+                        "MkkMPoAPJa4mTOec38nNPa/34wmgj7qHAiwHdhVFlAiNnbiK4CB0GszWO7kx" +
+                        "hNJAaWWGBKvTXTooE+pGZiY47dNgqpJEaibTaDyexKtwFs8Xo3hBoIjgh0ed" +
+                        "GaHNUhwu0uKHDsEOj4kkuEpv5VkZmaANh0cAhBZceKwVTgVUc8qzmPjsmqz0" +
+                        "Jb076AbkJ7V/7ecZvwof4ZXcfeQAAAA="
+                ),
+                base64gzip(
+                    "test/pkg/Kind.class", "" +
+                        "H4sIAAAAAAAC/22RbU/aUBTH/5e2ltYiiIwp0yniQ4tZyJLtFcRoGCZGMhKr" +
+                        "JMZXFZFUa12k+LkmJmo0Gl/7oYznXrqNVXuTnpx7f+fhf87zy90jgG9YURFj" +
+                        "SATtblD6ddIpbbn+oQYG2YCCEQZlY3Pb3mFI1v9DypyJG9A4M2LXqo2fP/jV" +
+                        "qAEDCQZ1oble363ZDKn9SKSOJFIqEgbGkaYCLe/MbzNkTKt+7Fw4Jc/xO6XG" +
+                        "wXG7FRCbwQcVWQMfMckw9g+o+b1TKnPheL1244jhuzkUXfWcbrc8dGEH567f" +
+                        "KQ9X4AlE/pyBT5gmFRXXd4NVhqz5NnLTasah6KQwF4fGbd7APApcqeihy5A2" +
+                        "rahWyvrnVa6eHZLMgvleW9EozXY7vhP0zilCMq0mzbrS8sL+8hEVlUj4annt" +
+                        "KzWYof1Ka1N8jQBZjdtUju+HXhTyF1AgbpG8LFn+6X3o1xh7QvK38DWa+9Jf" +
+                        "JiYoPc2Kt5h4AhswMT4++nNmAhIdQC2uTN9g6lIAywIyUzofWJhsBrJ4G1ce" +
+                        "wPakPiR7T+5DtQc547BghuiXEM3fE5mekW7w+QqScGZl4ai3mLuCPqjGwnrF" +
+                        "V7gBDgXjAgAA"
+                ),
+                base64gzip(
+                    "test/pkg/Listener.class", "" +
+                        "H4sIAAAAAAAC/zv1b9c+BgYGEwYedgYmRgbBktTiEv2C7HR9n8ziktS81CJ2" +
+                        "BhZGBoGsxLJE/ZzEvHR9/6Ss1OQSRgb2/DzXstQ8IItFw1MzjJGBNb8kI7WI" +
+                        "kYFZA8Rjcc5PSWVkYEsuSk0sATJENTR9MMy2ZmNkAGpgAAFmoDWsDGxAFtBs" +
+                        "Bg4gyQlk84L5QLwRrIiTgYuBGyrFB5ZgALp6A5hmAAB+2lRXywAAAA=="
+                ),
+                base64gzip(
+                    "test/pkg/Marker.class", "" +
+                        "H4sIAAAAAAAC/4VQu07DQBCcwzHHKzgBUlBBFdmVGzoqJECycAA5gSbVJSzW" +
+                        "xc4Z2edI/BoFH8BHIdYSxAVIFKvbmZ3b2d2Pz7d3AGcYSGwIeJYqG75kaThS" +
+                        "ZUalREegt1ArFebKpOHdbEFzK7EpcNKyypjCKqsLE16sUwF3pfKaBBw/iAT6" +
+                        "bemSnlWdW4eNXZYZtaRKYOAH07htOralNum5QCfT5on/+0G8nu6GKS55vxj3" +
+                        "OkrGE4HjpDZWL+lRV3qWU+vNRqfxn6MnZMk0GbcZ/iO5L3I9f2WhTB5uJ9Ho" +
+                        "aijAi3K4vJTDR5PYYrTdoAg7TOxi74eYojlrF/vfhEvw0GPQZ9Dl94BDEg5x" +
+                        "9AU3ooyAoAEAAA=="
+                )
+            )
+        )
+    }
+
+    @Test
+    fun `Read the same API from class files as through PSI`() {
+        val project = createJarProject()
+        val jar = File(project, "libs/test.jar")
+
+        fun signatures(vararg extraArguments: String): String {
+            val apiFile = File(project, "api${extraArguments.size}.txt")
+            runDriver(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_INPUT_API_JAR, jar.path,
+                ARG_API, apiFile.path,
+                *extraArguments
+            )
+            return apiFile.readText()
+        }
+
+        val psi = signatures()
+        val binary = signatures(ARG_BINARY_JARS)
+        assertEquals(psi, binary)
+
+        assertTrue(binary, binary.contains("inherited()"))
+        assertTrue(binary, binary.contains("Inner(int)"))
+        assertFalse(binary, binary.contains("packagePrivate"))
+        assertFalse(binary, binary.contains("secret"))
+        assertFalse(binary, binary.contains("class Hidden"))
+    }
+
+    @Test
+    fun `Check compatibility against class files`() {
+        val project = createJarProject()
+        val jar = File(project, "libs/test.jar")
+
+        // The current API: the API of the jar, with a method removed
+        val apiFile = File(project, "api.txt")
+        runDriver(
+            ARG_NO_COLOR,
+            ARG_NO_BANNER,
+            ARG_INPUT_API_JAR, jar.path,
+            ARG_API, apiFile.path
+        )
+        val lines = apiFile.readLines()
+        val current = File(project, "current.txt")
+        current.writeText(lines.filter { !it.contains(" varargs(") }.joinToString("\n"))
+        assertEquals(lines.size - 1, current.readLines().size)
+
+        fun issues(vararg extraArguments: String): List<String> {
+            val issues = mutableListOf<String>()
+            val previousPrinter = Reporter.reportPrinter
+            Reporter.reportPrinter = { message, _ -> issues.add(message.trim().substringAfter(": error: ")) }
+            try {
+                runDriver(
+                    ARG_NO_COLOR,
+                    ARG_NO_BANNER,
+                    current.path,
+                    ARG_CHECK_COMPATIBILITY_API_RELEASED, jar.path,
+                    *extraArguments,
+                    expectedFail = "Aborting: Found compatibility problems with --check-compatibility"
+                )
+            } finally {
+                Reporter.reportPrinter = previousPrinter
+            }
+            return issues
+        }
+
+        val psi = issues()
+        val binary = issues(ARG_BINARY_JARS)
+        assertEquals(psi, binary)
+        assertEquals(1, binary.size)
+        assertTrue(binary.single(), binary.single().startsWith("Removed method test.pkg.Foo.varargs("))
+    }
+
+    @Test
+    fun `Reject merging annotations into class files`() {
+        val project = createJarProject()
+        val annotations = File(project, "annotations.txt")
+        annotations.writeText("package test.pkg {\n}\n")
+
+        runDriver(
+            ARG_NO_COLOR,
+            ARG_NO_BANNER,
+            ARG_INPUT_API_JAR, File(project, "libs/test.jar").path,
+            ARG_API, File(project, "api.txt").path,
+            ARG_MERGE_QUALIFIER_ANNOTATIONS, annotations.path,
+            ARG_BINARY_JARS,
+            expectedFail = "$ARG_BINARY_JARS cannot be combined with $ARG_MERGE_QUALIFIER_ANNOTATIONS, " +
+                "$ARG_MERGE_INCLUSION_ANNOTATIONS, $ARG_VALIDATE_NULLABILITY_FROM_MERGED_STUBS or " +
+                "$ARG_VALIDATE_NULLABILITY_FROM_LIST when reading jar files"
+        )
+    }
+}
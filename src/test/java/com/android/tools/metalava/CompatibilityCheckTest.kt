@@ -16,9 +16,14 @@
 
 package com.android.tools.metalava
 
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
 import org.junit.Ignore
 import org.junit.Test
 import java.io.File
+import java.io.PrintWriter
+import java.io.StringWriter
 import kotlin.text.Charsets.UTF_8
 
 class
@@ -3069,6 +3074,389 @@ CompatibilityCheckTest : DriverTest() {
         )
     }
 
+    @Test
+    fun `Report issues in the same order when comparing packages concurrently`() {
+        check(
+            expectedIssues = """
+                TESTROOT/current-api.txt:3: error: Removed method test.a.Kept.foo() [RemovedMethod]
+                TESTROOT/current-api.txt:4: error: Removed field test.a.Kept.bar [RemovedField]
+                TESTROOT/current-api.txt:6: error: Removed class test.a.Removed [RemovedClass]
+                TESTROOT/load-api.txt:6: error: Class test.b.MyTest changed class/interface declaration [ChangedClass]
+                TESTROOT/current-api.txt:13: error: Removed package test.c [RemovedPackage]
+                """,
+            compatibilityMode = false,
+            checkCompatibilityApi = """
+                package test.a {
+                  public class Kept {
+                    method public void foo();
+                    field public int bar;
+                  }
+                  public class Removed {
+                  }
+                }
+                package test.b {
+                  public class MyTest {
+                  }
+                }
+                package test.c {
+                  public class Gone {
+                  }
+                }
+                """,
+            signatureSource = """
+                package test.a {
+                  public class Kept {
+                  }
+                }
+                package test.b {
+                  public interface MyTest {
+                  }
+                }
+                """,
+            extraArguments = arrayOf(ARG_THREADS, "4")
+        )
+    }
+
+    @Test
+    fun `Report the issues of concurrent checks in the configured order`() {
+        // The released API check fails, so just like when running the checks one after
+        // the other, the issues of the removed API check are never reported
+        check(
+            expectedIssues = """
+                TESTROOT/released-api.txt:5: error: Removed class test.pkg.MyOldTest [RemovedClass]
+                TESTROOT/released-api.txt:3: error: Removed method test.pkg.MyTest.method(Float) [RemovedMethod]
+                """,
+            compatibilityMode = false,
+            checkCompatibilityApi = """
+                package test.pkg {
+                  public class MyTest {
+                  }
+                }
+                """,
+            checkCompatibilityApiReleased = """
+                package test.pkg {
+                  public class MyTest {
+                    method public Double method(Float);
+                  }
+                  public class MyOldTest {
+                  }
+                }
+                """,
+            checkCompatibilityRemovedApiReleased = """
+                package test.pkg {
+                  public class MyRemovedTest {
+                  }
+                }
+                """,
+            signatureSource = """
+                package test.pkg {
+                  public class MyTest {
+                  }
+                }
+                """,
+            extraArguments = arrayOf(ARG_THREADS, "4")
+        )
+    }
+
+    @Test
+    fun `Compare signature files concurrently with types missing from them`() {
+        // The bounds and return types refer to classes which are not in the signature files;
+        // looking them up while comparing the packages creates stubs of them, in new packages,
+        // in the packages being compared and as inner classes of other stubs
+        val packages = 1..8
+        fun api(withRemoved: Boolean) = packages.joinToString("\n") { p ->
+            """
+            package test.p$p {
+              public class Values$p<T extends test.missing.Bound$p> {
+                ctor public Values$p();
+                method public <R extends test.p$p.Missing> R first();
+                method public <R extends test.missing.Shared> R shared();
+                method public <R extends test.missing.Outer.Inner$p> R inner();
+                method public test.missing.Result$p result();
+                ${if (withRemoved) "method public void removed();" else "method public void kept();"}
+              }
+            }
+            """.trimIndent()
+        }
+
+        check(
+            expectedIssues = packages.joinToString("\n") { p ->
+                "TESTROOT/released-api.txt:${(p - 1) * 10 + 8}: error: Removed method test.p$p.Values$p.removed() [RemovedMethod]"
+            },
+            compatibilityMode = false,
+            checkCompatibilityApiReleased = api(withRemoved = true),
+            signatureSource = api(withRemoved = false),
+            extraArguments = arrayOf(ARG_THREADS, "4")
+        )
+    }
+
+    @Test
+    fun `Compare packages concurrently with the source codebase as the base API`() {
+        // The released API is partial, so it gets compared with the generated system API
+        // signature file, looking up removed items in the (shared) source codebase. Such
+        // lookups create the classes and methods of the codebase lazily, including the
+        // ones of super classes on the class path.
+        check(
+            expectedIssues = """
+                TESTROOT/released-api.txt:3: error: Removed method test.a.Task.cancel() [RemovedMethod]
+                TESTROOT/released-api.txt:11: error: Removed method test.b.Child.gone() [RemovedMethod]
+                TESTROOT/released-api.txt:19: error: Removed method test.c.Entries.trim() [RemovedMethod]
+                TESTROOT/released-api.txt:21: error: Removed class test.c.Removed [RemovedClass]
+                """,
+            compatibilityMode = false,
+            sourceFiles = arrayOf(
+                java(
+                    """
+                    package test.a;
+                    import android.annotation.SystemApi;
+
+                    public class Task implements Runnable {
+                        public void run() { }
+                        /** @hide */
+                        @SystemApi
+                        public void schedule() { }
+                    }
+                    """
+                ).indented(),
+                java(
+                    """
+                    package test.b;
+
+                    public class Parent extends java.io.InputStream {
+                        public int read() { return 0; }
+                        public void moved() { }
+                    }
+                    """
+                ).indented(),
+                java(
+                    """
+                    package test.b;
+                    import android.annotation.SystemApi;
+
+                    public class Child extends Parent {
+                        /** @hide */
+                        @SystemApi
+                        public void extra() { }
+                    }
+                    """
+                ).indented(),
+                java(
+                    """
+                    package test.c;
+                    import android.annotation.SystemApi;
+
+                    public class Entries extends java.util.AbstractList<String> {
+                        public String get(int index) { return null; }
+                        public int size() { return 0; }
+                        /** @hide */
+                        @SystemApi
+                        public void reverse() { }
+                    }
+                    """
+                ).indented(),
+                systemApiSource
+            ),
+            extraArguments = arrayOf(
+                ARG_SHOW_ANNOTATION, "android.annotation.SystemApi",
+                ARG_HIDE_PACKAGE, "android.annotation",
+                ARG_HIDE_PACKAGE, "android.support.annotation",
+                ARG_THREADS, "4"
+            ),
+            checkCompatibilityApiReleased = """
+                package test.a {
+                  public class Task implements java.lang.Runnable {
+                    method public void cancel();
+                    method public void run();
+                    method public void schedule();
+                  }
+                }
+                package test.b {
+                  public class Child extends test.b.Parent {
+                    method public void extra();
+                    method public void gone();
+                    method public void moved();
+                  }
+                }
+                package test.c {
+                  public class Entries extends java.util.AbstractList<java.lang.String> {
+                    method public void reverse();
+                    method public int size();
+                    method public void trim();
+                  }
+                  public class Removed {
+                  }
+                }
+                """
+        )
+    }
+
+    @Test
+    fun `Run concurrent checks against the same generated signature file`() {
+        // Both checks compare against the generated system API signature file, loaded once
+        // and shared by the two of them
+        val api = """
+            package test.pkg {
+              public class Foo {
+                method public void gone();
+                method public void schedule(test.missing.Task);
+              }
+            }
+            """
+        check(
+            expectedIssues = """
+                TESTROOT/current-api.txt:3: error: Removed method test.pkg.Foo.gone() [RemovedMethod]
+                TESTROOT/released-api.txt:3: error: Removed method test.pkg.Foo.gone() [RemovedMethod]
+                """,
+            compatibilityMode = false,
+            sourceFiles = arrayOf(
+                java(
+                    """
+                    package test.pkg;
+                    import android.annotation.SystemApi;
+
+                    public class Foo {
+                        /** @hide */
+                        @SystemApi
+                        public void schedule(test.missing.Task task) { }
+                    }
+                    """
+                ).indented(),
+                java(
+                    """
+                    package test.missing;
+
+                    public class Task {
+                    }
+                    """
+                ).indented(),
+                systemApiSource
+            ),
+            extraArguments = arrayOf(
+                ARG_SHOW_ANNOTATION, "android.annotation.SystemApi",
+                ARG_HIDE_PACKAGE, "android.annotation",
+                ARG_HIDE_PACKAGE, "android.support.annotation",
+                ARG_THREADS, "4"
+            ),
+            checkCompatibilityApi = api,
+            checkCompatibilityApiReleased = api
+        )
+    }
+
+    @Test
+    fun `Run concurrent checks of a source codebase`() {
+        // Both checks share the source codebase: the released API check compares it
+        // directly, and the removed API check looks up removed items in it
+        check(
+            expectedIssues = """
+                TESTROOT/removed-released-api.txt:3: error: Removed method test.pkg.Foo.gone() [RemovedMethod]
+                """,
+            compatibilityMode = false,
+            sourceFiles = arrayOf(
+                java(
+                    """
+                    package test.pkg;
+
+                    public class Foo extends java.util.AbstractList<String> {
+                        public String get(int index) { return null; }
+                        public int size() { return 0; }
+                        public void added() { }
+                        /** @removed */
+                        public void removed() { }
+                    }
+                    """
+                ).indented(),
+                java(
+                    """
+                    package test.other;
+
+                    public class Bar extends test.pkg.Foo implements Runnable, Comparable<Bar> {
+                        public void run() { }
+                        public int compareTo(Bar other) { return 0; }
+                        public String toString() { return ""; }
+                    }
+                    """
+                ).indented()
+            ),
+            checkCompatibilityApiReleased = """
+                package test.other {
+                  public class Bar extends test.pkg.Foo implements java.lang.Runnable {
+                    ctor public Bar();
+                    method public void run();
+                  }
+                }
+                package test.pkg {
+                  public class Foo extends java.util.AbstractList<java.lang.String> {
+                    ctor public Foo();
+                    method public java.lang.String get(int);
+                    method public int size();
+                  }
+                }
+                """,
+            checkCompatibilityRemovedApiReleased = """
+                package test.pkg {
+                  public class Foo extends java.util.AbstractList<java.lang.String> {
+                    method public void gone();
+                    method public void removed();
+                  }
+                }
+                """,
+            extraArguments = arrayOf(ARG_THREADS, "4")
+        )
+    }
+
+    @Test
+    fun `Check signature files without starting the application environment`() {
+        val project = createProject()
+        val previous = File(project, "previous.txt")
+        previous.writeText(
+            """
+            package test.pkg {
+              public class Foo {
+                ctor public Foo();
+                method public void foo(int);
+              }
+            }
+            """.trimIndent()
+        )
+        val current = File(project, "current.txt")
+        current.writeText(
+            """
+            package test.pkg {
+              public class Foo {
+                ctor public Foo();
+                method public void bar();
+              }
+            }
+            """.trimIndent()
+        )
+
+        val issues = mutableListOf<String>()
+        val previousPrinter = Reporter.reportPrinter
+        Reporter.reportPrinter = { message, _ -> issues.add(message.trim().substringAfter(": error: ")) }
+        try {
+            assertNull(applicationEnvironment)
+            // Keep the environment around after the run, like a persistent worker does, such
+            // that one started during the run would still be there
+            val output = StringWriter()
+            val writer = PrintWriter(output)
+            val success = run(
+                arrayOf(
+                    ARG_NO_COLOR,
+                    ARG_NO_BANNER,
+                    current.path,
+                    ARG_CHECK_COMPATIBILITY_API_RELEASED, previous.path
+                ),
+                writer, writer, disposeEnvironment = false
+            )
+            writer.flush()
+            assertFalse(output.toString(), success)
+            assertEquals(listOf("Removed method test.pkg.Foo.foo(int) [RemovedMethod]"), issues)
+            assertNull(applicationEnvironment)
+        } finally {
+            Reporter.reportPrinter = previousPrinter
+        }
+    }
+
     // TODO: Check method signatures changing incompatibly (look especially out for adding new overloaded
     // methods and comparator getting confused!)
     //   ..equals on the method items should actually be very useful!
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.PrintWriter
+import java.io.StringWriter
+
+class ConvertJarsToSignatureFilesTest : DriverTest() {
+    private val levels = 1..5
+
+    /** Creates a source tree with an android.jar file for each of the [levels] */
+    private fun createTree(): File {
+        val root = temporaryFolder.newFolder("tree")
+        for (api in levels) {
+            File(root, "prebuilts/sdk/$api/public/api").mkdirs()
+            writeClassesJar(getApiJar(root, api), mapOf("android/test/Api$api" to listOf("method(I)V")))
+        }
+        return root
+    }
+
+    private fun getApiJar(root: File, api: Int): File {
+        return File(
+            root,
+            if (api <= 3)
+                "prebuilts/tools/common/api-versions/android-$api/android.jar"
+            else
+                "prebuilts/sdk/$api/public/android.jar"
+        )
+    }
+
+    private fun getApiFile(root: File, api: Int): File {
+        return File(root, "prebuilts/sdk/$api/public/api/android.txt")
+    }
+
+    private fun convert(root: File, vararg extraArguments: String): Pair<Boolean, String> {
+        val output = StringWriter()
+        val writer = PrintWriter(output)
+        val success = run(
+            originalArgs = arrayOf(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_VERBOSE,
+                "--write-android-jar-signatures", root.path,
+                *extraArguments
+            ),
+            stdout = writer,
+            stderr = writer
+        )
+        writer.flush()
+        return Pair(success, output.toString())
+    }
+
+    @Test
+    fun `Print the progress of concurrently converted levels in order`() {
+        val root = createTree()
+        val (serialSuccess, _) = convert(root, ARG_BINARY_JARS)
+        assertTrue(serialSuccess)
+        val serial = levels.map { getApiFile(root, it).readText() }
+        levels.forEach { getApiFile(root, it).delete() }
+
+        val (success, output) = convert(root, ARG_BINARY_JARS, ARG_THREADS, "4")
+        assertTrue(output, success)
+        assertEquals(serial, levels.map { getApiFile(root, it).readText() })
+        assertTrue(serial[0], serial[0].contains("public abstract class Api1 {"))
+
+        var previous = -1
+        for (api in levels) {
+            val writing = output.indexOf("Writing signature files prebuilts/sdk/$api/public/api/android.txt")
+            val wrote = output.indexOf("wrote API file ${getApiFile(root, api)} in ")
+            assertTrue(output, writing > previous)
+            assertTrue(output, wrote > writing)
+            previous = wrote
+        }
+    }
+
+    @Test
+    fun `Stop at the first level that fails`() {
+        val root = createTree()
+        val broken = getApiJar(root, 2)
+        broken.writeText("Not a jar file")
+
+        val (success, output) = convert(root, ARG_BINARY_JARS, ARG_THREADS, "4")
+        assertFalse(output, success)
+        assertTrue(output, output.contains("Could not read $broken"))
+        assertTrue(output, output.contains("wrote API file ${getApiFile(root, 1)} in "))
+        for (api in 3..5) {
+            assertFalse(output, output.contains("Writing signature files prebuilts/sdk/$api/"))
+        }
+        // Levels converted after the broken one are not written either
+        assertTrue(getApiFile(root, 1).isFile)
+        for (api in 2..5) {
+            assertFalse(getApiFile(root, api).path, getApiFile(root, api).exists())
+        }
+    }
+
+    @Test
+    fun `Require binary jars to convert levels concurrently`() {
+        val root = createTree()
+        val (success, output) = convert(root, ARG_THREADS, "4")
+        assertFalse(output, success)
+        assertTrue(
+            output,
+            output.contains("Converting android.jar files on several $ARG_THREADS requires $ARG_BINARY_JARS")
+        )
+    }
+}
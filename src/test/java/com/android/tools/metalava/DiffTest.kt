@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class DiffTest {
+    @Test
+    fun `Diff of moved line`() {
+        val before = """
+            package test.pkg {
+              public class MyClass {
+                ctor public MyClass();
+                method public void method2();
+                method public void method1();
+                method public void method3();
+              }
+            }
+            """.trimIndent()
+        val after = """
+            package test.pkg {
+              public class MyClass {
+                ctor public MyClass();
+                method public void method1();
+                method public void method2();
+                method public void method3();
+              }
+            }
+            """.trimIndent()
+
+        assertEquals(
+            """
+            @@ -4 +4
+                  ctor public MyClass();
+            -     method public void method2();
+                  method public void method1();
+            @@ -6 +5
+                  method public void method1();
+            +     method public void method2();
+                  method public void method3();
+            """.trimIndent() + "\n",
+            getDiff(before, after, 1)
+        )
+    }
+
+    @Test
+    fun `Diff of changed and appended lines`() {
+        assertEquals(
+            """
+            @@ -2 +2
+            - b
+            + x
+            @@ -4 +4
+            + d
+            """.trimIndent() + "\n",
+            getDiff(arrayOf("a", "b", "c"), arrayOf("a", "x", "c", "d"), 0)
+        )
+        assertEquals("", getDiff(arrayOf("a", "b"), arrayOf("a", "b"), 1))
+        assertEquals("@@ -1 +1\n- a\n- b\n", getDiff(arrayOf("a", "b"), arrayOf(), 1))
+    }
+
+    @Test
+    fun `Diff of large files`() {
+        // Would need a 10^10 entry table with a quadratic LCS
+        val count = 100_000
+        val before = Array(count) { "line $it" }
+        val after = Array(count) { if (it == count / 2) "changed" else "line $it" }
+
+        assertEquals(
+            "@@ -50001 +50001\n  line 49999\n- line 50000\n+ changed\n  line 50001\n",
+            getDiff(before, after, 1)
+        )
+    }
+}
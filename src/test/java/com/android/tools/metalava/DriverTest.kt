@@ -42,6 +42,7 @@ import com.google.common.io.Closeables
 import com.google.common.io.Files
 import com.intellij.openapi.util.Disposer
 import org.intellij.lang.annotations.Language
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertNotNull
 import org.junit.Assert.assertTrue
@@ -50,6 +51,8 @@ import org.junit.Before
 import org.junit.Rule
 import org.junit.rules.ErrorCollector
 import org.junit.rules.TemporaryFolder
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes
 import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileNotFoundException
@@ -57,6 +60,8 @@ import java.io.PrintStream
 import java.io.PrintWriter
 import java.io.StringWriter
 import java.net.URL
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
 import kotlin.text.Charsets.UTF_8
 
 const val CHECK_JDIFF = false
@@ -1498,6 +1503,59 @@ abstract class DriverTest {
         }
     }
 
+    /** Returns the contents of all the files below [dir], by their path relative to it */
+    protected fun readOutputs(dir: File): Map<String, ByteArray> {
+        val result = sortedMapOf<String, ByteArray>()
+        dir.walkTopDown().filter { it.isFile }.forEach {
+            result[it.relativeTo(dir).path] = it.readBytes()
+        }
+        return result
+    }
+
+    /** Checks that [actual] contains the same files as [expected], with the same contents */
+    protected fun assertSameOutputs(expected: File, actual: File) {
+        val expectedOutputs = readOutputs(expected)
+        val actualOutputs = readOutputs(actual)
+        assertEquals(expectedOutputs.keys, actualOutputs.keys)
+        for ((path, bytes) in expectedOutputs) {
+            assertArrayEquals(path, bytes, actualOutputs[path])
+        }
+    }
+
+    /**
+     * Writes a jar file with a public abstract class for each of the given [classes] (internal
+     * names such as `android/test/Foo`), each with a public constructor and the given public
+     * abstract methods (names followed by their descriptor, such as `method(I)V`)
+     */
+    protected fun writeClassesJar(jar: File, classes: Map<String, List<String>>) {
+        jar.parentFile.mkdirs()
+        ZipOutputStream(jar.outputStream()).use { zip ->
+            for ((className, methods) in classes) {
+                val writer = ClassWriter(0)
+                val access = Opcodes.ACC_PUBLIC or Opcodes.ACC_SUPER or Opcodes.ACC_ABSTRACT
+                writer.visit(Opcodes.V1_8, access, className, null, "java/lang/Object", null)
+                val constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null)
+                constructor.visitCode()
+                constructor.visitVarInsn(Opcodes.ALOAD, 0)
+                constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false)
+                constructor.visitInsn(Opcodes.RETURN)
+                constructor.visitMaxs(1, 1)
+                constructor.visitEnd()
+                for (method in methods) {
+                    val name = method.substringBefore('(')
+                    val descriptor = method.substring(name.length)
+                    writer.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_ABSTRACT, name, descriptor, null, null)
+                        .visitEnd()
+                }
+                writer.visitEnd()
+
+                zip.putNextEntry(ZipEntry("$className.class"))
+                zip.write(writer.toByteArray())
+                zip.closeEntry()
+            }
+        }
+    }
+
     /** Checks that the given zip annotations file contains the given XML package contents */
     private fun assertPackageXml(pkg: String, output: File, @Language("XML") expected: String) {
         assertNotNull(output)
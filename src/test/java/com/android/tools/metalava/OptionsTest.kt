@@ -424,6 +424,47 @@ Sandboxing:
                                              file containing paths to the full set of files and/or directories.
 
 
+Performance:
+--parallel-outputs <n>                       
+                                             Writes the signature, DEX and ProGuard files on the given number of threads
+                                             once the codebase has been analyzed, instead of one after another. The
+                                             default is 1.
+--cache-dir <dir>                            
+                                             A directory in which to keep data between invocations, such as parsed
+                                             signature files and summaries of android.jar files. Entries are keyed by
+                                             the contents of their inputs, so the directory can be shared between
+                                             builds.
+--threads <n>                                
+                                             Processes independent inputs on the given number of threads, such as
+                                             parsing signature files, reading the android.jar files for
+                                             --generate-api-levels or comparing the packages of two APIs in
+                                             compatibility checks. The results do not depend on the number of threads.
+                                             The default is 1.
+--persistent_worker                          
+                                             Runs as a persistent worker: reads requests (one JSON object per line,
+                                             holding the arguments of an invocation) from standard input and writes a
+                                             response for each to standard output, keeping the process and its IntelliJ
+                                             application environment alive between them.
+--surface <file>                             
+                                             Produces another API surface after the one described by the other flags.
+                                             The file lists the complete arguments of that surface, one per line.
+                                             Surfaces reading the same sources share the parsed sources instead of
+                                             parsing them again. Can be specified multiple times.
+--binary-jars                                
+                                             Reads jar files (such as --input-api-jar or a previous API passed to
+                                             --check-compatibility) directly from their class files instead of through
+                                             an IntelliJ project environment. Cannot be combined with merging
+                                             annotations into jar files.
+--shard <index>/<count>                      
+                                             Splits the API over <count> runs, and only emits the packages assigned to
+                                             run number <index> (from 1 to <count>). Each run still reads all the
+                                             sources.
+--merge-shards <dirs>                        
+                                             One or more output directories (separated by `:`) of the runs of all the
+                                             shards of --shard. Instead of analyzing any sources, combines the files of
+                                             the same name in these directories into the outputs.
+
+
 Environment Variables:
 METALAVA_DUMP_ARGV                           
                                              Set to true to have metalava emit all the arguments it was invoked with.
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.StringReader
+
+class PackageScannerTest {
+    @get:Rule
+    var temporaryFolder = TemporaryFolder()
+
+    private fun scan(source: String): String? = PackageScanner().scan(StringReader(source))
+
+    @Test
+    fun `Find package in source headers`() {
+        assertEquals("test.pkg", scan("package test.pkg;\npublic class Foo { }"))
+        assertEquals("test.pkg", scan("\uFEFF  package  test.pkg ;"))
+        assertEquals(
+            "test.pkg",
+            scan(
+                """
+                /*
+                 * Copyright (C) 2019 The Android Open Source Project
+                 */
+                // package wrong.pkg;
+                /** @hide */
+                @SuppressWarnings({"unchecked", "package wrong.pkg"})
+                @android.annotation.SystemApi(client = Client.MODULE_APPS)
+                package test.pkg;
+                """.trimIndent()
+            )
+        )
+        assertEquals(
+            "test.pkg",
+            scan(
+                """
+                @file:JvmName("Foo\")Bar")
+                @file:[JvmMultifileClass Suppress("x")]
+                package test.pkg
+
+                fun foo() { }
+                """.trimIndent()
+            )
+        )
+        assertEquals("test.pkg", scan("package test.pkg/* comment */;"))
+    }
+
+    @Test
+    fun `No package in source headers`() {
+        assertNull(scan(""))
+        assertNull(scan("// package test.pkg;"))
+        assertNull(scan("public class Foo { }\npackage test.pkg;"))
+        assertNull(scan("import java.util.List;\npackage test.pkg;"))
+        assertNull(scan("@Foo(\"unterminated)\npackage test.pkg;"))
+        assertNull(scan("packages test.pkg;"))
+    }
+
+    @Test
+    fun `Read packages longer than the buffer`() {
+        val header = "/*" + "x".repeat(10000) + "*/\n"
+        val name = (1..2000).joinToString(".") { "p$it" }
+        assertEquals(name, scan("$header@Foo(\"${"y".repeat(5000)}\")\npackage $name;"))
+    }
+
+    @Test
+    fun `Find the same packages as the full text parser`() {
+        val dir = temporaryFolder.newFolder("src")
+        val sources = listOf(
+            "package test.pkg;\nclass Foo { }",
+            "/* Copyright */\npackage test.pkg.sub;\n\nimport java.util.List;\nclass Foo { }",
+            "@file:JvmName(\"Utils\")\npackage test.kotlin\n\nfun foo() = 1",
+            "/** @hide */\n@Deprecated\npackage test.info;"
+        )
+        for ((index, source) in sources.withIndex()) {
+            val file = dir.resolve("Source$index.java")
+            file.writeText(source)
+            assertEquals(source, findPackage(source), PackageScanner().scan(file))
+        }
+    }
+}
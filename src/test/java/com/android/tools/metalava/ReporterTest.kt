@@ -16,6 +16,7 @@
 
 package com.android.tools.metalava
 
+import org.junit.Assert.assertEquals
 import org.junit.Test
 
 class ReporterTest : DriverTest() {
@@ -47,4 +48,27 @@ class ReporterTest : DriverTest() {
             )
         )
     }
+
+    @Test
+    fun `Line offsets match newline counting`() {
+        // Reference implementation: count the newlines preceding the offset
+        fun countLines(text: String, offset: Int): Int {
+            return text.substring(0, Math.max(0, Math.min(offset, text.length))).count { it == '\n' }
+        }
+
+        val texts = listOf(
+            "",
+            "\n",
+            "package test.pkg;\npublic class Foo {\n}\n",
+            "no trailing newline\r\nwith\r\ncarriage returns",
+            "\n\n\nblank lines\n\n",
+            (1..1000).joinToString("\n") { "line $it" }
+        )
+        for (text in texts) {
+            val lineOffsets = LineOffsets(text)
+            for (offset in -1..text.length + 1) {
+                assertEquals("offset $offset in \"$text\"", countLines(text, offset), lineOffsets.getLineNumber(offset))
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class ShardMergerTest : DriverTest() {
+    @Test
+    fun `Merged shards produce the same outputs as a single run`() {
+        val project = createProject(
+            java(
+                """
+                package test.a;
+                public class Foo {
+                    public void foo() { }
+                    /** @removed */
+                    public void removed() { }
+                }
+                """
+            ),
+            java(
+                """
+                package test.b;
+                public class Bar extends test.a.Foo {
+                    public int bar;
+                    public class Inner { }
+                }
+                """
+            ),
+            java(
+                """
+                package test.c;
+                public interface Baz {
+                    test.b.Bar create();
+                }
+                """
+            ),
+            java(
+                """
+                package test.d;
+                public class Qux {
+                    /** @removed */
+                    public static final int REMOVED = 1;
+                }
+                """
+            )
+        )
+        val sourcePath = File(project, "src")
+        val shardCount = 3
+
+        fun runMetalava(outputDir: File, vararg extraArguments: String) {
+            outputDir.mkdirs()
+            runDriver(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_SOURCE_PATH, sourcePath.path,
+                ARG_CLASS_PATH, getPlatformFile("android.jar").path,
+                ARG_API, File(outputDir, "api.txt").path,
+                ARG_REMOVED_API, File(outputDir, "removed.txt").path,
+                ARG_DEX_API, File(outputDir, "dex-api.txt").path,
+                ARG_STUBS, File(outputDir, "stubs").path,
+                *extraArguments
+            )
+        }
+
+        val single = File(project, "single")
+        runMetalava(single)
+
+        val shardDirs = (1..shardCount).map { shard ->
+            val dir = File(project, "shard$shard")
+            runMetalava(dir, ARG_SHARD, "$shard/$shardCount")
+            dir
+        }
+        // Every shard only has some of the packages
+        for (dir in shardDirs) {
+            val api = File(dir, "api.txt").readText()
+            assertFalse(api, api.contains("package test.a") && api.contains("package test.b"))
+        }
+
+        val merged = File(project, "merged")
+        runMetalava(merged, ARG_MERGE_SHARDS, shardDirs.joinToString(File.pathSeparator) { it.path })
+
+        assertSameOutputs(single, merged)
+
+        val expected = readOutputs(single)
+        val api = String(expected.getValue("api.txt"))
+        assertTrue(api, api.contains("package test.a") && api.contains("package test.d"))
+        val removed = String(expected.getValue("removed.txt"))
+        assertTrue(removed, removed.contains("removed()") && removed.contains("REMOVED"))
+    }
+
+    @Test
+    fun `Reject checks when merging shards`() {
+        val shard = temporaryFolder.newFolder("shard")
+        val api = temporaryFolder.newFile("api.txt")
+        api.writeText("package test.pkg {\n}\n")
+        runDriver(
+            ARG_NO_COLOR,
+            ARG_NO_BANNER,
+            ARG_API, File(temporaryFolder.newFolder("merged"), "api.txt").path,
+            ARG_MERGE_SHARDS, shard.path,
+            ARG_CHECK_COMPATIBILITY_API_RELEASED, api.path,
+            expectedFail = "$ARG_MERGE_SHARDS cannot be combined with $ARG_CHECK_COMPATIBILITY or $ARG_API_LINT"
+        )
+    }
+}
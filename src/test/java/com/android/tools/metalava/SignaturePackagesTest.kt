@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class SignaturePackagesTest {
+    @get:Rule
+    var temporaryFolder = TemporaryFolder()
+
+    private val previous = """
+        // Signature format: 2.0
+        package test.a {
+
+          public class Base {
+            ctor public Base();
+            method public void inherited();
+          }
+
+        }
+
+        package test.b {
+
+          public class Bar extends test.a.Base {
+            ctor public Bar();
+            method public void removed();
+          }
+
+        }
+
+        package test.c {
+
+          public class Sub extends test.b.Bar {
+            ctor public Sub();
+          }
+
+        }
+
+        package test.d {
+
+          public class Unrelated {
+            ctor public Unrelated();
+            method public void foo() throws test.e.Failure;
+          }
+
+        }
+
+        package test.e {
+
+          public class Failure extends java.lang.Exception {
+            ctor public Failure();
+          }
+
+        }
+
+        """.trimIndent()
+
+    @Test
+    fun `Split signature files into packages`() {
+        val packages = SignaturePackages.parse(previous)
+        assertEquals("// Signature format: 2.0\n", packages.header)
+        assertEquals(listOf("test.a", "test.b", "test.c", "test.d", "test.e"), packages.packages.keys.toList())
+        assertEquals(previous, packages.header + packages.packages.values.joinToString(""))
+    }
+
+    @Test
+    fun `Only load the packages needed to compare the changed ones`() {
+        val previousFile = temporaryFolder.newFile("previous.txt")
+        previousFile.writeText(previous)
+        val currentFile = temporaryFolder.newFile("current.txt")
+        currentFile.writeText(previous.replace("    method public void removed();\n", ""))
+
+        val selection = SignaturePackages.select(previousFile, currentFile)
+        assertFalse(selection.identical)
+        val previousText = selection.previousText!!
+        val currentText = selection.currentText!!
+
+        // test.b changed; test.c extends one of its classes, and test.a has its super class
+        for (text in listOf(previousText, currentText)) {
+            assertTrue(text, text.contains("package test.a {"))
+            assertTrue(text, text.contains("package test.b {"))
+            assertTrue(text, text.contains("package test.c {"))
+            assertFalse(text, text.contains("package test.d {"))
+            assertFalse(text, text.contains("package test.e {"))
+        }
+        // Left out packages are blanked out, keeping the line numbers of the others
+        assertEquals(previous.lines().size, previousText.lines().size)
+        assertEquals(
+            previous.lines().indexOf("    method public void removed();"),
+            previousText.lines().indexOf("    method public void removed();")
+        )
+    }
+
+    @Test
+    fun `Compare identical files by their text`() {
+        val previousFile = temporaryFolder.newFile("previous.txt")
+        previousFile.writeText(previous)
+        val currentFile = temporaryFolder.newFile("current.txt")
+        currentFile.writeText(previous)
+        val selection = SignaturePackages.select(previousFile, currentFile)
+        assertTrue(selection.identical)
+        assertNull(selection.previousText)
+        assertNull(selection.currentText)
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+
+class SourceDiscoveryTest {
+    @get:Rule
+    var temporaryFolder = TemporaryFolder()
+
+    @Test
+    fun `Find sources sequentially, concurrently and from the cache`() {
+        val root = temporaryFolder.newFolder("src")
+        for (path in listOf(
+            "test/pkg/Foo.java",
+            "test/pkg/Bar.kt",
+            "test/pkg/package.html",
+            "test/pkg/sub/Baz.java",
+            "test/other/Qux.java",
+            ".git/objects/Ignored.java"
+        )) {
+            val file = File(root, path)
+            file.parentFile.mkdirs()
+            file.writeText("")
+        }
+        Files.createSymbolicLink(File(root, "test/pkg/sub/loop").toPath(), root.toPath())
+        Files.createSymbolicLink(File(root, "test/Linked.java").toPath(), File(root, "test/pkg/Foo.java").toPath())
+
+        val expectedSources = listOf(
+            "test/Linked.java",
+            "test/other/Qux.java",
+            "test/pkg/Bar.kt",
+            "test/pkg/Foo.java",
+            "test/pkg/sub/Baz.java"
+        )
+
+        fun check(result: SourceDiscovery.Result) {
+            assertEquals(expectedSources, result.sources.map { it.relativeTo(root).path }.sorted())
+            assertEquals(listOf("test/pkg/sub/loop"), result.ignoredSymlinks.map { it.relativeTo(root).path })
+        }
+
+        check(SourceDiscovery().find(listOf(root)))
+        check(SourceDiscovery(threads = 4).find(listOf(root)))
+
+        // Make the directories look old enough to be cached
+        val old = FileTime.fromMillis(System.currentTimeMillis() - 60_000)
+        root.walkTopDown()
+            .onEnter { !Files.isSymbolicLink(it.toPath()) }
+            .filter { it.isDirectory }
+            .forEach { Files.setLastModifiedTime(it.toPath(), old) }
+
+        val cacheDir = temporaryFolder.newFolder("cache")
+        check(SourceDiscovery(cacheDir = cacheDir).find(listOf(root)))
+        assertEquals(1, cacheDir.listFiles()!!.size)
+        check(SourceDiscovery(cacheDir = cacheDir).find(listOf(root)))
+
+        // Adding a file updates the time stamp of its directory, which invalidates the list
+        File(root, "test/other/Added.java").writeText("")
+        val result = SourceDiscovery(cacheDir = cacheDir).find(listOf(root))
+        assertEquals(
+            (expectedSources + "test/other/Added.java").sorted(),
+            result.sources.map { it.relativeTo(root).path }.sorted()
+        )
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.PrintStream
+
+class WorkerTest {
+    @get:Rule
+    var temporaryFolder = TemporaryFolder()
+
+    @Test
+    fun `Run requests in persistent worker mode`() {
+        val flags = temporaryFolder.newFile("flags")
+        flags.writeText("$ARG_VERSION\n")
+
+        val requests = """
+            {"arguments": ["$ARG_VERSION"], "requestId": 1}
+
+            {"arguments": ["--no-such-flag"], "inputs": [{"path": "a.txt", "digest": "A\n"}], "requestId": 2}
+            {"arguments": ["@${flags.path}"], "requestId": 3}
+            """.trimIndent()
+        val output = ByteArrayOutputStream()
+        PrintStream(output, true).use { stream ->
+            runWorker(ByteArrayInputStream(requests.toByteArray(Charsets.UTF_8)), stream)
+        }
+
+        val responses = output.toString(Charsets.UTF_8.name()).trim().lines()
+        assertEquals(3, responses.size)
+        assertTrue(responses[0], responses[0].startsWith("{\"exitCode\":0,"))
+        assertTrue(responses[0], responses[0].contains("$PROGRAM_NAME version: "))
+        assertTrue(responses[0], responses[0].endsWith("\"requestId\":1}"))
+        assertTrue(responses[1], responses[1].startsWith("{\"exitCode\":1,"))
+        assertTrue(responses[1], responses[1].contains("Invalid argument --no-such-flag"))
+        assertTrue(responses[1], responses[1].endsWith("\"requestId\":2}"))
+        assertTrue(responses[2], responses[2].startsWith("{\"exitCode\":0,"))
+        assertTrue(responses[2], responses[2].contains("$PROGRAM_NAME version: "))
+        assertTrue(responses[2], responses[2].endsWith("\"requestId\":3}"))
+    }
+
+    @Test
+    fun `Only log the time of verbose requests`() {
+        val requests = """
+            {"arguments": ["$ARG_VERSION"], "requestId": 1}
+            {"arguments": ["$ARG_VERBOSE", "$ARG_VERSION"], "requestId": 2}
+            """.trimIndent()
+        val log = ByteArrayOutputStream()
+        val previousErr = System.err
+        System.setErr(PrintStream(log, true))
+        try {
+            PrintStream(ByteArrayOutputStream(), true).use { stream ->
+                runWorker(ByteArrayInputStream(requests.toByteArray(Charsets.UTF_8)), stream)
+            }
+        } finally {
+            System.setErr(previousErr)
+        }
+
+        val logged = log.toString(Charsets.UTF_8.name())
+        assertFalse(logged, logged.contains("request 1 finished in"))
+        assertTrue(logged, logged.contains("$PROGRAM_NAME worker: request 2 finished in"))
+    }
+
+    @Test
+    fun `Answer malformed requests with a failure`() {
+        val requests = """
+            {"arguments": ["$ARG_VERSION"
+            {"arguments": ["$ARG_VERSION"], "requestId": 2}
+            """.trimIndent()
+        val output = ByteArrayOutputStream()
+        PrintStream(output, true).use { stream ->
+            runWorker(ByteArrayInputStream(requests.toByteArray(Charsets.UTF_8)), stream)
+        }
+
+        val responses = output.toString(Charsets.UTF_8.name()).trim().lines()
+        assertEquals(2, responses.size)
+        assertTrue(responses[0], responses[0].startsWith("{\"exitCode\":1,"))
+        assertTrue(responses[0], responses[0].contains("$PROGRAM_NAME worker: malformed request: "))
+        assertTrue(responses[0], responses[0].endsWith("\"requestId\":0}"))
+        assertTrue(responses[1], responses[1].startsWith("{\"exitCode\":0,"))
+        assertTrue(responses[1], responses[1].endsWith("\"requestId\":2}"))
+    }
+
+    @Test
+    fun `Parse sources in consecutive requests`() {
+        // Each request disposes of its project environment but keeps the application one
+        val first = temporaryFolder.newFolder("first")
+        File(first, "src/test/first").mkdirs()
+        File(first, "src/test/first/Foo.java").writeText(
+            """
+            package test.first;
+            public class Foo {
+                public void foo() { }
+            }
+            """.trimIndent()
+        )
+        val second = temporaryFolder.newFolder("second")
+        File(second, "src/test/second").mkdirs()
+        File(second, "src/test/second/Bar.java").writeText(
+            """
+            package test.second;
+            public class Bar {
+                public int bar(int i) { return i; }
+            }
+            """.trimIndent()
+        )
+
+        fun request(project: File, requestId: Int): String {
+            val arguments = listOf(
+                ARG_NO_COLOR,
+                ARG_NO_BANNER,
+                ARG_SOURCE_PATH, File(project, "src").path,
+                ARG_CLASS_PATH, DriverTest.getPlatformFile("android.jar").path,
+                ARG_API, File(project, "api.txt").path
+            )
+            return "{\"arguments\": [${arguments.joinToString(", ") { "\"$it\"" }}], \"requestId\": $requestId}"
+        }
+
+        val requests = request(first, 1) + "\n" + request(second, 2) + "\n"
+        val output = ByteArrayOutputStream()
+        PrintStream(output, true).use { stream ->
+            runWorker(ByteArrayInputStream(requests.toByteArray(Charsets.UTF_8)), stream)
+        }
+
+        val responses = output.toString(Charsets.UTF_8.name()).trim().lines()
+        assertEquals(2, responses.size)
+        assertTrue(responses[0], responses[0].startsWith("{\"exitCode\":0,"))
+        assertTrue(responses[0], responses[0].endsWith("\"requestId\":1}"))
+        assertTrue(responses[1], responses[1].startsWith("{\"exitCode\":0,"))
+        assertTrue(responses[1], responses[1].endsWith("\"requestId\":2}"))
+
+        val firstApi = File(first, "api.txt").readText()
+        assertTrue(firstApi, firstApi.contains("method public void foo();"))
+        assertFalse(firstApi, firstApi.contains("test.second"))
+        val secondApi = File(second, "api.txt").readText()
+        assertTrue(secondApi, secondApi.contains("method public int bar(int);"))
+        assertFalse(secondApi, secondApi.contains("test.first"))
+    }
+}
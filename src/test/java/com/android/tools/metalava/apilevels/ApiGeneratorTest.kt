@@ -23,6 +23,7 @@ import com.android.tools.metalava.ARG_ANDROID_JAR_PATTERN
 import com.android.tools.metalava.ARG_CURRENT_CODENAME
 import com.android.tools.metalava.ARG_CURRENT_VERSION
 import com.android.tools.metalava.ARG_GENERATE_API_LEVELS
+import com.android.tools.metalava.ARG_THREADS
 import com.android.tools.metalava.DriverTest
 import com.android.utils.XmlUtils
 import org.junit.Assert.assertEquals
@@ -123,4 +124,50 @@ class ApiGeneratorTest : DriverTest() {
         val methodVersion = apiLookup.getMethodVersion("android/icu/util/CopticCalendar", "computeTime", "()")
         assertEquals(24, methodVersion)
     }
+
+    @Test
+    fun `Generate the same API levels on several threads`() {
+        // API levels 1 to 28, adding a method to Common and a class in each, and removing
+        // the classes again ten levels later
+        val sdk = temporaryFolder.newFolder("sdk")
+        for (api in 1..28) {
+            val classes = mutableMapOf("android/test/Common" to (1..api).map { "method$it(I)V" })
+            for (added in maxOf(1, api - 9)..api) {
+                classes["android/test/Api$added"] = listOf("method(I)V")
+            }
+            writeClassesJar(File(sdk, "android-$api/android.jar"), classes)
+        }
+
+        fun generateApiLevels(threads: Int): String {
+            val output = File(temporaryFolder.newFolder(), "api-versions.xml")
+            check(
+                extraArguments = arrayOf(
+                    ARG_GENERATE_API_LEVELS,
+                    output.path,
+                    ARG_ANDROID_JAR_PATTERN,
+                    "${sdk.path}/android-%/android.jar",
+                    ARG_CURRENT_VERSION,
+                    "28",
+                    ARG_THREADS,
+                    threads.toString()
+                ),
+                sourceFiles = arrayOf(
+                    java(
+                        """
+                        package android.pkg;
+                        public class MyTest {
+                        }
+                        """
+                    )
+                )
+            )
+            return output.readText(UTF_8)
+        }
+
+        val xml = generateApiLevels(1)
+        assertTrue(xml, xml.contains("<class name=\"android/test/Common\" since=\"1\""))
+        assertTrue(xml, xml.contains("<method name=\"method2(I)V\" since=\"2\""))
+        assertTrue(xml, xml.contains("<class name=\"android/test/Api3\" since=\"3\" removed=\"13\""))
+        assertEquals(xml, generateApiLevels(4))
+    }
 }
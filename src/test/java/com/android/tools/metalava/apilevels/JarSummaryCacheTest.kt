@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava.apilevels
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.objectweb.asm.Opcodes
+
+class JarSummaryCacheTest {
+    @get:Rule
+    var temporaryFolder = TemporaryFolder()
+
+    @Test
+    fun `Round trip jar summaries through the cache`() {
+        val cache = JarSummaryCache(temporaryFolder.newFolder("cache"))
+        val jar1 = temporaryFolder.newFile("android-1.jar")
+        jar1.writeText("first")
+        val jar2 = temporaryFolder.newFile("android-2.jar")
+        jar2.writeText("second")
+
+        val key = cache.computeKey(jar1)
+        assertEquals(key, cache.computeKey(jar1))
+        assertNotEquals(key, cache.computeKey(jar2))
+        assertNull(cache.get(key))
+
+        val cls = AndroidJarReader.JarClass()
+        cls.name = "android/app/Activity"
+        cls.access = Opcodes.ACC_PUBLIC or Opcodes.ACC_DEPRECATED
+        cls.superName = "android/view/ContextThemeWrapper"
+        cls.interfaces = arrayOf("android/view/Window\$Callback", "android/view/KeyEvent\$Callback")
+        cls.fields.add("RESULT_OK")
+        cls.deprecatedFields.add(false)
+        cls.methods.add("<init>()V")
+        cls.deprecatedMethods.add(false)
+        cls.methods.add("onCreate(Landroid/os/Bundle;)V")
+        cls.deprecatedMethods.add(true)
+        val inner = AndroidJarReader.JarClass()
+        inner.name = "android/view/Window\$Callback"
+        inner.access = Opcodes.ACC_PUBLIC or Opcodes.ACC_INTERFACE
+        inner.superName = "java/lang/Object"
+        inner.interfaces = arrayOf()
+
+        cache.put(key, listOf(cls, inner))
+        val classes = cache.get(key)!!
+        assertEquals(2, classes.size)
+
+        val read = classes[0]
+        assertEquals(cls.name, read.name)
+        assertEquals(cls.access, read.access)
+        assertEquals(cls.superName, read.superName)
+        assertArrayEquals(cls.interfaces, read.interfaces)
+        assertEquals(cls.fields, read.fields)
+        assertEquals(cls.deprecatedFields, read.deprecatedFields)
+        assertEquals(cls.methods, read.methods)
+        assertEquals(cls.deprecatedMethods, read.deprecatedMethods)
+
+        val readInner = classes[1]
+        assertEquals(inner.name, readInner.name)
+        assertArrayEquals(inner.interfaces, readInner.interfaces)
+        assertEquals(emptyList<String>(), readInner.methods)
+
+        assertNull(cache.get(cache.computeKey(jar2)))
+    }
+}
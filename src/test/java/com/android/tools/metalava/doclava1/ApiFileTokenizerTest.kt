@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava.doclava1
+
+import com.google.common.truth.Truth
+import org.junit.Test
+
+class ApiFileTokenizerTest {
+    @Test
+    fun testRepeatedTokensAreShared() {
+        val text = """
+            package test.pkg {
+              public class Foo {
+                method public java.lang.String foo(java.lang.String, java.util.List<java.lang.String>);
+                method public java.lang.String bar();
+              }
+            }
+            """.trimIndent()
+        val tokenizer = ApiFile.Tokenizer("api.txt", text.toCharArray())
+        val tokens = mutableListOf<String>()
+        while (true) {
+            tokens.add(tokenizer.getToken() ?: break)
+        }
+
+        Truth.assertThat(tokens.joinToString(" ")).isEqualTo(
+            "package test.pkg { public class Foo { " +
+                "method public java.lang.String foo ( java.lang.String , java.util.List<java.lang.String> ) ; " +
+                "method public java.lang.String bar ( ) ; } }"
+        )
+        val strings = tokens.filter { it == "java.lang.String" }
+        Truth.assertThat(strings).hasSize(3)
+        Truth.assertThat(strings.all { it === strings[0] }).isTrue()
+        Truth.assertThat(tokens.filter { it == "public" }.distinctBy { System.identityHashCode(it) }).hasSize(1)
+        Truth.assertThat(tokens.filter { it == "(" }.distinctBy { System.identityHashCode(it) }).hasSize(1)
+    }
+
+    @Test
+    fun testTokenTableGrows() {
+        val table = ApiFile.TokenTable()
+        val buf = (0 until 5000).joinToString(" ") { "token$it" }.toCharArray()
+        val first = mutableListOf<String>()
+        var start = 0
+        for (i in 0 until 5000) {
+            val length = "token$i".length
+            first.add(table.get(buf, start, length))
+            start += length + 1
+        }
+        Truth.assertThat(table.size()).isEqualTo(5000)
+
+        start = 0
+        for (i in 0 until 5000) {
+            val length = "token$i".length
+            val s = table.get(buf, start, length)
+            Truth.assertThat(s).isEqualTo("token$i")
+            Truth.assertThat(s === first[i]).isTrue()
+            start += length + 1
+        }
+        Truth.assertThat(table.size()).isEqualTo(5000)
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava.doclava1
+
+import com.android.tools.metalava.ARG_SHOW_ANNOTATION
+import com.android.tools.metalava.Compatibility
+import com.android.tools.metalava.Options
+import com.android.tools.metalava.compatibility
+import com.android.tools.metalava.model.MethodItem
+import com.android.tools.metalava.options
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ApiPredicateTest {
+    private val api = """
+        package test.pkg {
+          @test.pkg.SystemApi public class Shown {
+            method public void shown();
+          }
+          public static class Shown.Inner {
+            method public void inner();
+          }
+          public class Plain {
+            method public void plain();
+          }
+        }
+        package test.removed {
+          public class Old {
+            method public void old();
+          }
+        }
+        """.trimIndent()
+
+    private fun loadApi(cached: Boolean): TextCodebase {
+        val codebase = ApiFile.parseApi("api.txt", api, false)
+        if (cached) {
+            codebase.apiFlagsCache = ApiFlagsCache()
+        }
+        return codebase
+    }
+
+    private fun TextCodebase.method(className: String): MethodItem {
+        return findClass(className)!!.methods().single()
+    }
+
+    @Test
+    fun `Match members of classes with show annotations`() {
+        compatibility = Compatibility(false)
+        options = Options(arrayOf(ARG_SHOW_ANNOTATION, "test.pkg.SystemApi"))
+        for (cached in listOf(false, true)) {
+            val codebase = loadApi(cached)
+            val predicate = ApiPredicate(ignoreShown = false)
+            assertTrue(predicate.test(codebase.method("test.pkg.Shown")))
+            assertTrue(predicate.test(codebase.method("test.pkg.Shown.Inner")))
+            assertFalse(predicate.test(codebase.method("test.pkg.Plain")))
+            assertTrue(ApiPredicate(ignoreShown = true).test(codebase.method("test.pkg.Plain")))
+        }
+    }
+
+    @Test
+    fun `Match members of removed packages`() {
+        compatibility = Compatibility(false)
+        options = Options(emptyArray())
+        for (cached in listOf(false, true)) {
+            val codebase = loadApi(cached)
+            codebase.findPackage("test.removed")!!.removed = true
+            codebase.apiFlagsCache?.invalidate()
+            val old = codebase.method("test.removed.Old")
+            assertFalse(ApiPredicate().test(old))
+            assertTrue(ApiPredicate(matchRemoved = true).test(old))
+            assertTrue(ApiPredicate(ignoreRemoved = true).test(old))
+            assertFalse(ApiPredicate(matchRemoved = true).test(codebase.method("test.pkg.Plain")))
+        }
+    }
+
+    @Test
+    fun `Recompute cached flags for other show annotations`() {
+        // Such as when the next API surface uses a codebase loaded for an earlier one
+        compatibility = Compatibility(false)
+        options = Options(arrayOf(ARG_SHOW_ANNOTATION, "test.pkg.SystemApi"))
+        val codebase = loadApi(cached = true)
+        val shown = codebase.method("test.pkg.Shown")
+        assertTrue(ApiPredicate(ignoreShown = false).test(shown))
+
+        options = Options(arrayOf(ARG_SHOW_ANNOTATION, "test.pkg.TestApi"))
+        assertFalse(ApiPredicate(ignoreShown = false).test(shown))
+        assertFalse(ApiPredicate(ignoreShown = false).test(codebase.method("test.pkg.Shown.Inner")))
+
+        options = Options(arrayOf(ARG_SHOW_ANNOTATION, "test.pkg.SystemApi"))
+        assertTrue(ApiPredicate(ignoreShown = false).test(shown))
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.metalava.model.psi
+
+import com.android.tools.metalava.doclava1.ApiPredicate
+import com.intellij.psi.PsiType
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class TypeStringCacheTest {
+    @Test
+    fun `Share type strings between equal filters`() {
+        val cache = TypeStringCache(maxSize = 2)
+        var printed = 0
+        fun get(type: PsiType, filter: ApiPredicate, erased: Boolean = false): String {
+            return cache.get(type, false, true, erased, null, filter) {
+                printed++
+                type.canonicalText
+            }
+        }
+
+        assertEquals("int", get(PsiType.INT, ApiPredicate(ignoreShown = true)))
+        // Another writer with an equal filter
+        assertEquals("int", get(PsiType.INT, ApiPredicate(ignoreShown = true)))
+        assertEquals(1, printed)
+
+        // Different filters and flags are printed separately
+        assertEquals("int", get(PsiType.INT, ApiPredicate(ignoreShown = true, ignoreRemoved = true)))
+        assertEquals(2, printed)
+
+        // Full: no longer cached
+        assertEquals("int", get(PsiType.INT, ApiPredicate(ignoreShown = true), erased = true))
+        assertEquals("int", get(PsiType.INT, ApiPredicate(ignoreShown = true), erased = true))
+        assertEquals(4, printed)
+
+        assertEquals("1 hits, 4 misses, 2 cached", cache.statistics())
+    }
+}